@@ -0,0 +1,205 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.Durability;
+import cn.net.zhijian.fileq.intf.IWriter;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push messages asynchronously.
+ * Pushers put messages in a pending queue and return at once,
+ * one thread of the queue takes pending messages in batches,
+ * writes each batch with one write, waits until it reaches the
+ * highest durability level in the batch,
+ * then completes their futures in order with their offsets.
+ * The thread is started when the first message comes.
+ * @author flyinmind of csdn.net
+ *
+ */
+final class AsyncPusher implements Runnable {
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final int MAX_PENDING = 64 * 1024; //pushers block when too many pending messages
+    private static final int MAX_BATCH_NUM = 1024;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final long WAIT_TIME = 100; //ms
+
+    private final IWriter writer;
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final AtomicInteger submitting = new AtomicInteger(0);
+    private volatile boolean closed = false;
+    private Thread thread;
+
+    private static final class Task {
+        final byte[] msg;
+        final int offset;
+        final int len;
+        final boolean chkHash;
+        final Durability durability;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        int pos; //position in the batch
+
+        Task(byte[] msg, int offset, int len, boolean chkHash, Durability durability) {
+            this.msg = msg;
+            this.offset = offset;
+            this.len = len;
+            this.chkHash = chkHash;
+            this.durability = durability;
+        }
+    }
+
+    AsyncPusher(IWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Put a message in the pending queue,
+     * if too many pending messages, wait until there is room.
+     * The message is not copied, don't change it until the future completes.
+     * @return future completed with the offset of the message
+     */
+    CompletableFuture<Long> push(byte[] msg, int offset, int len,
+            boolean chkHash, Durability durability) {
+        Task task = new Task(msg, offset, len, chkHash, durability);
+        if (len > IFile.MAX_MSG_SIZE) {
+            task.future.completeExceptionally(new FQException("Msg too long,len:" + len));
+            return task.future;
+        }
+
+        //closing waits until all submitting tasks are put in the queue
+        submitting.incrementAndGet();
+        try {
+            if(!start()) {
+                task.future.completeExceptionally(new FQException("Queue " + writer.queueName() + " closed"));
+                return task.future;
+            }
+            tasks.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.future.completeExceptionally(e);
+        } finally {
+            submitting.decrementAndGet();
+        }
+        return task.future;
+    }
+
+    /**
+     * Start the thread if not started, closing checks it in the same lock,
+     * so a thread is never started after closed
+     * @return false if closed
+     */
+    private synchronized boolean start() {
+        if(closed) {
+            return false;
+        }
+        if(thread != null) {
+            return true;
+        }
+        thread = new Thread(this, "FileQueue_Async_" + writer.name());
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        List<Task> batch = new ArrayList<>();
+        MessageBatch mb = new MessageBatch(MAX_BATCH_BYTES);
+        for(;;) {
+            Task t;
+            try {
+                t = tasks.poll(WAIT_TIME, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                t = null;
+            }
+            if(t == null) {
+                //no one is putting, and nothing left
+                if(closed && submitting.get() == 0 && tasks.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+
+            int bytes = 0;
+            do {
+                batch.add(t);
+                bytes += t.len;
+            } while(batch.size() < MAX_BATCH_NUM && bytes < MAX_BATCH_BYTES
+                    && (t = tasks.poll()) != null);
+            write(batch, mb);
+            batch.clear();
+        }
+        LOG.debug("Async pusher of {} quit", writer.queueName());
+    }
+
+    /**
+     * Write a batch of messages with one write, then complete their futures.
+     * Futures are completed in this thread, their dependent actions
+     * should be light, or use async ones.
+     */
+    private void write(List<Task> batch, MessageBatch mb) {
+        Durability durability = Durability.NONE;
+        mb.clear();
+        try {
+            for(Task t : batch) {
+                t.pos = mb.length();
+                mb.add(t.msg, t.offset, t.len, t.chkHash);
+                if(t.durability.compareTo(durability) > 0) {
+                    durability = t.durability;
+                }
+            }
+            writer.write(mb, durability);
+            for(int i = 0; i < batch.size(); i++) {
+                Task t = batch.get(i);
+                t.future.complete(mb.offset(i, t.pos));
+            }
+        } catch(Exception e) {
+            for(Task t : batch) {
+                t.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting new messages, wait until all pending ones are written
+     */
+    void close() {
+        Thread t;
+        synchronized(this) {
+            closed = true;
+            t = thread;
+        }
+        if(t == null) {
+            return;
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Background workers shared by all queues,
+ * they run slow file operations out of pushers' critical path.
+ * Preparing files and cleaning run in different daemon threads,
+ * so slow deletes never delay rolling to the next file.
+ * Tasks of each thread are executed in order,
+ * they are short and rare, needn't more threads.
+ * @author flyinmind of csdn.net
+ *
+ */
+final class Background {
+    //create next files
+    private static final ExecutorService PREPARER = newWorker("FileQueue_Preparer");
+    //remove files, save manifests
+    private static final ExecutorService JANITOR = newWorker("FileQueue_Janitor");
+
+    private Background() {
+    }
+
+    private static ExecutorService newWorker(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true); //never prevent the process from exiting
+            return t;
+        });
+    }
+
+    static <T> Future<T> prepare(Callable<T> task) {
+        return PREPARER.submit(task);
+    }
+
+    static void clean(Runnable task) {
+        JANITOR.execute(task);
+    }
+}
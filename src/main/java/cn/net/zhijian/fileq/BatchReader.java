@@ -0,0 +1,189 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.net.zhijian.fileq.intf.IDispatcher;
+import cn.net.zhijian.fileq.intf.IMessage;
+import cn.net.zhijian.fileq.intf.IWriter;
+import cn.net.zhijian.fileq.util.BufferPool;
+import cn.net.zhijian.fileq.util.FileUtil;
+
+/**
+ * Batch consumer, consume batch by batch.
+ * Messages are read like ConcurrentReader, each one has its own buffer,
+ * they are collected until the batch is full or the max waiting time passed.
+ * The read position is saved only when the batch is confirmed.
+ * If the batch is not confirmed,
+ * just return the old batch until it was confirmed
+ * @author flyinmind of csdn.net
+ *
+ */
+final class BatchReader extends ConcurrentReader {
+    private static final int MIN_RETRY_INTERVAL = 500;
+    private static final int MAX_RETRY_INTERVAL = (MIN_RETRY_INTERVAL << 5);
+    
+    //The state of the queue's consumer
+    private enum BatchState {
+        IDLE, //collecting messages
+        WAITCONFIRM, //the batch handled, but not confirmed
+        FAILED //fail to handle the batch
+    }
+    
+    private int retryInterval = MIN_RETRY_INTERVAL; //ms
+    private long retriedAt; //ms, fore retry time
+    private long firstAt; //ms, time of the first message in the batch
+    private final IDispatcher dispatcher;
+
+    private List<IMessage> batch = new ArrayList<>();
+    //first file of chunked messages in the batch, they may be handled again
+    private volatile int pinnedFileNo = Integer.MAX_VALUE;
+    private volatile BatchState state = BatchState.IDLE;
+    
+    /**
+     * @param name Consumer name
+     * @param writer Message writer
+     * @param dispatcher Message dispatcher
+     * @param buffered Buffered mode
+     * @param mapped Read files by mapping, it's prior to buffered mode
+     * @param lazyVerify Check hash codes when isCorrect is called, not in the dispatcher
+     * @param views Deliver messages as views of the read buffer
+     * @param pool Buffer pool of messages, null if not pooled
+     * @param bufferedPos
+     *  Save consume-position to disk after `bufferedPos` times updating
+     * @param pos Initial position(CUR,HEAD,END)
+     * @throws IOException io exception when open the queue
+     */
+    public BatchReader(String name, IWriter writer, IDispatcher dispatcher,
+            boolean buffered, boolean mapped, boolean lazyVerify, boolean views,
+            BufferPool pool, int bufferedPos, InitPosition pos) throws IOException {
+        super(name, writer, buffered, mapped, lazyVerify, views, pool, bufferedPos, pos);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * read a batch from queue in a single thread
+     */
+    @Override
+    public List<IMessage> readBatch(int max, long maxWait) {
+        if(state == BatchState.WAITCONFIRM) {
+            return null;
+        }
+        
+        long cur = System.currentTimeMillis();
+        if(state == BatchState.FAILED) {
+            if(cur - retriedAt < retryInterval) { //in retryInterval time, return null
+                return null;
+            }
+            if(retryInterval < MAX_RETRY_INTERVAL) {
+                retryInterval <<= 1; //double next retry time
+            }
+            retriedAt = cur;
+            state = BatchState.WAITCONFIRM;
+            return batch; //return old batch again
+        }
+
+        IMessage msg;
+        while(batch.size() < max) {
+            if(!batch.isEmpty() && !readable()) {
+                break;
+            }
+            if((msg = super.read()) == null) {
+                break;
+            }
+            if(batch.isEmpty()) {
+                firstAt = cur;
+            }
+            if(msg instanceof ChunkedMessage) {
+                pinnedFileNo = Math.min(pinnedFileNo, ((ChunkedMessage)msg).firstFileNo());
+            }
+            batch.add(msg);
+        }
+        
+        if(batch.isEmpty()) {
+            return null;
+        }
+        if(batch.size() < max && cur - firstAt < maxWait
+           && this.consumeState.fileNo() == writer().curFileNo()) {
+            return null; //wait for more messages
+        }
+        retryInterval = MIN_RETRY_INTERVAL;
+        retriedAt = cur;
+        state = BatchState.WAITCONFIRM;
+        return batch;
+    }
+    
+    /**
+     * Whether the next message can be read without saving the read position.
+     * When reaching the end of a file, the reader saves its position,
+     * it's after the messages in the batch, they will be lost if crashed.
+     * So stop collecting, the batch is handled at the end of a file
+     * @return true if there's more in the current file
+     */
+    private boolean readable() {
+        return inBlock() || (qFile != null && qFile.hasMore(Integer.BYTES));
+    }
+    
+    /**
+     * Files of chunked messages are kept until the batch is confirmed
+     */
+    @Override
+    public int curFileNo() {
+        return Math.min(super.curFileNo(), pinnedFileNo);
+    }
+    
+    @Override
+    public void confirm(boolean ok) {
+        if(ok) {
+            List<IMessage> handled = batch;
+            batch = new ArrayList<>();
+            if(qFile != null) {
+                this.consumeState.save(readPos(), false); //one update for the whole batch
+            }
+            for(IMessage m : handled) {
+                m.release(); //its buffer is not used any more
+            }
+            pinnedFileNo = Integer.MAX_VALUE;
+            state = BatchState.IDLE;
+        } else{
+            state = BatchState.FAILED;
+        }
+        /*
+         * One batch confirmed, then handle the next one.
+         * So active the loop right now.
+         */
+        dispatcher.ready();
+    }
+    
+    @Override
+    public synchronized void close() {
+        if(state != BatchState.WAITCONFIRM) { //not being handled
+            for(IMessage m : batch) {
+                m.release();
+            }
+        }
+        if(!batch.isEmpty() && qFile != null) {
+            //not confirmed, don't save the read position after the batch,
+            //the confirmed one is saved, it's handed out again when reopened
+            FileUtil.closeQuietly(qFile);
+            qFile = null;
+        }
+        super.close();
+    }
+}
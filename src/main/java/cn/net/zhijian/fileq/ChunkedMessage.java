@@ -0,0 +1,307 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IInputStream;
+import cn.net.zhijian.fileq.intf.IMessage;
+import cn.net.zhijian.fileq.intf.IWriter;
+import cn.net.zhijian.fileq.io.FastInputStream;
+
+/**
+ * A large message written in chunks, generated when its trailer is read.
+ * Content isn't loaded, chunks are read from queue files by stream(),
+ * skipping records of other messages between them.
+ * A stream pins the file it's reading, so the file is kept
+ * until the stream is read to the end or closed.
+ * The first file is pinned when the message is generated,
+ * until the handler takes the stream, or the message is released.
+ * @author flyinmind of csdn.net
+ *
+ */
+final class ChunkedMessage implements IMessage, IFile {
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final IWriter writer;
+    private final long msgId;
+    private final long firstOffset;
+    private final long length;
+    private final boolean passed;
+    private final Set<ChunkStream> pins; //streams being read, shared with the reader
+    private ChunkStream first; //created with the message, to pin the first file at once
+    private final List<ChunkStream> streams = new ArrayList<>(1); //streams not closed
+    private byte[] content;
+
+    /**
+     * @param writer queue writer
+     * @param trailer content of the trailer
+     * @param passed the trailer passed the hash code checking or not
+     * @param pins streams being read of the reader
+     */
+    ChunkedMessage(IWriter writer, byte[] trailer, boolean passed, Set<ChunkStream> pins) {
+        this.writer = writer;
+        this.msgId = IFile.parseLong(trailer, 0);
+        this.firstOffset = IFile.parseLong(trailer, CHUNK_HEAD_LEN);
+        this.length = IFile.parseLong(trailer, CHUNK_HEAD_LEN + Long.BYTES);
+        this.passed = passed;
+        this.pins = pins;
+        this.first = new ChunkStream();
+    }
+    
+    /**
+     * @return number of the file where the first chunk is
+     */
+    int firstFileNo() {
+        return IFile.offsetFileNo(firstOffset);
+    }
+
+    /**
+     * Load all content into memory, don't call it on a very large message
+     */
+    @Override
+    public synchronized byte[] message() {
+        if(content != null) {
+            return content;
+        }
+        if(length > MAX_ARRAY_SIZE) {
+            throw new IllegalStateException("Message too long,len:" + length + ",read it by stream");
+        }
+        byte[] buf = new byte[(int)length];
+        try(InputStream in = stream()) {
+            for(int n = 0, l; n < buf.length; n += l) {
+                if((l = in.read(buf, n, buf.length - n)) < 0) {
+                    throw new IOException("Chunks of message " + msgId + " are incomplete");
+                }
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        content = buf;
+        return content;
+    }
+
+    @Override
+    public int len() {
+        return (int)Math.min(length, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean isCorrect() {
+        return passed;
+    }
+
+    /**
+     * Every call returns a new stream from the first chunk,
+     * read it to the end or close it, so its files can be removed
+     */
+    @Override
+    public synchronized InputStream stream() {
+        ChunkStream s = first;
+        if(s != null) {
+            first = null;
+            return s;
+        }
+        return new ChunkStream();
+    }
+    
+    /**
+     * Close all streams, so their files are not pinned any more.
+     * The dispatcher calls it after the handler returns if autoConfirm,
+     * or else the handler must call it.
+     * stream() can be called again, then the files are pinned again
+     */
+    @Override
+    public synchronized void release() {
+        first = null;
+        for(ChunkStream s : streams.toArray(new ChunkStream[0])) {
+            s.close();
+        }
+    }
+
+    /**
+     * Stream of chunks, it only accepts chunks of the message in order,
+     * hash codes of chunks are checked if they have.
+     */
+    final class ChunkStream extends InputStream {
+        private volatile int fileNo; //file being read
+        private IInputStream in;
+        private final byte[] head = new byte[Integer.BYTES * 2];
+        private byte[] chunk;
+        private int pos = 0;
+        private int end = 0;
+        private int index = 0;
+        private long remain = length;
+        private boolean closed = false;
+
+        ChunkStream() {
+            this.fileNo = IFile.offsetFileNo(firstOffset);
+            pins.add(this);
+            streams.add(this);
+        }
+
+        int fileNo() {
+            return fileNo;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(pos >= end && !next()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(pos >= end && !next()) {
+                return -1;
+            }
+            int n = Math.min(len, end - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+
+        @Override
+        public void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            pins.remove(this);
+            synchronized(ChunkedMessage.this) {
+                streams.remove(this);
+            }
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //ignore it
+                }
+                in = null;
+            }
+        }
+
+        /**
+         * Find the next chunk of the message
+         * @return false if all chunks have been read
+         * @throws IOException io exception, or chunks are lost
+         */
+        private boolean next() throws IOException {
+            if(remain <= 0 || closed) {
+                close();
+                return false;
+            }
+            if(in == null) {
+                in = open(fileNo, IFile.offsetPos(firstOffset));
+            }
+
+            for(;;) {
+                if(!in.hasMore(Integer.BYTES)) {
+                    if(fileNo >= writer.curFileNo()) {
+                        throw new IOException("Chunk " + index + " of message " + msgId + " lost");
+                    }
+                    in.close();
+                    in = null;
+                    in = open(++fileNo, FILE_HEAD_LEN);
+                    continue;
+                }
+                readFully(head, 0, Integer.BYTES);
+                int lenFlag = IFile.parseInt(head, 0);
+                boolean chkHash = (lenFlag & MSG_HASH_FLAG) != 0;
+                int len = lenFlag & MSG_LEN_MASK;
+                if((lenFlag & BLOCK_FLAG) != 0 || (lenFlag & MSG_CHUNK_FLAG) == 0) {
+                    skipFully(chkHash ? len + Integer.BYTES : len);
+                    continue;
+                }
+                if(len < CHUNK_HEAD_LEN || len > MAX_MSG_SIZE) {
+                    throw new IOException("Invalid chunk in " + in.file() + '@' + (in.readPos() - Integer.BYTES));
+                }
+                if(chkHash) {
+                    readFully(head, Integer.BYTES, Integer.BYTES);
+                }
+                if(chunk == null || chunk.length < len) {
+                    chunk = new byte[len];
+                }
+                readFully(chunk, 0, CHUNK_HEAD_LEN);
+                if(IFile.parseLong(chunk, 0) != msgId) {
+                    skipFully(len - CHUNK_HEAD_LEN); //chunk of another message
+                    continue;
+                }
+                readFully(chunk, CHUNK_HEAD_LEN, len - CHUNK_HEAD_LEN);
+                if(chkHash && IFile.parseInt(head, Integer.BYTES) != IFile.crc32c(chunk, 0, len)) {
+                    throw new IOException("Wrong hash code of chunk " + index + " of message " + msgId);
+                }
+                if(IFile.parseInt(chunk, Long.BYTES) != index) {
+                    throw new IOException("Chunk " + index + " of message " + msgId + " lost");
+                }
+                index++;
+                pos = CHUNK_HEAD_LEN;
+                end = len;
+                remain -= len - CHUNK_HEAD_LEN;
+                return true;
+            }
+        }
+
+        private IInputStream open(int no, long from) throws IOException {
+            File f = new File(writer.queueFileName(no));
+            if(!f.exists()) {
+                throw new IOException("File " + f + " of message " + msgId + " has been removed");
+            }
+            IInputStream s = new FastInputStream(f, () -> writer.readable(no));
+            if(s.skip(from) != from) {
+                s.close();
+                throw new IOException("File " + f + " of message " + msgId + " is shorter than " + from);
+            }
+            return s;
+        }
+
+        private void skipFully(long n) throws IOException {
+            if(in.skip(n) != n) {
+                throw new IOException("Fail to skip " + n + " bytes in " + in.file() + '@' + in.readPos());
+            }
+        }
+
+        private void readFully(byte[] b, int off, int len) throws IOException {
+            for(int n = 0, l; n < len; n += l) {
+                if((l = in.read(b, off + n, len - n)) <= 0) {
+                    throw new IOException("Fail to read " + in.file() + '@' + in.readPos());
+                }
+            }
+        }
+    }
+}
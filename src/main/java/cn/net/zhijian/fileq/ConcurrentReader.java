@@ -17,18 +17,29 @@ package cn.net.zhijian.fileq;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 import org.slf4j.Logger;
 
 import cn.net.zhijian.fileq.bean.ConcurrentMessage;
+import cn.net.zhijian.fileq.intf.ICodec;
 import cn.net.zhijian.fileq.intf.IFile;
 import cn.net.zhijian.fileq.intf.IInputStream;
 import cn.net.zhijian.fileq.intf.IMessage;
 import cn.net.zhijian.fileq.intf.IReader;
 import cn.net.zhijian.fileq.intf.IWriter;
+import cn.net.zhijian.fileq.io.CachedInputStream;
 import cn.net.zhijian.fileq.io.ConsumeState;
 import cn.net.zhijian.fileq.io.FastInputStream;
+import cn.net.zhijian.fileq.io.MappedInputStream;
 import cn.net.zhijian.fileq.io.SafeInputStream;
+import cn.net.zhijian.fileq.util.BufferPool;
+import cn.net.zhijian.fileq.util.Codecs;
 import cn.net.zhijian.fileq.util.FileUtil;
 import cn.net.zhijian.fileq.util.LogUtil;
 
@@ -45,33 +56,72 @@ import cn.net.zhijian.fileq.util.LogUtil;
  */
 class ConcurrentReader implements IReader {
     private static final Logger LOG = LogUtil.getInstance();
+    private static final int READ_CHUNK_SIZE = 256 * 1024;
     
     private final String name;
     private final IWriter writer;
     private final byte[] intBuf = new byte[Integer.BYTES];
     private final boolean buffered;
+    private final boolean mapped;
+    private final boolean lazyVerify; //check hash codes in handlers' threads
+    private final boolean views; //deliver views, not copies
+    private byte[] readChunk = new byte[0]; //small messages are read into it one by one
+    private int readChunkPos = 0;
+    private final BufferPool pool; //null if buffers are not pooled
+    private BufferPool.Buffer readChunkBuf; //pooled read chunk, held until the next one
+    private BufferPool.Buffer pooled; //acquired by getBuffer, taken by generateMessage
+    private int fileVer = VER; //version of the reading file
 
     protected IInputStream qFile;
     protected ConsumeState consumeState;
     
+    //decompressed messages of the block being read
+    private byte[] packed = new byte[0];
+    private byte[] block = new byte[0];
+    private int blockHeadLen = BLOCK_HEAD_LEN; //depends on the version of the file
+    private final CRC32 crc32 = new CRC32();
+    private final CRC32C crc32c = new CRC32C();
+    private boolean blockPassed = true; //passed the checksum checking
+    private int blockLen = 0;
+    private int blockPos = 0;
+    private boolean inBlock = false;
+    private int blockFileNo = -1;
+    private long blockStart = -1; //saved as the read position until the block is finished
+    private int blockIndex = 0; //index of the next message in the block
+    private int blockSkip = 0; //messages to skip when reread the block from its start
+    private long unknownCodecAt = -1; //start of the block waiting for its codec
+    //chunks are skipped, a chunked message is generated when its trailer is read
+    private static final IMessage SKIPPED = new ConcurrentMessage(0, new byte[0], true);
+    private final byte[] trailer = new byte[CHUNK_TRAILER_LEN];
+    //streams of chunked messages being read, their files can't be removed
+    private final Set<ChunkedMessage.ChunkStream> chunkStreams = ConcurrentHashMap.newKeySet();
+    
     /**
      * @param name Consumer name
      * @param writer Queue writer
      * @param buffered Set reader with buffered mode
+     * @param mapped Read files by mapping, it's prior to buffered mode
+     * @param lazyVerify Check hash codes when isCorrect is called, not in the dispatcher
+     * @param views Deliver messages as views of mapped files or read chunks, see IMessage.buffer
+     * @param pool Buffers of messages and read chunks are acquired from it, null means no pooling
      * @param bufferedPos
      *  Save consume-position to disk after `bufferedPos` times updating
      * @param pos Initial position(CUR,HEAD,END)
      * @throws IOException exception
      */
     public ConcurrentReader(String name, IWriter writer,
-            boolean buffered, int bufferedPos,
-            InitPosition pos) throws IOException {
+            boolean buffered, boolean mapped, boolean lazyVerify, boolean views,
+            BufferPool pool, int bufferedPos, InitPosition pos) throws IOException {
         if(writer == null) {
             throw new IOException("writer is null");
         }
         this.name = name;
         this.writer = writer;
         this.buffered = buffered;
+        this.mapped = mapped;
+        this.lazyVerify = lazyVerify;
+        this.views = views;
+        this.pool = pool;
         String stateFile = FileUtil.addPath(writer.dir(), writer.name() + '_' + name);
         this.consumeState = new ConsumeState(new File(stateFile), bufferedPos);
         init(pos);
@@ -79,7 +129,7 @@ class ConcurrentReader implements IReader {
     
     private void init(InitPosition initPos) throws IOException {
         int curFileNo;
-        int readPos;
+        long readPos;
         
         if(initPos == InitPosition.END) {
             curFileNo = this.writer.curFileNo();
@@ -110,7 +160,7 @@ class ConcurrentReader implements IReader {
         qFile = open(curFileNo, readPos);
     }
 
-    private IInputStream open(int fileNo, int readPos) throws IOException {
+    private IInputStream open(int fileNo, long readPos) throws IOException {
         String fn = writer.queueFileName(fileNo);
         File f = new File(fn);
         if(!f.exists()) {
@@ -118,17 +168,21 @@ class ConcurrentReader implements IReader {
             return null;
         }
         
-        int fileSize = (int)f.length();
-        if(fileSize < FILE_HEAD_LEN) {
+        if(f.length() < FILE_HEAD_LEN) {
             LOG.warn("Invalid queue file {}, too short", fn);
             return null;
         }
         
+        //the writing file may be longer than its content, if it's mapped
         IInputStream qFile;
-        if(buffered) {
-            qFile = new FastInputStream(f);
+        if(mapped) {
+            qFile = new MappedInputStream(f, () -> writer.readable(fileNo));
+        } else if(writer.chunkCache() != null) {
+            qFile = new CachedInputStream(f, fileNo, writer.chunkCache(), () -> writer.readable(fileNo));
+        } else if(buffered) {
+            qFile = new FastInputStream(f, () -> writer.readable(fileNo));
         } else {
-            qFile = new SafeInputStream(f);
+            qFile = new SafeInputStream(f, () -> writer.readable(fileNo));
         }
         
         byte[] head = new byte[FILE_HEAD_LEN];
@@ -137,16 +191,19 @@ class ConcurrentReader implements IReader {
         //magic(5)|ver(1)|fileNo(4)
         int ver = 0xff & ((int)head[MAGIC.length]);
         int no = IFile.parseInt(head, MAGIC.length + 1);
-        if (ver != VER || !IFile.byteArrayEquals(head, 0, MAGIC, 0, MAGIC.length) || no != fileNo) {
+        if (!IFile.isValidVer(ver) || !IFile.byteArrayEquals(head, 0, MAGIC, 0, MAGIC.length) || no != fileNo) {
             FileUtil.closeQuietly(qFile);
             throw new IOException("Invalid queue file " + fn
                     + ",ver=" + ver + ",no=" + no
                     + ",magic=" + new String(head, 0, MAGIC.length));
         }
+        fileVer = ver;
+        blockHeadLen = ver >= VER_BATCH ? BLOCK_HEAD_LEN : BLOCK_HEAD_LEN_V2;
         
-        if(readPos > FILE_HEAD_LEN) {
-            //skip the content that has been read
-            qFile.skip(readPos - FILE_HEAD_LEN);
+        if(readPos > FILE_HEAD_LEN && qFile.skip(readPos - FILE_HEAD_LEN) != readPos - FILE_HEAD_LEN) {
+            //the content that has been read is lost
+            FileUtil.closeQuietly(qFile);
+            throw new IOException("Fail to skip to " + readPos + " in file " + fn + ", it's shorter");
         }
         
         this.consumeState.save(fileNo, qFile.readPos(), true);
@@ -161,23 +218,54 @@ class ConcurrentReader implements IReader {
 
         do {
             try {
+                //if only file head,ignore it, unless it's the writing one.
+                //its number is saved in the consume state when opened,
+                //so it would be skipped after the writer rolled
                 if((f = open(fileNo, 0)) != null
-                   && f.hasMore(Integer.BYTES)) { //if only file head,ignore it
+                   && (f.hasMore(Integer.BYTES) || fileNo >= last)) {
                     return f;
                 }
             } catch (IOException e) {
                 LOG.error("Fail to open file {}", fileName(fileNo), e);
-                FileUtil.closeQuietly(f);
             }
+            FileUtil.closeQuietly(f);
+            f = null;
             fileNo++;
-        } while(fileNo < last);
+        } while(fileNo <= last);
         
         return null;
     }
     
     @Override
     public IMessage read() { //run in a single dispatcher thread
+        return readNext();
+    }
+
+    /**
+     * Read the next message, chunks are skipped.
+     * Called by reRead, not read(), it may be overridden to call reRead
+     * @return message, null if no message
+     */
+    private IMessage readNext() {
+        IMessage msg;
+        do {
+            msg = readRecord();
+        } while(msg == SKIPPED);
+        return msg;
+    }
+    
+    private IMessage readRecord() {
+        if(inBlock) {
+            return readInBlock();
+        }
+        
         int curFileNo = this.consumeState.fileNo();
+        if(curFileNo < writer.minFileNo() && qFile != null) {
+            //dropped by the writer when the queue is full, skip to the next one
+            LOG.warn("File {} was dropped before consumed", qFile.file());
+            FileUtil.closeQuietly(qFile);
+            qFile = null;
+        }
         if(curFileNo == writer.curFileNo()) {//read the last file
             if(qFile == null) {
                 /*
@@ -195,34 +283,46 @@ class ConcurrentReader implements IReader {
             }
             
             if(!qFile.hasMore(Integer.BYTES)) {
-                this.consumeState.save(qFile.readPos(), true);//save consume pos when idle
+                this.consumeState.save(readPos(), true);//save consume pos when idle
                 return null; //no new message, waiting
             }
         } else if(qFile == null || !qFile.hasMore(Integer.BYTES)) {
             //when reaching the end,close the old one,and open the next one
             FileUtil.closeQuietly(qFile);
-            if((qFile = openNext()) == null) {
-                return null;
+            if((qFile = openNext()) == null || !qFile.hasMore(Integer.BYTES)) {
+                return null; //the writing one may have only the file head
             }
         }
 
         try {
             int len = readInt();
+            if((len & BLOCK_FLAG) != 0) {
+                return readBlock(len & MSG_LEN_MASK);
+            }
+            if((len & MSG_CHUNK_FLAG) != 0) {
+                return readChunk(len);
+            }
             boolean chkHash = (len & MSG_HASH_FLAG) != 0;
 
             len &= MSG_LEN_MASK;
             if(len > MAX_MSG_SIZE) {
-                qFile.skip(len);
-                this.consumeState.save(qFile.readPos(), false);//save position when idle
+                skipFully(len);
+                this.consumeState.save(readPos(), false);//save position when idle
                 LOG.warn("Invalid message length({}) in file {}@{}", len, qFile.file(), qFile.readPos());
                 return null;
             }
 
+            if(views) {
+                return readView(len, chkHash);
+            }
             byte[] content = getBuffer(len);
             if(chkHash) {
                 int hashCode = readInt();
                 qFile.read(content, 0, len);
-                if(hashCode != IFile.hashCode(content, 0, len)) {
+                if(lazyVerify) {
+                    return generateMessage(len, content, hashCode, fileVer);
+                }
+                if(hashCode != IFile.checksum(fileVer, content, 0, len)) {
                     LOG.warn("Invalid hash value at {} in {}", qFile.readPos() - len - 4, curFileName());
                     return generateMessage(len, content, false);
                 }
@@ -237,11 +337,294 @@ class ConcurrentReader implements IReader {
                     curFileName(), this.consumeState,
                     writer.name(), writer.curFileNo(), writer.size(),
                     qFile, e);
+            Runnable r = takePooled(); //not delivered
+            if(r != null) {
+                r.run();
+            }
         }
 
         return null;
     }
     
+    /**
+     * Read a message as a view, of the mapped file,
+     * or of the read chunk, small messages share one chunk,
+     * a new chunk is allocated when it's full, the old one is kept by its views
+     * @param len length of the message
+     * @param chkHash has a hash code or not
+     * @return message
+     * @throws IOException io exception
+     */
+    private IMessage readView(int len, boolean chkHash) throws IOException {
+        int hashCode = chkHash ? readInt() : 0;
+        ByteBuffer view = qFile.view(len);
+        Runnable releaser = null;
+        if(view != null) {
+            releaser = qFile.retain();
+        } else if(len > READ_CHUNK_SIZE / 4) {
+            byte[] content = getBuffer(len);
+            releaser = takePooled();
+            qFile.read(content, 0, len);
+            view = ByteBuffer.wrap(content, 0, len).slice().asReadOnlyBuffer();
+        } else {
+            if(readChunk.length - readChunkPos < len) {
+                nextReadChunk();
+            }
+            qFile.read(readChunk, readChunkPos, len);
+            view = ByteBuffer.wrap(readChunk, readChunkPos, len).slice().asReadOnlyBuffer();
+            readChunkPos += len;
+            if(readChunkBuf != null) { //the chunk is recycled after all views released
+                releaser = readChunkBuf.retain()::release;
+            }
+        }
+        
+        if(!chkHash) {
+            return new ConcurrentMessage(view, releaser, true);
+        }
+        if(lazyVerify) {
+            return new ConcurrentMessage(view, releaser, hashCode, fileVer);
+        }
+        if(hashCode != IFile.checksum(fileVer, view)) {
+            LOG.warn("Invalid hash value at {} in {}", qFile.readPos() - len - 4, curFileName());
+            return new ConcurrentMessage(view, releaser, false);
+        }
+        return new ConcurrentMessage(view, releaser, true);
+    }
+    
+    private void nextReadChunk() {
+        if(readChunkBuf != null) {
+            readChunkBuf.release();
+            readChunkBuf = null;
+        }
+        if(pool != null) {
+            readChunkBuf = pool.acquire(READ_CHUNK_SIZE);
+            readChunk = readChunkBuf.array();
+        } else {
+            readChunk = new byte[READ_CHUNK_SIZE];
+        }
+        readChunkPos = 0;
+    }
+    
+    /**
+     * Skip a record or the rest of it, fail if the file ends before it
+     * @param n bytes to skip
+     * @throws IOException io exception, or the file is shorter
+     */
+    private void skipFully(long n) throws IOException {
+        long l = qFile.skip(n);
+        if(l != n) {
+            throw new IOException("Only " + l + " of " + n + " bytes skipped in "
+                    + qFile.file() + '@' + qFile.readPos());
+        }
+    }
+
+    /**
+     * Read a chunk record, chunks are skipped,
+     * a chunked message is generated when its trailer is read,
+     * its content is read from chunks by its stream
+     * @param lenFlag length and flags of the record
+     * @return SKIPPED, or the chunked message
+     * @throws IOException io exception
+     */
+    private IMessage readChunk(int lenFlag) throws IOException {
+        boolean chkHash = (lenFlag & MSG_HASH_FLAG) != 0;
+        int len = lenFlag & MSG_LEN_MASK;
+        if(len < CHUNK_HEAD_LEN || len > MAX_MSG_SIZE) {
+            skipFully(chkHash ? len + Integer.BYTES : len);
+            this.consumeState.save(readPos(), false);
+            LOG.warn("Invalid chunk length({}) in file {}@{}", len, qFile.file(), qFile.readPos());
+            return null;
+        }
+        int hashCode = chkHash ? readInt() : 0;
+        qFile.read(trailer, 0, CHUNK_HEAD_LEN);
+        if((IFile.parseInt(trailer, Long.BYTES) & CHUNK_LAST) == 0 || len != CHUNK_TRAILER_LEN) {
+            skipFully(len - CHUNK_HEAD_LEN);
+            return SKIPPED;
+        }
+        qFile.read(trailer, CHUNK_HEAD_LEN, len - CHUNK_HEAD_LEN);
+        boolean passed = !chkHash || hashCode == IFile.crc32c(trailer, 0, len);
+        return new ChunkedMessage(writer, trailer, passed, chunkStreams);
+    }
+    
+    /**
+     * Read a block, check its checksum and decompress it once,
+     * then messages in it are read from memory
+     * @param len length of the block
+     * @return the first message in the block
+     * @throws IOException io exception or invalid block
+     */
+    private IMessage readBlock(int len) throws IOException {
+        long start = qFile.readPos() - Integer.BYTES;
+        int headLen = blockHeadLen;
+        if(len < headLen || len > MAX_BLOCK_SIZE + headLen) {
+            skipFully(len);
+            this.consumeState.save(readPos(), false);
+            LOG.warn("Invalid block length({}) in file {}@{}", len, qFile.file(), start);
+            return null;
+        }
+        if(views) { //views of the last block are still in use
+            packed = new byte[len];
+        } else if(packed.length < len) {
+            packed = new byte[Math.max(len, packed.length * 2)];
+        }
+        for(int n = 0, l; n < len; n += l) {
+            if((l = qFile.read(packed, n, len - n)) <= 0) {
+                throw new IOException("Fail to read block at " + start);
+            }
+        }
+        
+        //codec(1) + count(4) + rawLen(4) [+ baseOffset(8) + timestamp(8) + checksum(4)]
+        int codecId = packed[0] & 0xff;
+        int rawLen = IFile.parseInt(packed, 1 + Integer.BYTES);
+        ICodec codec = codecId == CODEC_NONE ? null : Codecs.get(codecId);
+        if(codec == null && codecId != CODEC_NONE) {
+            //not registered, it's a wrong configuration, not a corrupted block,
+            //don't skip it, read it again until the codec is registered
+            if(unknownCodecAt != start) {
+                LOG.error("Codec {} of block in file {}@{} is not registered", codecId, qFile.file(), start);
+                unknownCodecAt = start;
+            }
+            int fileNo = this.consumeState.fileNo();
+            FileUtil.closeQuietly(qFile);
+            qFile = null;
+            qFile = open(fileNo, start);
+            return null;
+        }
+        if((codec == null && rawLen != len - headLen) || rawLen < 0 || rawLen > MAX_BLOCK_SIZE) {
+            this.consumeState.save(readPos(), false);
+            LOG.warn("Invalid block in file {}@{}, codec {}, raw length {}",
+                    qFile.file(), start, codecId, rawLen);
+            return null;
+        }
+        blockPassed = true;
+        if(headLen == BLOCK_HEAD_LEN) {
+            Checksum crc = fileVer > VER_BATCH ? crc32c : crc32;
+            crc.reset();
+            crc.update(packed, headLen, len - headLen);
+            if((int)crc.getValue() != IFile.parseInt(packed, headLen - Integer.BYTES)) {
+                LOG.warn("Invalid checksum of block in file {}@{}", qFile.file(), start);
+                if(codec != null) { //can't be decompressed
+                    this.consumeState.save(readPos(), false);
+                    return null;
+                }
+                blockPassed = false;
+            }
+        }
+        
+        if(codec == null) { //not compressed, read messages in place
+            byte[] b = block;
+            block = packed;
+            packed = b;
+            blockLen = len;
+            blockPos = headLen;
+        } else {
+            if(views) {
+                block = new byte[rawLen];
+            } else if(block.length < rawLen) {
+                block = new byte[Math.max(rawLen, block.length * 2)];
+            }
+            codec.decompress(packed, headLen, len - headLen, block, 0, rawLen);
+            blockLen = rawLen;
+            blockPos = 0;
+        }
+        blockIndex = 0;
+        blockStart = start;
+        blockFileNo = this.consumeState.fileNo();
+        inBlock = true;
+        //messages before the failed one have been handled, when reread
+        for(; blockSkip > 0 && inBlock; blockSkip--) {
+            skipInBlock();
+        }
+        blockSkip = 0;
+        return inBlock ? readInBlock() : null;
+    }
+    
+    /**
+     * Skip the next message in the block, no message is generated,
+     * so no buffer is taken from the pool
+     */
+    private void skipInBlock() {
+        int lenFlag = blockLen - blockPos >= Integer.BYTES ? IFile.parseInt(block, blockPos) : -1;
+        int headLen = (lenFlag & MSG_HASH_FLAG) != 0 ? Integer.BYTES * 2 : Integer.BYTES;
+        int len = lenFlag & MSG_LEN_MASK;
+        if(lenFlag < 0 || len > MAX_MSG_SIZE || blockPos + headLen + len > blockLen) {
+            LOG.warn("Invalid message in block {}@{}", curFileName(), blockStart);
+            inBlock = false;
+            return;
+        }
+        blockPos += headLen + len;
+        blockIndex++;
+        if(blockPos >= blockLen) {
+            inBlock = false;
+        }
+    }
+
+    /**
+     * Read the next message in the block
+     * @return message, null if the block is invalid
+     */
+    private IMessage readInBlock() {
+        int lenFlag = blockLen - blockPos >= Integer.BYTES ? IFile.parseInt(block, blockPos) : -1;
+        boolean chkHash = (lenFlag & MSG_HASH_FLAG) != 0;
+        int headLen = chkHash ? Integer.BYTES * 2 : Integer.BYTES;
+        int len = lenFlag & MSG_LEN_MASK;
+        if(lenFlag < 0 || len > MAX_MSG_SIZE || blockPos + headLen + len > blockLen) {
+            LOG.warn("Invalid message in block {}@{}", curFileName(), blockStart);
+            inBlock = false;
+            return null;
+        }
+        
+        int hashCode = chkHash ? IFile.parseInt(block, blockPos + Integer.BYTES) : 0;
+        if(views) { //the block is never reused
+            ByteBuffer view = ByteBuffer.wrap(block, blockPos + headLen, len).slice().asReadOnlyBuffer();
+            blockPos += headLen + len;
+            blockIndex++;
+            if(blockPos >= blockLen) {
+                inBlock = false;
+            }
+            if(!chkHash || !blockPassed) {
+                return new ConcurrentMessage(view, null, blockPassed);
+            }
+            if(lazyVerify) {
+                return new ConcurrentMessage(view, null, hashCode, fileVer);
+            }
+            return new ConcurrentMessage(view, null, hashCode == IFile.checksum(fileVer, view));
+        }
+        byte[] content = getBuffer(len);
+        System.arraycopy(block, blockPos + headLen, content, 0, len);
+        blockPos += headLen + len;
+        blockIndex++;
+        if(blockPos >= blockLen) {
+            inBlock = false; //the block is finished, read position is the end of it
+        }
+        if(!chkHash || !blockPassed) {
+            return generateMessage(len, content, blockPassed);
+        }
+        if(lazyVerify) {
+            return generateMessage(len, content, hashCode, fileVer);
+        }
+        return generateMessage(len, content, hashCode == IFile.checksum(fileVer, content, 0, len));
+    }
+    
+    /**
+     * Position to be saved in the consume state,
+     * in a block, it's the start of the block until all messages in it are read.
+     * Handled messages in it are skipped when reread in the same process,
+     * but after a restart, the whole block is delivered again,
+     * up to MAX_BLOCK_SIZE bytes, consumers should be idempotent.
+     * @return read position
+     */
+    protected long readPos() {
+        return inBlock ? blockStart : qFile.readPos();
+    }
+    
+    /**
+     * @return true if messages left in the block being read
+     */
+    protected boolean inBlock() {
+        return inBlock;
+    }
+    
     /**
      * Reopen it, and continue the reading
      * FastInputStream, sometimes, it will read unexpected content
@@ -252,7 +635,10 @@ class ConcurrentReader implements IReader {
         FileUtil.closeQuietly(qFile);
         qFile = null;
         int fileNo = this.consumeState.fileNo();
-        int readPos = this.consumeState.readPos();
+        long readPos = this.consumeState.readPos();
+        inBlock = false;
+        //reread from the start of the block, skip handled messages in it
+        blockSkip = fileNo == blockFileNo && readPos == blockStart ? blockIndex - 1 : 0;
         LOG.info("reRead,queue:{},fileNo:{},readPos:{}", writer.queueName(), fileNo, readPos);
         try {
             qFile = open(fileNo, readPos);
@@ -263,7 +649,7 @@ class ConcurrentReader implements IReader {
         if(qFile == null) {
             return null;
         }
-        return read();
+        return readNext();
     }
     
     /**
@@ -287,7 +673,25 @@ class ConcurrentReader implements IReader {
      * @return buffer
      */
     protected byte[] getBuffer(int len) {
-        return new byte[len];
+        if(pool == null) {
+            return new byte[len];
+        }
+        pooled = pool.acquire(len);
+        return pooled.array();
+    }
+    
+    /**
+     * Take the buffer acquired by getBuffer,
+     * the message releases it when it's released
+     * @return null if not pooled
+     */
+    private Runnable takePooled() {
+        BufferPool.Buffer b = pooled;
+        if(b == null) {
+            return null;
+        }
+        pooled = null;
+        return b::release;
     }
 
     /**
@@ -298,30 +702,50 @@ class ConcurrentReader implements IReader {
      * @return message
      */
     protected IMessage generateMessage(int len, byte[] content, boolean passed) {
-        return new ConcurrentMessage(len, content, passed);
+        return new ConcurrentMessage(len, content, passed, takePooled());
+    }
+
+    /**
+     * Generate a message, its hash code is checked when isCorrect is called
+     * @param len content length
+     * @param content Buffer to receive the message
+     * @param hashCode hash code in the file
+     * @param ver version of the file
+     * @return message
+     */
+    protected IMessage generateMessage(int len, byte[] content, int hashCode, int ver) {
+        return new ConcurrentMessage(len, content, hashCode, ver, takePooled());
     }
 
     @Override
     public void confirm(boolean ok) { //called in multi-threads
         if(ok && qFile != null) {
-            this.consumeState.save(qFile.readPos(), false);
+            this.consumeState.save(readPos(), false);
         }
     }
 
     @Override
     public synchronized void close() {
         if(qFile != null) {
-            this.consumeState.save(qFile.readPos(), true);
+            this.consumeState.save(readPos(), true);
             FileUtil.closeQuietly(qFile);
             qFile = null;
         }
         FileUtil.closeQuietly(consumeState);
         this.consumeState = null;
+        if(readChunkBuf != null) {
+            readChunkBuf.release();
+            readChunkBuf = null;
+        }
     }
     
     @Override
     public int curFileNo() {
-        return this.consumeState.fileNo();
+        int fileNo = this.consumeState.fileNo();
+        for(ChunkedMessage.ChunkStream s : chunkStreams) {
+            fileNo = Math.min(s.fileNo(), fileNo);
+        }
+        return fileNo;
     }
     
     @Override
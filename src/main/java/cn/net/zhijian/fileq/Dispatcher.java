@@ -21,11 +21,13 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 
+import cn.net.zhijian.fileq.intf.IBatchMessageHandler;
 import cn.net.zhijian.fileq.intf.IDispatcher;
 import cn.net.zhijian.fileq.intf.IMessage;
 import cn.net.zhijian.fileq.intf.IMessageHandler;
@@ -58,10 +60,10 @@ final class Dispatcher extends Thread implements IDispatcher {
     private volatile boolean tracing = true; 
 
     private static class Consumer implements Closeable {
-        private final IReader reader;
+        protected final IReader reader;
         private final IMessageHandler handler;
-        private final String queueName;
-        private final String name;
+        protected final String queueName;
+        protected final String name;
         private volatile boolean paused = false;
         
         /*
@@ -69,7 +71,7 @@ final class Dispatcher extends Thread implements IDispatcher {
          * needn't call reader.confirm in message handler.
          * Set it to false when message handler is asynchronous.
          */
-        private final boolean autoConfirm;
+        protected final boolean autoConfirm;
         
         public Consumer(IReader reader, IMessageHandler handler, boolean autoConfirm) {
             this.reader = reader;
@@ -104,6 +106,13 @@ final class Dispatcher extends Thread implements IDispatcher {
                 }
             } catch(Exception e) { //catch all exceptions to avoid thread crashes
                 LOG.error("Fail to handle msg from queue({}) in {}", name, queueName, e);
+                if(autoConfirm) {
+                    reader.confirm(false); //or else a sequential reader waits for ever
+                }
+            } finally {
+                if(autoConfirm) {
+                    msg.release(); //its buffer is not used any more, files of chunks are unpinned
+                }
             }
         }
         
@@ -116,6 +125,34 @@ final class Dispatcher extends Thread implements IDispatcher {
             return null;
         }
         
+        /**
+         * Read and submit to the thread pool
+         * @param threadPool thread pool to handle messages
+         * @return number of messages submitted
+         */
+        public int dispatch(ExecutorService threadPool) {
+            IMessage msg = read();
+            if(msg == null) {
+                return 0;
+            }
+            try {
+                threadPool.submit(() -> handle(msg));
+            } catch(RejectedExecutionException e) { //never handled
+                LOG.error("Fail to submit msg from queue({}) in {}", name, queueName, e);
+                reader.confirm(false);
+                msg.release();
+                return 0;
+            }
+            return 1;
+        }
+        
+        /**
+         * @return max nanoseconds the dispatcher can sleep when idle
+         */
+        public long waitTime() {
+            return WAIT_TIME;
+        }
+        
         public boolean paused() {
             return paused;
         }
@@ -125,6 +162,65 @@ final class Dispatcher extends Thread implements IDispatcher {
         }
     }
     
+    /**
+     * Consume messages in batches, one task for one batch
+     */
+    private static class BatchConsumer extends Consumer {
+        private final IBatchMessageHandler batchHandler;
+        private final int maxNum;
+        private final long maxWait; //ms
+        
+        public BatchConsumer(IReader reader, IBatchMessageHandler handler,
+                int maxNum, long maxWait, boolean autoConfirm) {
+            super(reader, null, autoConfirm);
+            this.batchHandler = handler;
+            this.maxNum = maxNum;
+            this.maxWait = maxWait;
+        }
+        
+        public void handle(List<IMessage> msgs) {
+            try {
+                boolean result = batchHandler.handle(msgs, reader);
+                if(autoConfirm) {
+                    reader.confirm(result); //messages are released by the reader when confirmed
+                }
+            } catch(Exception e) { //catch all exceptions to avoid thread crashes
+                LOG.error("Fail to handle batch from queue({}) in {}", name, queueName, e);
+                if(autoConfirm) {
+                    reader.confirm(false); //handed out again later
+                }
+            }
+        }
+        
+        @Override
+        public int dispatch(ExecutorService threadPool) {
+            List<IMessage> msgs;
+            try {
+                msgs = reader.readBatch(maxNum, maxWait);
+            } catch(Exception e) { //catch all exceptions to avoid thread crashes
+                LOG.error("Fail to read batch from queue({}) in {}", name, queueName, e);
+                return 0;
+            }
+            if(msgs == null) {
+                return 0;
+            }
+            try {
+                threadPool.submit(() -> handle(msgs));
+            } catch(RejectedExecutionException e) { //handed out again later
+                LOG.error("Fail to submit batch from queue({}) in {}", name, queueName, e);
+                reader.confirm(false);
+                return 0;
+            }
+            return msgs.size();
+        }
+        
+        @Override
+        public long waitTime() {
+            //wake up in time to hand out a batch waiting too long
+            return maxWait > 0 ? Math.min(WAIT_TIME, maxWait * 1000 * 1000) : WAIT_TIME;
+        }
+    }
+    
     private static class Queue {
         //Only one element at most of time, so use an array copy list
         //It's a multi-thread safe list
@@ -185,6 +281,7 @@ final class Dispatcher extends Thread implements IDispatcher {
     public void run() {
         LOG.info("Dispatcher started");
         int msgNum;
+        long waitTime;
 
         while(goon != STOPPED) {
         	if(goon == PAUSED) { //all tasks paused, not stopped
@@ -192,17 +289,14 @@ final class Dispatcher extends Thread implements IDispatcher {
                 continue;
         	}
             msgNum = 0;
+            waitTime = WAIT_TIME;
             for(Queue queue : queues.values()) {
                 for(Consumer c : queue.consumers) {
                     if(c.paused()) {
                         continue;
                     }
-                    IMessage msg = c.read();
-                    if(msg == null) {
-                        continue;
-                    }
-                    msgNum++;
-                    threadPool.submit(() -> c.handle(msg));
+                    msgNum += c.dispatch(threadPool);
+                    waitTime = Math.min(waitTime, c.waitTime());
                 }
             }
 
@@ -225,7 +319,7 @@ final class Dispatcher extends Thread implements IDispatcher {
                  * So, use LockSupport.park to instead object.wait.
                  */
                 tracing = false;
-                LockSupport.parkNanos(WAIT_TIME);
+                LockSupport.parkNanos(waitTime);
                 tracing = true;
 
                 for(Queue queue : queues.values()) {
@@ -298,6 +392,12 @@ final class Dispatcher extends Thread implements IDispatcher {
         return minNo == Integer.MAX_VALUE ? 0 : minNo;
     }
 
+    @Override
+    public int consumerNum(String queueName) {
+        Queue queue = queues.get(queueName);
+        return queue == null ? 0 : queue.consumers.size();
+    }
+
     /**
      * How many messages got from queue.
      * It will be more than message number when some messages handled failed.
@@ -317,6 +417,13 @@ final class Dispatcher extends Thread implements IDispatcher {
         queue.add(new Consumer(reader, handler, autoConfirm));        
     }
     
+    @Override
+    public void addBatchConsumer(boolean autoConfirm, IReader reader,
+            int maxNum, long maxWait, IBatchMessageHandler handler) {
+        Queue queue = addQueue(reader.queueName());
+        queue.add(new BatchConsumer(reader, handler, maxNum, maxWait, autoConfirm));
+    }
+    
     @Override
     public void rmvConsumer(final String queueName, final String consumerName) {
         Queue queue = queues.get(queueName);
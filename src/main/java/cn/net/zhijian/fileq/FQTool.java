@@ -16,6 +16,7 @@ limitations under the License.
 package cn.net.zhijian.fileq;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -36,6 +37,7 @@ public final class FQTool {
     //not very frequently used, so no strict synchronization
     private static volatile Dispatcher dispatcher = null;
     private static final Map<String, FileQueue> queues = new ConcurrentHashMap<>();
+    private static final Map<String, PartitionedFileQueue> partitionedQueues = new ConcurrentHashMap<>();
     
     /**
      * Start default dispatcher
@@ -83,6 +85,48 @@ public final class FQTool {
         return queues.get(name);
     }
 
+    /**
+     * Create a partitioned queue, all partitions use the default dispatcher,
+     * so they are consumed concurrently.
+     * @param builder Builder, settings of every partition
+     * @param num number of partitions, don't change it for an existing queue
+     * @return PartitionedFileQueue
+     * @throws FQException wrong state of file queue
+     */
+    public static PartitionedFileQueue createPartitioned(FileQueue.Builder builder,
+            int num) throws FQException {
+        if(!started()) {
+            throw new FQException("FQTool not started");
+        }
+
+        PartitionedFileQueue pq = getPartitioned(builder.queueName());
+        if(pq != null) {
+            return pq;
+        }
+
+        LOG.debug("Create partitioned queue {}", builder.queueName());
+        builder.dispatcher(dispatcher);
+        pq = new PartitionedFileQueue(builder, num);
+        partitionedQueues.put(pq.name, pq);
+        
+        return pq;
+    }
+
+    public static PartitionedFileQueue getPartitioned(String name) {
+        return partitionedQueues.get(name);
+    }
+
+    public static void removePartitioned(String name) {
+        PartitionedFileQueue pq = partitionedQueues.remove(name);
+        if(pq != null) {
+            try {
+                pq.close();
+            } catch (IOException e) {
+                LOG.error("Fail to close queue {}", pq.name, e);
+            }
+        }
+    }
+
     public static void remove(String name) {
     	FileQueue fq = queues.get(name);
     	if(fq != null) {
@@ -103,13 +147,18 @@ public final class FQTool {
         if(!started()) {
             return;
         }
-        Collection<FileQueue> ff = queues.values();
+        Collection<FileQueue> ff = new ArrayList<>(queues.values());
+        Collection<PartitionedFileQueue> pp = new ArrayList<>(partitionedQueues.values());
         queues.clear(); //clear first then close queues one by one
+        partitionedQueues.clear();
         dispatcher.shutdown();
 
         for(FileQueue fq : ff) {
             fq.close();
         }
+        for(PartitionedFileQueue pq : pp) {
+            pq.close();
+        }
         dispatcher = null;
     }
 }
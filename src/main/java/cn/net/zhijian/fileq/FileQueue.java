@@ -16,14 +16,23 @@ limitations under the License.
 package cn.net.zhijian.fileq;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 
+import cn.net.zhijian.fileq.intf.IBatchMessageHandler;
+import cn.net.zhijian.fileq.intf.ICodec;
 import cn.net.zhijian.fileq.intf.IDispatcher;
 import cn.net.zhijian.fileq.intf.IFile;
 import cn.net.zhijian.fileq.intf.IMessageHandler;
 import cn.net.zhijian.fileq.intf.IReader;
 import cn.net.zhijian.fileq.intf.IWriter;
+import cn.net.zhijian.fileq.util.BufferPool;
+import cn.net.zhijian.fileq.util.ChunkCache;
+import cn.net.zhijian.fileq.util.Codecs;
 import cn.net.zhijian.fileq.util.LogUtil;
 import cn.net.zhijian.fileq.util.FileUtil;
 
@@ -35,6 +44,7 @@ import cn.net.zhijian.fileq.util.FileUtil;
 public final class FileQueue implements IFile {
     public static final int DEFAULT_QFILE_SIZE = 64 * 1024 * 1024;
     public static final int DEFAULT_QFILE_NUM = 16;
+    public static final long DEFAULT_OVERFLOW_TIMEOUT = 30000; //ms
 
     private static final Logger LOG = LogUtil.getInstance();
 
@@ -43,7 +53,12 @@ public final class FileQueue implements IFile {
 
     //only one writer, more than one consumers
     private final IWriter writer;
+    private final AsyncPusher asyncPusher;
     private final boolean bufferedPoll;
+    private final boolean mappedPoll;
+    private final boolean lazyVerify;
+    private final boolean bufferViews;
+    private final BufferPool bufferPool;
     private final int bufferedPos;
     public final String name;
     
@@ -51,18 +66,35 @@ public final class FileQueue implements IFile {
         if(builder.dispatcher == null) {
             throw new FQException("Dispatcher not set");
         }
+        if(builder.readCacheBytes > 0 && (builder.readCacheChunk < ChunkCache.MIN_CHUNK_SIZE
+           || builder.readCacheBytes < builder.readCacheChunk)) {
+            throw new FQException("Invalid read cache size " + builder.readCacheBytes
+                    + " or chunk size " + builder.readCacheChunk);
+        }
         this.writer = new Writer(builder.dir, builder.name,
                 builder.maxFileSize, builder.maxFileNum,
-                builder.bufferedPush, builder.dispatcher);
+                builder.bufferedPush, builder.groupCommit, builder.mappedPush,
+                builder.durability, builder.codec,
+                builder.maxQueueBytes, builder.maxLagBytes,
+                builder.overflow, builder.overflowTimeout,
+                builder.dataDirs, builder.placement,
+                builder.readCacheBytes > 0 ? new ChunkCache(builder.readCacheBytes, builder.readCacheChunk, builder.hotTail) : null,
+                builder.dispatcher);
         this.dispatcher = builder.dispatcher;
+        this.asyncPusher = new AsyncPusher(this.writer);
         this.name = builder.queueName();
         this.bufferedPoll = builder.bufferedPoll;
+        this.mappedPoll = builder.mappedPoll;
+        this.lazyVerify = builder.lazyVerify;
+        this.bufferViews = builder.bufferViews;
+        this.bufferPool = builder.bufferPool;
         this.bufferedPos = builder.posBuffTimes;
         LOG.debug("Create queue `{}`", this.name);
     }
 
     /**
-     * Write message to file queue, only one thread can write at the same time
+     * Write message to file queue, many threads can write at the same time,
+     * their messages are written to the file in groups by one of them
      * @param msg Message should be written, FileQueue doesn't care the content
      * @param offset offset of the message buffer
      * @param len message length
@@ -78,7 +110,7 @@ public final class FileQueue implements IFile {
 
     /**
      * Write message to file queue,
-     * in one queue only one thread can write at the same time
+     * many threads can write at the same time
      * @param msg pushed message
      * @param offset offset of the msg
      * @param len lenght of the msg
@@ -93,6 +125,142 @@ public final class FileQueue implements IFile {
         this.writer.write(msg, 0, msg.length, chkHash);
     }
 
+    /**
+     * Write message to file queue, return after it reaches the durability level.
+     * Messages of different durability levels can be pushed into one queue,
+     * only FSYNC pushers wait for forcing, and concurrent ones share one force
+     * @param msg pushed message
+     * @param offset offset of the msg
+     * @param len lenght of the msg
+     * @param chkHash If true, will check the message hash code
+     * @param durability NONE, WRITTEN or FSYNC
+     * @throws FQException write exception
+     */
+    public void push(byte[] msg, int offset, int len, boolean chkHash,
+            Durability durability) throws FQException {
+        this.writer.write(msg, offset, len, chkHash, durability);
+    }
+
+    public void push(byte[] msg, Durability durability) throws FQException {
+        this.writer.write(msg, 0, msg.length, false, durability);
+    }
+
+    /**
+     * Write a large message read from the stream, it's split into chunks,
+     * so it can be larger than MAX_MSG_SIZE, and it's never loaded into memory.
+     * Chunks of concurrent pushers may be written between them.
+     * Consumers get it when all chunks are written, and read it by IMessage.stream()
+     * @param in content of the message, read until its end, not closed
+     * @param chkHash If true, will check hash codes of chunks
+     * @param durability NONE, WRITTEN or FSYNC, every chunk reaches it
+     * @return offset of the message(see IFile.offset)
+     * @throws FQException io exception
+     */
+    public long push(InputStream in, boolean chkHash, Durability durability) throws FQException {
+        return this.writer.write(in, chkHash, durability);
+    }
+
+    public long push(InputStream in) throws FQException {
+        return this.writer.write(in, false, writer.durability());
+    }
+
+    /**
+     * Write message to file queue asynchronously, it returns at once.
+     * Pending messages are written in batches by a thread of the queue,
+     * the future is completed with the offset of the message(see IFile.offset)
+     * after it reaches the durability level, futures are completed in order.
+     * A message framed in a block with others gets the offset of the block plus
+     * its index in the block, they are unique but not positions in the file.
+     * The message is not copied, don't change it until the future completes.
+     * Dependent actions of the future run in the thread of the queue,
+     * they should be light, or use async ones.
+     * @param msg pushed message
+     * @param offset offset of the msg
+     * @param len lenght of the msg
+     * @param chkHash If true, will check the message hash code
+     * @param durability NONE, WRITTEN or FSYNC
+     * @return future of the offset
+     */
+    public CompletableFuture<Long> pushAsync(byte[] msg, int offset, int len,
+            boolean chkHash, Durability durability) {
+        return asyncPusher.push(msg, offset, len, chkHash, durability);
+    }
+
+    public CompletableFuture<Long> pushAsync(byte[] msg, Durability durability) {
+        return asyncPusher.push(msg, 0, msg.length, false, durability);
+    }
+
+    public CompletableFuture<Long> pushAsync(byte[] msg) {
+        return asyncPusher.push(msg, 0, msg.length, false, writer.durability());
+    }
+
+    /**
+     * Write message in buffers to file queue, the remaining content of
+     * all buffers are composed into one message, without copying to an array.
+     * Message head and the buffers are written in one gather write,
+     * so direct buffers can reach the file without any memory copy.
+     * Positions of the buffers are not changed.
+     * @param msg buffers of the message
+     * @param chkHash If true, will check the message hash code
+     * @throws FQException write exception
+     */
+    public void push(ByteBuffer[] msg, boolean chkHash) throws FQException {
+        push(msg, chkHash, writer.durability());
+    }
+
+    public void push(ByteBuffer[] msg, boolean chkHash, Durability durability) throws FQException {
+        ByteBuffer[] bufs = new ByteBuffer[msg.length];
+        for(int i = 0; i < msg.length; i++) {
+            bufs[i] = msg[i].duplicate(); //not change the caller's positions
+        }
+        this.writer.write(bufs, chkHash, durability);
+    }
+
+    public void push(ByteBuffer... msg) throws FQException {
+        push(msg, false);
+    }
+
+    public void push(ByteBuffer msg, boolean chkHash) throws FQException {
+        this.writer.write(new ByteBuffer[] {msg.duplicate()}, chkHash);
+    }
+
+    /**
+     * Write a batch of messages to file queue with one write,
+     * consumers are notified once for the whole batch.
+     * The batch can be reused after pushed
+     * @param batch messages
+     * @throws FQException write exception
+     */
+    public void push(MessageBatch batch) throws FQException {
+        this.writer.write(batch);
+    }
+
+    public void push(MessageBatch batch, Durability durability) throws FQException {
+        this.writer.write(batch, durability);
+    }
+
+    /**
+     * Write a list of messages to file queue with one write
+     * @param msgs messages
+     * @param chkHash If true, will check the message hash code
+     * @throws FQException write exception
+     */
+    public void pushBatch(List<byte[]> msgs, boolean chkHash) throws FQException {
+        int len = 0;
+        for(byte[] m : msgs) {
+            len += m.length + Integer.BYTES * 2;
+        }
+        MessageBatch batch = new MessageBatch(len);
+        for(byte[] m : msgs) {
+            batch.add(m, chkHash);
+        }
+        this.writer.write(batch);
+    }
+
+    public void pushBatch(List<byte[]> msgs) throws FQException {
+        pushBatch(msgs, false);
+    }
+
     /**
      * Add a consumer to dispatcher
      * @param name consumer name
@@ -115,9 +283,11 @@ public final class FileQueue implements IFile {
         IReader reader;
         try {
             if(sequential) {
-                reader = new SequentialReader(name, writer, dispatcher, bufferedPoll, bufferedPos, cp);
+                reader = new SequentialReader(name, writer, dispatcher,
+                        bufferedPoll, mappedPoll, lazyVerify, bufferedPos, cp);
             } else {
-                reader = new ConcurrentReader(name, writer, bufferedPoll, bufferedPos, cp);
+                reader = new ConcurrentReader(name, writer,
+                        bufferedPoll, mappedPoll, lazyVerify, bufferViews, bufferPool, bufferedPos, cp);
             }
         } catch(IOException e) {
             throw new FQException(e);
@@ -135,6 +305,43 @@ public final class FileQueue implements IFile {
         addConsumer(name, sequential, InitPosition.CUR, true, handler);
     }
     
+    /**
+     * Add a batch consumer to dispatcher.
+     * Messages are handled in batches, one task for one batch,
+     * batches are handled one by one, until it's confirmed,
+     * the whole batch is confirmed with one position update.
+     * @param name consumer name
+     * @param maxNum max number of messages in a batch
+     * @param maxWait max waiting time(ms) for a batch to be full,
+     *  a batch not full is handled after waiting so long
+     * @param cp Initital position
+     * @param autoConfirm Automatically confirm batches
+     * @param handler batch message handler
+     * @throws FQException wrap of IOException
+     */
+    public synchronized void addBatchConsumer(String name, int maxNum, long maxWait,
+            InitPosition cp, boolean autoConfirm, IBatchMessageHandler handler) throws FQException {
+        if(writer.isClosed()) {
+            throw new FQException("No valid writer,it's closed");
+        }
+        if(maxNum <= 0 || maxWait < 0) {
+            throw new FQException("Invalid batch size " + maxNum + " or waiting time " + maxWait);
+        }
+        IReader reader;
+        try {
+            reader = new BatchReader(name, writer, dispatcher,
+                    bufferedPoll, mappedPoll, lazyVerify, bufferViews, bufferPool, bufferedPos, cp);
+        } catch(IOException e) {
+            throw new FQException(e);
+        }
+        dispatcher.addBatchConsumer(autoConfirm, reader, maxNum, maxWait, handler);
+    }
+    
+    public void addBatchConsumer(String name, int maxNum, long maxWait,
+            IBatchMessageHandler handler) throws FQException {
+        addBatchConsumer(name, maxNum, maxWait, InitPosition.CUR, true, handler);
+    }
+    
 
     /**
      * pause a consumer, not stopped
@@ -174,12 +381,22 @@ public final class FileQueue implements IFile {
     public synchronized void clearConsumers() {
         dispatcher.rmvConsumers(writer.queueName());
     }
+    
+    /**
+     * Useless files are removed in background,
+     * it tells how many files are waiting to be removed
+     * @return number of files
+     */
+    public int pendingDeletes() {
+        return writer.pendingDeletes();
+    }
 
     public synchronized void close() throws IOException {
         if(writer.isClosed()) {
             return;
         }
         LOG.info("Close the queue {}", writer.queueName());
+        asyncPusher.close(); //write all pending messages
         dispatcher.rmvConsumers(writer.queueName());
         //Should be ahead rmvConsumers 
         //because it will remove useless queue files,
@@ -190,10 +407,27 @@ public final class FileQueue implements IFile {
     public static class Builder {
         private final String dir;
         private final String name;
-        private int maxFileSize = DEFAULT_QFILE_SIZE;
+        private long maxFileSize = DEFAULT_QFILE_SIZE;
         private int maxFileNum = DEFAULT_QFILE_NUM;
         private boolean bufferedPush = false;
+        private boolean groupCommit = false;
+        private boolean mappedPush = false;
+        private Durability durability = null;
+        private ICodec codec = null;
         private boolean bufferedPoll = false;
+        private boolean mappedPoll = false;
+        private boolean lazyVerify = false;
+        private boolean bufferViews = false;
+        private BufferPool bufferPool = null;
+        private long readCacheBytes = 0;
+        private int readCacheChunk = ChunkCache.DEFAULT_CHUNK_SIZE;
+        private boolean hotTail = false;
+        private long maxQueueBytes = 0;
+        private long maxLagBytes = 0;
+        private Overflow overflow = Overflow.BLOCK;
+        private long overflowTimeout = DEFAULT_OVERFLOW_TIMEOUT;
+        private String[] dataDirs = null;
+        private Placement placement = Placement.ROUND_ROBIN;
         //save position info into file after updating `posBuffTimes` times
         private int posBuffTimes = 1024;
         private IDispatcher dispatcher;
@@ -210,11 +444,13 @@ public final class FileQueue implements IFile {
         
         /**
          * Set max queue file size.
-         * Too large file is not a good idea, it must be smaller than 4G.
+         * Large files mean less rolling, for high-volume queues,
+         * but useless messages are removed file by file.
+         * It must be smaller than IFile.MAX_FILESIZE(about 1T).
          * @param size File size
          * @return Builder
          */
-        public Builder maxFileSize(int size) {
+        public Builder maxFileSize(long size) {
             this.maxFileSize = size;
             return this;
         }
@@ -258,6 +494,70 @@ public final class FileQueue implements IFile {
             return this;
         }
         
+        /**
+         * Set group commit mode, only valid when bufferedPush is false.
+         * Concurrent pushers append messages into a shared staging buffer,
+         * one of them saves the whole group with one write and one force,
+         * then all of them return. Messages are really saved to disk
+         * when push returns, and concurrent pushers share the cost of force.
+         * @param groupCommit Whether pushed content is saved to disk in groups.
+         * @return Builder
+         */
+        public Builder groupCommit(boolean groupCommit) {
+            this.groupCommit = groupCommit;
+            return this;
+        }
+        
+        /**
+         * Set mapped push mode, only valid when bufferedPush is false.
+         * Queue files are mapped into memory, pushing is only a memory copy,
+         * content is saved to disk by the system, or when flushed.
+         * Messages survive when the process crashed, but not the system.
+         * Don't use it in android, there are compatible problems.
+         * Group commit is ignored in this mode.
+         * @param mappedPush Whether queue files are written by mapping.
+         * @return Builder
+         */
+        public Builder mappedPush(boolean mappedPush) {
+            this.mappedPush = mappedPush;
+            return this;
+        }
+        
+        /**
+         * Set default durability of pushing, it can be changed in each push.
+         * If not set, it's decided by the writing mode,
+         * NONE in bufferedPush mode, FSYNC in groupCommit mode, others WRITTEN.
+         * In groupCommit mode, NONE messages stay in the staging buffer,
+         * WRITTEN ones are written without forcing.
+         * @param durability default durability
+         * @return Builder
+         */
+        public Builder durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+        
+        /**
+         * Compress messages into blocks, for compressible messages,
+         * such as json, when disk bandwidth is the bottleneck.
+         * A block contains the messages written in one write,
+         * so push them in batches, by MessageBatch, pushBatch or pushAsync,
+         * single messages are written as they are if not compressible.
+         * Readers decompress each block once, and find the codec by its id,
+         * the codec is registered in Codecs, so others can read the queue.
+         * The consumed position moves only when a whole block is handled,
+         * so a crash in a block redelivers all messages of it after restart.
+         * @param codec such as new DeflateCodec(), null means no compression
+         * @return Builder
+         */
+        public Builder compression(ICodec codec) {
+            if(codec != null) {
+                Codecs.register(codec);
+            }
+            this.codec = codec;
+            return this;
+        }
+        
         /**
          * Set buffered poll mode.
          * It can improve the poll performance, but it's not obvious when too few queues.
@@ -269,6 +569,149 @@ public final class FileQueue implements IFile {
             return this;
         }
         
+        /**
+         * Set mapped poll mode, it's prior to buffered poll mode.
+         * Queue files are mapped into memory, reading is only a memory copy.
+         * If mappedPush is also set, new messages are found without any io operation.
+         * Don't use it in android, there are compatible problems.
+         * @param mapped Whether queue files are read by mapping.
+         * @return Builder
+         */
+        public Builder mappedPoll(boolean mapped) {
+            this.mappedPoll = mapped;
+            return this;
+        }
+        
+        /**
+         * Set lazy verification of hash codes.
+         * Messages pushed with chkHash are checked when isCorrect is called,
+         * in the handler's thread, so the dispatcher isn't slowed down by checking.
+         * Handlers should call isCorrect, if they care about it.
+         * @param lazy Whether hash codes are checked in handlers.
+         * @return Builder
+         */
+        public Builder lazyVerify(boolean lazy) {
+            this.lazyVerify = lazy;
+            return this;
+        }
+        
+        /**
+         * Deliver messages to concurrent consumers as read-only views,
+         * of mapped files in mappedPoll mode, or else of shared read chunks,
+         * so no array is allocated and copied for each message.
+         * Handlers should use IMessage.buffer(), message() copies it.
+         * A view is valid until IMessage.release() is called,
+         * if autoConfirm, it's released after the handler returns.
+         * Sequential consumers reuse one buffer, they are not affected.
+         * @param views Whether messages are delivered as views.
+         * @return Builder
+         */
+        public Builder bufferViews(boolean views) {
+            this.bufferViews = views;
+            return this;
+        }
+        
+        /**
+         * Read messages of concurrent consumers into pooled buffers,
+         * or into pooled read chunks if bufferViews is set.
+         * A buffer returns to the pool when the message is released,
+         * if autoConfirm, it's released after the handler returns,
+         * or else the handler must call IMessage.release().
+         * Don't use the message after released.
+         * A pool can be shared by many queues, it limits the memory it keeps.
+         * @param pool buffer pool, null means no pooling
+         * @return Builder
+         */
+        public Builder pooledPoll(BufferPool pool) {
+            this.bufferPool = pool;
+            return this;
+        }
+        
+        /**
+         * Read queue files through a cache shared by all consumers of the queue,
+         * it holds fixed-size chunks, the least recently used ones are evicted.
+         * Only the first consumer reading a chunk reads it from disk,
+         * it helps when many consumers read the same files.
+         * It's prior to bufferedPoll, mappedPoll is prior to it.
+         * Each queue has its own cache, partitions too.
+         * If hotTail, the writer copies content into the cache as it appends,
+         * consumers near the tail read new messages from memory without any io,
+         * those lagging beyond the cache read files again.
+         * Then messages may be consumed before they reach the durability level,
+         * like in mappedPush mode.
+         * @param maxBytes max bytes of the cache, 0 means no cache
+         * @param chunkSize size of a chunk
+         * @param hotTail Whether the writer fills the cache
+         * @return Builder
+         */
+        public Builder readCache(long maxBytes, int chunkSize, boolean hotTail) {
+            this.readCacheBytes = maxBytes;
+            this.readCacheChunk = chunkSize;
+            this.hotTail = hotTail;
+            return this;
+        }
+        
+        public Builder readCache(long maxBytes) {
+            return readCache(maxBytes, ChunkCache.DEFAULT_CHUNK_SIZE, false);
+        }
+        
+        /**
+         * Set max size of all queue files, the overflow policy is applied when it's exceeded.
+         * Sizes are counted by files, consumed files are removed when the queue is full,
+         * even if there are less than maxFileNum files.
+         * It should be several times of maxFileSize.
+         * @param bytes max bytes, 0 means no limit
+         * @return Builder
+         */
+        public Builder maxQueueBytes(long bytes) {
+            this.maxQueueBytes = bytes;
+            return this;
+        }
+        
+        /**
+         * Set max lag of the slowest consumer, the overflow policy is applied when it's exceeded.
+         * The lag is counted from the start of the file the consumer is reading,
+         * so it's larger than the real lag by less than maxFileSize.
+         * A queue without consumers has no lag.
+         * @param bytes max bytes, 0 means no limit
+         * @return Builder
+         */
+        public Builder maxLagBytes(long bytes) {
+            this.maxLagBytes = bytes;
+            return this;
+        }
+        
+        /**
+         * Set what to do when maxQueueBytes or maxLagBytes is exceeded.
+         * BLOCK waits for consumers until timeout, then throws FQException;
+         * REJECT throws FQException at once;
+         * DROP_OLDEST removes the oldest files even if they are not consumed.
+         * @param overflow overflow policy
+         * @param timeoutMs max time to block a push, only for BLOCK
+         * @return Builder
+         */
+        public Builder overflow(Overflow overflow, long timeoutMs) {
+            this.overflow = overflow;
+            this.overflowTimeout = timeoutMs;
+            return this;
+        }
+        
+        /**
+         * Place queue files in many dirs, such as dirs on different disks,
+         * so writing and reading old files of lagging consumers use them in parallel.
+         * The manifest and consume positions are still saved in the queue dir,
+         * where each file is placed is recorded in the manifest.
+         * The queue dir is not used for queue files unless it's in dirs.
+         * @param placement ROUND_ROBIN or FREE_SPACE
+         * @param dirs data dirs
+         * @return Builder
+         */
+        public Builder dataDirs(Placement placement, String... dirs) {
+            this.placement = placement;
+            this.dataDirs = dirs;
+            return this;
+        }
+        
         /**
          * Set messages dispatcher
          * @param dispatcher messages dispatcher
@@ -283,6 +726,43 @@ public final class FileQueue implements IFile {
             return new FileQueue(this);
         }
         
+        /**
+         * Copy all settings to a builder of another queue in the same dir
+         * @param name queue name
+         * @return new builder
+         */
+        Builder copy(String name) {
+            Builder b = new Builder(dir, name);
+            b.maxFileSize = maxFileSize;
+            b.maxFileNum = maxFileNum;
+            b.bufferedPush = bufferedPush;
+            b.groupCommit = groupCommit;
+            b.mappedPush = mappedPush;
+            b.durability = durability;
+            b.codec = codec;
+            b.bufferedPoll = bufferedPoll;
+            b.mappedPoll = mappedPoll;
+            b.lazyVerify = lazyVerify;
+            b.bufferViews = bufferViews;
+            b.bufferPool = bufferPool;
+            b.readCacheBytes = readCacheBytes;
+            b.readCacheChunk = readCacheChunk;
+            b.hotTail = hotTail;
+            b.maxQueueBytes = maxQueueBytes;
+            b.maxLagBytes = maxLagBytes;
+            b.overflow = overflow;
+            b.overflowTimeout = overflowTimeout;
+            b.dataDirs = dataDirs;
+            b.placement = placement;
+            b.posBuffTimes = posBuffTimes;
+            b.dispatcher = dispatcher;
+            return b;
+        }
+        
+        String name() {
+            return name;
+        }
+        
         public String queueName() {
             return FileUtil.addPath(dir, name);
         }
@@ -0,0 +1,174 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq;
+
+import java.nio.ByteBuffer;
+
+import cn.net.zhijian.fileq.intf.IFile;
+
+/**
+ * A batch of messages, encoded into one contiguous region,
+ * same as they are saved in the queue file.
+ * So the whole batch is written with one write,
+ * and consumers read them as normal messages.
+ * It can be reused after pushed, call clear before adding new messages.
+ * Not thread safe.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class MessageBatch {
+    private byte[] buf;
+    private int len = 0;
+    private int count = 0;
+    private int last = 0; //position of the last message
+    private long base = -1; //offset where the batch was written
+    private boolean framed = false; //written in a block
+
+    public MessageBatch() {
+        this(IFile.DEFAULT_BUF_LEN * 4);
+    }
+
+    /**
+     * @param capacity initial capacity in bytes, it grows when not enough
+     */
+    public MessageBatch(int capacity) {
+        this.buf = new byte[Math.max(capacity, Integer.BYTES * 2)];
+    }
+
+    /**
+     * Add a message into the batch
+     * @param msg message content
+     * @param offset offset of the message buffer
+     * @param msgLen message length
+     * @param chkHash If true, will check the message hash code
+     * @return this batch
+     * @throws FQException message too long
+     */
+    public MessageBatch add(byte[] msg, int offset, int msgLen, boolean chkHash) throws FQException {
+        if (msgLen > IFile.MAX_MSG_SIZE) {
+            throw new FQException("Msg too long,len:" + msgLen);
+        }
+        int headLen = chkHash ? Integer.BYTES * 2 : Integer.BYTES;
+        ensure(headLen + msgLen);
+        if(chkHash) {
+            IFile.encodeInt(buf, msgLen | IFile.MSG_HASH_FLAG, len);
+            IFile.encodeInt(buf, IFile.crc32c(msg, offset, msgLen), len + Integer.BYTES);
+        } else {
+            IFile.encodeInt(buf, msgLen, len);
+        }
+        System.arraycopy(msg, offset, buf, len + headLen, msgLen);
+        last = len;
+        len += headLen + msgLen;
+        count++;
+        return this;
+    }
+
+    public MessageBatch add(byte[] msg, int offset, int msgLen) throws FQException {
+        return add(msg, offset, msgLen, false);
+    }
+
+    public MessageBatch add(byte[] msg, boolean chkHash) throws FQException {
+        return add(msg, 0, msg.length, chkHash);
+    }
+
+    public MessageBatch add(byte[] msg) throws FQException {
+        return add(msg, 0, msg.length, false);
+    }
+
+    private void ensure(int n) {
+        if(len + n <= buf.length) {
+            return;
+        }
+        int cap = buf.length * 2;
+        if(cap < len + n) {
+            cap = len + n;
+        }
+        byte[] b = new byte[cap];
+        System.arraycopy(buf, 0, b, 0, len);
+        buf = b;
+    }
+
+    /**
+     * Remove all messages, the buffer is kept for reusing
+     */
+    public void clear() {
+        len = 0;
+        count = 0;
+        last = 0;
+        base = -1;
+        framed = false;
+    }
+
+    /**
+     * @return number of messages
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return bytes of the encoded batch, including message headers
+     */
+    public int length() {
+        return len;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Offset of a message after the batch is written.
+     * Messages framed in a block get the offset of the block plus their index,
+     * a block is always longer than its message count, so they never collide;
+     * otherwise, they get their own positions in the file.
+     * @param index index of the message in the batch
+     * @param pos position of the message in the batch, length() before it's added
+     * @return offset of the message(see IFile.offset), -1 if not written
+     */
+    public long offset(int index, int pos) {
+        if(base < 0) {
+            return -1;
+        }
+        return framed ? base + index : base + pos;
+    }
+
+    /**
+     * Called by the writer after the batch is written
+     * @param base offset of the batch
+     * @param framed whether it's framed in a block
+     */
+    void written(long base, boolean framed) {
+        this.base = base;
+        this.framed = framed;
+    }
+
+    /**
+     * @return position of the last message in the batch
+     */
+    int lastPos() {
+        return last;
+    }
+
+    /**
+     * Encoded region of the batch, it's not copied,
+     * so don't change the batch until it has been written
+     * @return buffer wrapping the region
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(buf, 0, len);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IBatchMessageHandler;
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IMessageHandler;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * A logical queue spread over many FileQueues(partitions),
+ * each partition has its own writer and files, so they are written in parallel.
+ * Messages are routed by the hash code of their keys,
+ * messages of one key are always in one partition, so they are in order.
+ * Partitions are named with 'name' + '-' + index, in the same dir.
+ * Don't change the number of partitions of an existing queue,
+ * or messages of a key may be routed to another partition,
+ * then they are not in order any more.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class PartitionedFileQueue implements IFile {
+    private static final Logger LOG = LogUtil.getInstance();
+
+    private final FileQueue[] partitions;
+    public final String name;
+
+    /**
+     * Create all partitions by the builder,
+     * the dispatcher of the builder must be set
+     * @param builder settings of all partitions
+     * @param num number of partitions
+     * @throws FQException fail to create a partition
+     */
+    PartitionedFileQueue(FileQueue.Builder builder, int num) throws FQException {
+        if(num <= 0) {
+            throw new FQException("Invalid partition number " + num);
+        }
+        this.name = builder.queueName();
+        this.partitions = new FileQueue[num];
+        try {
+            for(int i = 0; i < num; i++) {
+                partitions[i] = builder.copy(partitionName(builder.name(), i)).build();
+            }
+        } catch(FQException e) {
+            for(FileQueue fq : partitions) {
+                if(fq != null) {
+                    FileUtil.closeQuietly(fq::close);
+                }
+            }
+            throw e;
+        }
+        LOG.debug("Create partitioned queue `{}` with {} partitions", name, num);
+    }
+
+    static String partitionName(String name, int index) {
+        return name + '-' + index;
+    }
+
+    /**
+     * Partition of the key, spread the hash code like HashMap,
+     * so keys differing only in high bits are not in one partition
+     * @param key message key
+     * @return index of the partition
+     */
+    public int partitionOf(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return Math.floorMod(h ^ (h >>> 16), partitions.length);
+    }
+
+    public int partitionOf(String key) {
+        return partitionOf(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get a partition, use it to push by other ways, such as batches
+     * @param index index of the partition
+     * @return partition queue
+     */
+    public FileQueue partition(int index) {
+        return partitions[index];
+    }
+
+    public int partitionNum() {
+        return partitions.length;
+    }
+
+    /**
+     * Write message to the partition of the key,
+     * pushers of different partitions never wait for each other
+     * @param key message key, messages of one key are in order
+     * @param msg pushed message
+     * @param offset offset of the msg
+     * @param len lenght of the msg
+     * @param chkHash If true, will check the message hash code
+     * @param durability NONE, WRITTEN or FSYNC
+     * @throws FQException write exception
+     */
+    public void push(byte[] key, byte[] msg, int offset, int len, boolean chkHash,
+            Durability durability) throws FQException {
+        partitions[partitionOf(key)].push(msg, offset, len, chkHash, durability);
+    }
+
+    public void push(byte[] key, byte[] msg, boolean chkHash) throws FQException {
+        partitions[partitionOf(key)].push(msg, chkHash);
+    }
+
+    public void push(byte[] key, byte[] msg) throws FQException {
+        partitions[partitionOf(key)].push(msg);
+    }
+
+    public void push(String key, byte[] msg) throws FQException {
+        partitions[partitionOf(key)].push(msg);
+    }
+
+    /**
+     * Write message to the partition of the key asynchronously,
+     * see FileQueue.pushAsync
+     * @param key message key
+     * @param msg pushed message
+     * @return future of the offset in the partition
+     */
+    public CompletableFuture<Long> pushAsync(byte[] key, byte[] msg) {
+        return partitions[partitionOf(key)].pushAsync(msg);
+    }
+
+    public CompletableFuture<Long> pushAsync(String key, byte[] msg) {
+        return partitions[partitionOf(key)].pushAsync(msg);
+    }
+
+    /**
+     * Add a consumer to all partitions, the handler is shared by them.
+     * Partitions are dispatched independently, so messages of different
+     * partitions are handled concurrently, even if it's sequential.
+     * If sequential, messages of one partition are handled one by one,
+     * so messages of one key are handled in order.
+     * reader.queueName() tells which partition the message belongs to.
+     * @param name consumer name
+     * @param sequential handle messages of a partition one by one or not
+     * @param cp Initital position
+     * @param autoConfirm Automatically confirm messages
+     * @param handler message handler, called in many threads at the same time
+     * @throws FQException wrap of IOException
+     */
+    public synchronized void addConsumer(String name, boolean sequential,
+            InitPosition cp, boolean autoConfirm, IMessageHandler handler) throws FQException {
+        for(FileQueue fq : partitions) {
+            fq.addConsumer(name, sequential, cp, autoConfirm, handler);
+        }
+    }
+
+    public void addConsumer(String name, boolean sequential,
+            IMessageHandler handler) throws FQException {
+        addConsumer(name, sequential, InitPosition.CUR, true, handler);
+    }
+
+    /**
+     * Add a batch consumer to all partitions, see FileQueue.addBatchConsumer.
+     * Each partition collects its own batches
+     * @param name consumer name
+     * @param maxNum max number of messages in a batch
+     * @param maxWait max waiting time(ms) for a batch to be full
+     * @param handler batch handler, called in many threads at the same time
+     * @throws FQException wrap of IOException
+     */
+    public synchronized void addBatchConsumer(String name, int maxNum, long maxWait,
+            IBatchMessageHandler handler) throws FQException {
+        for(FileQueue fq : partitions) {
+            fq.addBatchConsumer(name, maxNum, maxWait, handler);
+        }
+    }
+
+    public void pauseConsumer(String consumer) {
+        for(FileQueue fq : partitions) {
+            fq.pauseConsumer(consumer);
+        }
+    }
+
+    public void continueConsumer(String consumer) {
+        for(FileQueue fq : partitions) {
+            fq.continueConsumer(consumer);
+        }
+    }
+
+    public synchronized void rmvConsumer(String name) {
+        for(FileQueue fq : partitions) {
+            fq.rmvConsumer(name);
+        }
+    }
+
+    public synchronized void clearConsumers() {
+        for(FileQueue fq : partitions) {
+            fq.clearConsumers();
+        }
+    }
+
+    public int pendingDeletes() {
+        int n = 0;
+        for(FileQueue fq : partitions) {
+            n += fq.pendingDeletes();
+        }
+        return n;
+    }
+
+    /**
+     * Close all partitions, even if some of them failed
+     * @throws IOException the first exception
+     */
+    public synchronized void close() throws IOException {
+        IOException err = null;
+        for(FileQueue fq : partitions) {
+            try {
+                fq.close();
+            } catch(IOException e) {
+                LOG.error("Fail to close partition {}", fq.name, e);
+                if(err == null) {
+                    err = e;
+                }
+            }
+        }
+        if(err != null) {
+            throw err;
+        }
+    }
+}
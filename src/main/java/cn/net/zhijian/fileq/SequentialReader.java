@@ -47,6 +47,9 @@ final class SequentialReader extends ConcurrentReader {
     private final IDispatcher dispatcher;
 
     private final SequentialMessage msg = new SequentialMessage(DEFAULT_BUF_LEN);
+    private IMessage last; //the last message, it may be a chunked message
+    //first file of the chunked message not confirmed, it may be handled again
+    private volatile int pinnedFileNo = Integer.MAX_VALUE;
     private MsgState state = MsgState.IDLE;
     
     /**
@@ -54,14 +57,17 @@ final class SequentialReader extends ConcurrentReader {
      * @param writer Message writer
      * @param dispatcher Message dispatcher
      * @param buffered Buffered mode
+     * @param mapped Read files by mapping, it's prior to buffered mode
+     * @param lazyVerify Check hash codes when isCorrect is called, not in the dispatcher
      * @param bufferedPos
      *  Save consume-position to disk after `bufferedPos` times updating
      * @param pos Initial position(CUR,HEAD,END)
      * @throws IOException io exception when open the queue
      */
     public SequentialReader(String name, IWriter writer, IDispatcher dispatcher,
-            boolean buffered, int bufferedPos, InitPosition pos) throws IOException {
-        super(name, writer, buffered, bufferedPos, pos);
+            boolean buffered, boolean mapped, boolean lazyVerify,
+            int bufferedPos, InitPosition pos) throws IOException {
+        super(name, writer, buffered, mapped, lazyVerify, false, null, bufferedPos, pos); //buffer is reused, no views
         this.dispatcher = dispatcher;
     }
 
@@ -91,14 +97,20 @@ final class SequentialReader extends ConcurrentReader {
                 //sometimes get unexpected content.
                 //In ConcurrentRead, there's no chance to undo the mistake after happened
                 msg = super.reRead();
+                last = msg;
             } else {
-                msg = this.msg; //return old message again
+                msg = last; //return old message again
             }
-            state = MsgState.WAITCONFIRM;
+            //nothing to confirm if fail to reread, retry later
+            state = msg != null ? MsgState.WAITCONFIRM : MsgState.FAILED;
         } else {
             retryInterval = MIN_RETRY_INTERVAL;
             retriedAt = System.currentTimeMillis();
             msg = super.read();
+            last = msg;
+            if(msg instanceof ChunkedMessage) {
+                pinnedFileNo = ((ChunkedMessage)msg).firstFileNo();
+            }
             state = msg != null ? MsgState.WAITCONFIRM : MsgState.IDLE;
         }
 
@@ -118,13 +130,29 @@ final class SequentialReader extends ConcurrentReader {
         return msg;
     }
     
+    @Override
+    protected IMessage generateMessage(int len, byte[] content, int hashCode, int ver) {
+        msg.verifyLater(hashCode, ver);
+        return msg;
+    }
+    
+    /**
+     * Files of the chunked message are kept until it's confirmed,
+     * even if its streams are closed, because it may be handled again
+     */
+    @Override
+    public int curFileNo() {
+        return Math.min(super.curFileNo(), pinnedFileNo);
+    }
+    
     @Override
     public void confirm(boolean ok) {
         if(ok) {
+            pinnedFileNo = Integer.MAX_VALUE;
             state = MsgState.IDLE;
             failedTimes = 0; //blocked at the failed one, so directly set to 0 when ok
             if(qFile != null) {
-                this.consumeState.save(qFile.readPos(), false);
+                this.consumeState.save(readPos(), false);
             }
         } else{
             state = MsgState.FAILED;
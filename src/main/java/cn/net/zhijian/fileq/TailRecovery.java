@@ -0,0 +1,212 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.io.Manifest;
+import cn.net.zhijian.fileq.util.Codecs;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Recover a queue file which was not closed normally,
+ * such as the writing file when the process crashed or the power lost.
+ * Its tail may be a partial header or a partial message,
+ * validate records one by one from the checkpoint in the manifest,
+ * and truncate the file at the end of the last valid record,
+ * so readers never see torn data.
+ * Blocks are checked by their headers and checksums, not decompressed.
+ * A mapped file keeps zeros after its content when crashed,
+ * they are parsed as empty messages, so in mapped mode, a run of
+ * empty messages at the end is truncated too, empty messages
+ * pushed just before the crash may be lost with them.
+ * In other modes, empty messages are kept.
+ * @author flyinmind of csdn.net
+ *
+ */
+final class TailRecovery implements IFile {
+    private static final Logger LOG = LogUtil.getInstance();
+
+    private TailRecovery() {
+    }
+
+    /**
+     * Validate and truncate the file, then seal the segment
+     * @param file queue file
+     * @param s segment of the file, updated to the recovered state
+     * @param mapped whether the file was written by MappedOutputStream
+     * @return bytes removed from the file
+     */
+    static long recover(File file, Manifest.Segment s, boolean mapped) {
+        long len = file.length();
+        long pos = s.size;
+        int msgNum = s.msgNum;
+        long first = s.firstOffset;
+        long last = s.lastOffset;
+        int chunkFrom = s.chunkFrom;
+        if(pos < FILE_HEAD_LEN || pos > len || msgNum < 0) {
+            //no checkpoint, or content before the checkpoint lost
+            pos = FILE_HEAD_LEN;
+            msgNum = 0;
+            first = -1;
+            last = -1;
+            chunkFrom = s.fileNo;
+        }
+        long from = pos;
+
+        //state before a run of empty messages
+        long zeroPos = -1;
+        int zeroMsgNum = 0;
+        long zeroLast = -1;
+        long zeroFirst = -1;
+        String reason = null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel fc = raf.getChannel();
+            raf.seek(MAGIC.length);
+            int ver = raf.read();
+            int blockHeadLen = ver >= VER_BATCH ? BLOCK_HEAD_LEN : BLOCK_HEAD_LEN_V2;
+            Checksum crc = ver > VER_BATCH ? new CRC32C() : new CRC32();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(fc.position(pos)), DEFAULT_BUF_LEN * 64));
+            byte[] content = new byte[DEFAULT_BUF_LEN];
+
+            while(len - pos >= Integer.BYTES) {
+                int lenFlag = in.readInt();
+                boolean isBlock = (lenFlag & BLOCK_FLAG) != 0;
+                boolean chkHash = (lenFlag & MSG_HASH_FLAG) != 0;
+                int l = lenFlag & MSG_LEN_MASK;
+                int headLen = chkHash ? Integer.BYTES * 2 : Integer.BYTES;
+                if(isBlock ? (chkHash || l < blockHeadLen || l > MAX_BLOCK_SIZE + blockHeadLen)
+                           : l > MAX_MSG_SIZE) {
+                    reason = "invalid length " + Integer.toHexString(lenFlag);
+                    break;
+                }
+                if(pos + headLen + l > len) {
+                    reason = "partial message";
+                    break;
+                }
+                int hashCode = chkHash ? in.readInt() : 0;
+                if(content.length < l) {
+                    content = new byte[Math.max(l, content.length * 2)];
+                }
+                in.readFully(content, 0, l);
+                if(chkHash && hashCode != IFile.checksum(ver, content, 0, l)) {
+                    reason = "wrong hash code";
+                    break;
+                }
+                int count = 1;
+                if(isBlock) { //codec(1) + count(4) + rawLen(4) [+ ... + checksum(4)]
+                    int codecId = content[0] & 0xff;
+                    count = IFile.parseInt(content, 1);
+                    int rawLen = IFile.parseInt(content, 1 + Integer.BYTES);
+                    //a codec not registered is not a corruption, the checksum tells it
+                    if((codecId == CODEC_NONE ? rawLen != l - blockHeadLen
+                            : blockHeadLen != BLOCK_HEAD_LEN && Codecs.get(codecId) == null)
+                       || count <= 0 || rawLen <= 0 || rawLen > MAX_BLOCK_SIZE) {
+                        reason = "invalid block";
+                        break;
+                    }
+                    if(blockHeadLen == BLOCK_HEAD_LEN) {
+                        crc.reset();
+                        crc.update(content, blockHeadLen, l - blockHeadLen);
+                        if((int)crc.getValue() != IFile.parseInt(content, blockHeadLen - Integer.BYTES)) {
+                            reason = "wrong block checksum";
+                            break;
+                        }
+                    }
+                } else if((lenFlag & MSG_CHUNK_FLAG) != 0) { //msgId(8) + index(4) + ...
+                    if(l < CHUNK_HEAD_LEN) {
+                        reason = "invalid chunk";
+                        break;
+                    }
+                    if((IFile.parseInt(content, Long.BYTES) & CHUNK_LAST) == 0) {
+                        count = 0; //only the trailer is a message
+                    } else if(l == CHUNK_TRAILER_LEN) {
+                        long firstChunk = IFile.parseLong(content, CHUNK_HEAD_LEN);
+                        if(firstChunk >= 0) {
+                            chunkFrom = Math.min(IFile.offsetFileNo(firstChunk), chunkFrom);
+                        }
+                    }
+                }
+
+                if(lenFlag == 0 && mapped) {
+                    if(zeroPos < 0) {
+                        zeroPos = pos;
+                        zeroMsgNum = msgNum;
+                        zeroFirst = first;
+                        zeroLast = last;
+                    }
+                } else {
+                    zeroPos = -1;
+                }
+                if(first < 0) {
+                    first = IFile.offset(s.fileNo, pos);
+                }
+                last = IFile.offset(s.fileNo, pos);
+                msgNum += count;
+                pos += headLen + l;
+            }
+
+            if(zeroPos >= 0) { //zeros left by mapping, not messages
+                pos = zeroPos;
+                msgNum = zeroMsgNum;
+                first = zeroFirst;
+                last = zeroLast;
+            } else if(reason == null && pos < len) {
+                reason = "partial header";
+            }
+            if(pos < len) {
+                fc.truncate(pos);
+                fc.force(true);
+            }
+        } catch(IOException e) {
+            LOG.error("Fail to recover {} from {}", file, from, e);
+            s.msgNum = -1;
+            s.size = len;
+            s.sealed = true;
+            return 0;
+        }
+
+        long removed = len - pos;
+        if(removed > 0) {
+            if(reason != null) {
+                LOG.warn("Recover {}, {} bytes lost at {}, {}", file, removed, pos, reason);
+            } else {
+                LOG.info("Recover {}, {} zero bytes removed at {}", file, removed, pos);
+            }
+        }
+        s.size = pos;
+        s.msgNum = msgNum;
+        s.firstOffset = first;
+        s.lastOffset = last;
+        s.chunkFrom = chunkFrom;
+        s.sealed = true;
+        return removed;
+    }
+}
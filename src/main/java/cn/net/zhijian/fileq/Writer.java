@@ -17,43 +17,165 @@ package cn.net.zhijian.fileq;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
 
 import org.slf4j.Logger;
 
+import cn.net.zhijian.fileq.intf.ICodec;
 import cn.net.zhijian.fileq.intf.IDispatcher;
 import cn.net.zhijian.fileq.intf.IFile;
 import cn.net.zhijian.fileq.intf.IOutputStream;
 import cn.net.zhijian.fileq.intf.IWriter;
 import cn.net.zhijian.fileq.io.FastInputStream;
 import cn.net.zhijian.fileq.io.FastOutputStream;
+import cn.net.zhijian.fileq.io.GroupOutputStream;
+import cn.net.zhijian.fileq.io.Manifest;
+import cn.net.zhijian.fileq.io.MappedOutputStream;
 import cn.net.zhijian.fileq.io.SafeOutputStream;
+import cn.net.zhijian.fileq.io.TailOutputStream;
+import cn.net.zhijian.fileq.util.ChunkCache;
 import cn.net.zhijian.fileq.util.FileUtil;
 import cn.net.zhijian.fileq.util.LogUtil;
 
 /**
- * Write messages to files
+ * Write messages to files.
+ * Pushers don't write files directly, they claim slots in a ring,
+ * encode message headers into their slots without any lock,
+ * then one of them drains published slots to the file in one gather-write,
+ * message bodies are not copied.
+ * A pusher preempted before publishing doesn't block others,
+ * the drainer skips its slot, and write it in the next round.
+ * The next file is prepared in background,
+ * so rolling files is only a swap of streams,
+ * useless files are also removed in background.
  * @author flyinmind of csdn.net
  *
  */
 final class Writer implements IWriter {
     private static final Logger LOG = LogUtil.getInstance();
+    private static final int RING_SIZE = 256; //must be power of 2
+    private static final int MAX_DRAIN_BYTES = 256 * 1024;
+    //spinning is useless when only one processor
+    private static final int SPIN_TIMES = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+    private static final int YIELD_TIMES = SPIN_TIMES + 64;
+    private static final long PARK_TIME = 20L * 1000; //20 microseconds
+    private static final long MAX_PARK_TIME = 1000L * 1000; //1 millisecond
+    private static final long CHECKPOINT_INTERVAL = 1000; //ms
+    private static final long MAX_MAP_SIZE = 1L << 30; //mapped region of a large file
+    private static final int MIN_COMPRESS_LEN = 64;
+    private static final long LAG_CHECK_INTERVAL = 100; //ms
+    private static final int TAIL_FILE_NUM = 2; //files recovered when the manifest is lost
+    //framing of drained messages
+    private static final int PLAIN = 0; //written as they are
+    private static final int BATCHED = 1; //block header in gather[0]
+    private static final int COMPRESSED = 2; //whole block in block[0]
     
     private final String dir;
+    private final String[] dirs; //dirs[0] is the queue dir, others are data dirs
+    private final int[] dataDirs; //indexes of dirs new files are placed in
+    private final Placement placement;
+    private final ChunkCache chunkCache; //shared by readers, null if not enabled
     private final String name;
     private final String queueName;
-    private final int maxFileSize;
+    private final long maxFileSize;
     private final int maxFileNum;
     private final IDispatcher dispatcher;
     private final boolean buffered;
-    private final List<File> failToDelFiles = new ArrayList<>();
+    private final boolean groupCommit;
+    private final boolean mapped;
+    private final Durability durability;
+    private final ICodec codec;
+    //limits of the queue, 0 means no limit
+    private final long maxQueueBytes;
+    private final long maxLagBytes;
+    private final Overflow overflow;
+    private final long overflowTimeout; //ms
+    private volatile long storedBytes = 0; //size of full files, updated when files roll or are removed
+    private volatile long consumedBytes = 0; //size of files before the slowest consumer's one
+    private volatile long lagCheckTime = 0;
+    private final AtomicInteger overflowing = new AtomicInteger(0); //pushers blocked by the limits
+    private final List<File> failToDelFiles = new ArrayList<>(); //only used by janitor
+    private volatile int failToDelNum = 0;
+    private final AtomicBoolean removing = new AtomicBoolean(false); //janitor is scheduled
 
     private final AtomicInteger curFileNo = new AtomicInteger(0);
     private final AtomicInteger minFileNo = new AtomicInteger(Integer.MAX_VALUE);
     private volatile IOutputStream qFile;
-    private byte[] msgBuf = new byte[DEFAULT_BUF_LEN];
+    private volatile Writing writing; //qFile and its number, published together for readers
+    private NextFile nextFile; //prepared next file, only used by drainer
+
+    private final Slot[] slots = new Slot[RING_SIZE];
+    private final AtomicLong claimed = new AtomicLong(0); //next sequence to claim
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile long drainFrom = 0; //slots before it have all been written
+    private final long[] drainSeqs = new long[RING_SIZE]; //only used by drainer
+    private ByteBuffer[] gather = new ByteBuffer[RING_SIZE * 2]; //only used by drainer
+    private boolean fsyncInFile = false; //FSYNC messages written in the file, only used by drainer
+    //buffers of blocks, only used by drainer
+    private final byte[] blockHead = new byte[Integer.BYTES + BLOCK_HEAD_LEN];
+    private final ByteBuffer blockHeadBuf = ByteBuffer.wrap(blockHead);
+    private final CRC32C crc = new CRC32C();
+    private byte[] raw = new byte[0];
+    private byte[] packed = new byte[0];
+    private final ByteBuffer[] block = new ByteBuffer[1];
+    //state of the writing file, only used by drainer
+    private int msgNum = 0;
+    private long firstOffset = -1;
+    private long lastOffset = -1;
+    private long checkpointSize = 0;
+    private long checkpointTime = 0;
+    //first file of chunked messages whose trailers are in the writing file, written by drainer
+    private volatile int chunkFrom = Integer.MAX_VALUE;
+    private final Manifest manifest;
+    //chunked messages being written, msgId -> file of the first chunk
+    private final Map<Long, Integer> chunking = new ConcurrentHashMap<>();
+    private final AtomicLong chunkIds = new AtomicLong(System.currentTimeMillis() << 16);
+
+    /**
+     * A slot in the ring.
+     * Claimed by a pusher, published after its header encoded,
+     * then written by the drainer, at last released by the pusher.
+     */
+    private static final class Slot {
+        final byte[] head = new byte[Integer.BYTES * 2];
+        final ByteBuffer headBuf = ByteBuffer.wrap(head);
+        ByteBuffer[] body;
+        int len;
+        int count; //number of messages
+        int lastPos; //position of the last message in the content
+        //-1: not a chunk; Integer.MAX_VALUE: a chunk; else a trailer, file of its first chunk
+        int chunkFrom;
+        boolean fsync;
+        volatile long published = -1; //sequence of the message in the slot
+        volatile long drained = -1; //sequence of the message written
+        volatile long free; //sequence which can claim the slot
+        volatile Thread waiter; //pusher waiting for the slot to be drained
+        //set by drainer
+        IOutputStream stream;
+        int fileNo;
+        long pos; //position of the content in the file
+        boolean blocked; //framed in a block with others
+        long end;
+        Exception error;
+        
+        Slot(long free) {
+            this.free = free;
+        }
+    }
 
     /**
      *
@@ -62,14 +184,36 @@ final class Writer implements IWriter {
      * @param maxFileSize max queue file size
      * @param maxFileNum max queue file num, if exceed it, queue will discard useless files
      * @param buffered use buffed output stream or not
+     * @param groupCommit save messages to disk in groups, ignored in buffered mode
+     * @param mapped write messages into memory mapped files, ignored in buffered mode
+     * @param durability default durability, if null, decided by the writing mode
+     * @param codec compress messages into blocks by the codec, null means no compression
+     * @param maxQueueBytes max size of all queue files, 0 means no limit
+     * @param maxLagBytes max size from the slowest consumer to the end, 0 means no limit
+     * @param overflow what to do when a limit is exceeded, if null, BLOCK
+     * @param overflowTimeout max time to block pushers, in milliseconds
+     * @param dataDirs dirs to place queue files in, if empty, only the queue dir
+     * @param placement how to place new files in data dirs, if null, ROUND_ROBIN
      * @param dispatcher queue dispatcher, many queues can share one dispatcher
      * @throws FQException filequeue exception
      */
-    public Writer(String dir, String name, int maxFileSize, int maxFileNum,
-            boolean buffered, IDispatcher dispatcher) throws FQException {
+    public Writer(String dir, String name, long maxFileSize, int maxFileNum,
+            boolean buffered, boolean groupCommit, boolean mapped,
+            Durability durability, ICodec codec,
+            long maxQueueBytes, long maxLagBytes, Overflow overflow, long overflowTimeout,
+            String[] dataDirs, Placement placement, ChunkCache chunkCache,
+            IDispatcher dispatcher) throws FQException {
         if (maxFileSize < MIN_FILESIZE) {
             throw new FQException("maxFileSize too small");
         }
+        if (maxFileSize > MAX_FILESIZE) {
+            throw new FQException("maxFileSize too large");
+        }
+        //sizes are counted by files, the writing file can't be removed
+        if ((maxQueueBytes > 0 && maxQueueBytes < maxFileSize * 2)
+            || (maxLagBytes > 0 && maxLagBytes < maxFileSize * 2)) {
+            throw new FQException("Queue limits must be at least 2 times of maxFileSize");
+        }
         
         if (dispatcher == null) {
             throw new FQException("dispatcher must be set");
@@ -79,16 +223,56 @@ final class Writer implements IWriter {
         this.maxFileSize = maxFileSize;
         this.dir = dir;
         this.buffered = buffered;
-        File f = new File(dir);
-        if (!f.exists()) {
-            LOG.info("Make dirs {}", dir);
-            if(!f.mkdirs()) {
-                throw new FQException("Fail to create dir " + dir);
+        this.mapped = !buffered && mapped;
+        this.groupCommit = !buffered && !mapped && groupCommit;
+        if(durability != null) {
+            this.durability = durability;
+        } else if(this.buffered) {
+            this.durability = Durability.NONE;
+        } else if(this.groupCommit) {
+            this.durability = Durability.FSYNC;
+        } else {
+            this.durability = Durability.WRITTEN;
+        }
+        this.codec = codec;
+        this.maxQueueBytes = Math.max(maxQueueBytes, 0);
+        this.maxLagBytes = Math.max(maxLagBytes, 0);
+        this.overflow = overflow != null ? overflow : Overflow.BLOCK;
+        this.overflowTimeout = overflowTimeout;
+        this.placement = placement != null ? placement : Placement.ROUND_ROBIN;
+        this.chunkCache = chunkCache;
+        List<String> dd = new ArrayList<>();
+        dd.add(dir);
+        int[] idx = new int[dataDirs == null || dataDirs.length == 0 ? 1 : dataDirs.length];
+        for(int i = 0; dataDirs != null && i < dataDirs.length; i++) {
+            int n = indexOfDir(dd, dataDirs[i]); //the queue dir can be a data dir too
+            if(n < 0) {
+                n = dd.size();
+                dd.add(dataDirs[i]);
+            }
+            idx[i] = n;
+        }
+        if (dd.size() > 255) {
+            throw new FQException("Too many data dirs");
+        }
+        this.dirs = dd.toArray(new String[0]);
+        this.dataDirs = idx;
+        for(String d : this.dirs) {
+            File f = new File(d);
+            if (!f.exists()) {
+                LOG.info("Make dirs {}", d);
+                if(!f.mkdirs()) {
+                    throw new FQException("Fail to create dir " + d);
+                }
             }
         }
         this.name = name;
         this.queueName = FileUtil.addPath(this.dir, this.name);
         this.dispatcher = dispatcher;
+        this.manifest = new Manifest(new File(FileUtil.addPath(dir, name + ".manifest")));
+        for(int i = 0; i < RING_SIZE; i++) {
+            slots[i] = new Slot(i);
+        }
 
         try {
             init();
@@ -98,56 +282,146 @@ final class Writer implements IWriter {
     }
 
     private void init() throws IOException {
-        File ff = new File(dir);
-        //list all files which name likes name + '.' + num
-        File[] files = ff.listFiles((d, n) -> n.matches(name + "\\.\\d+"));
-
-        int fileNum = 0;
-        
-        /*
-         * Trace all valid queue files
-         * to find the minimum and maximum fileNo
-         */        
-        if(files != null && files.length > 0) {
-            int ver;
-            int no;
-            byte[] head = new byte[FILE_HEAD_LEN];
-            
-            for (File f : files) {
-                try (FastInputStream qis = new FastInputStream(f)) {
-                    qis.read(head);
-                    ver = 0xff & ((int)head[MAGIC.length]);
-                    if (ver == VER && IFile.byteArrayEquals(head, 0, MAGIC, 0, MAGIC.length)) {
-                        no = IFile.parseInt(head, MAGIC.length + 1);
-                        if (this.minFileNo.get() > no) {
-                            this.minFileNo.set(no);
-                        }
-                        if (this.curFileNo.get() < no) {
-                            this.curFileNo.set(no);
-                        }
-                        fileNum++;
-                    }
-                } catch (Exception e) {
-                    LOG.error("Fail to read {}", f, e);
-                }
-            }
+        int fileNum = loadManifest();
+        if(fileNum < 0) {
+            fileNum = scanFiles();
         }
 
         if (fileNum > 0) {
+            if(curFileNo.get() >= MAX_FILE_NO) { //the last file can't be appended, it's truncated when opened
+                throw new IOException("Queue " + queueName + " reaches the max file number " + MAX_FILE_NO);
+            }
             curFileNo.incrementAndGet();// move to the next one, no matter whether it is full or not
         } else {
             minFileNo.set(0);
             curFileNo.set(0);
         }
         qFile = open(curFileNo.get());
+        writing = new Writing(curFileNo.get(), qFile);
+        manifest.add(new Manifest.Segment(curFileNo.get(), dirOf(qFile.file())));
+        manifest.saveQuietly();
+        storedBytes = manifest.bytesBefore(curFileNo.get());
+        prepareNext(curFileNo.get() + 1);
+    }
+    
+    /**
+     * Find the minimum and maximum fileNo from the manifest,
+     * then check files around them,
+     * because it may crash before the manifest is saved.
+     * @return number of files, -1 if the manifest is missing or corrupt
+     */
+    private int loadManifest() {
+        Manifest m = Manifest.load(manifest.file());
+        if(m == null || m.isEmpty()) {
+            return -1;
+        }
+        int min = m.minFileNo();
+        int max = m.maxFileNo();
+        //files created after the manifest saved
+        File next;
+        while(fileNoOf(next = new File(queueFileName(max + 1))) == max + 1) {
+            max++;
+            m.add(new Manifest.Segment(max, dirOf(next)));
+        }
+        //files removed after the manifest saved
+        while(min < max && !new File(queueFileName(min)).exists()) {
+            min++;
+        }
+        m.removeBefore(min);
+        
+        for(Manifest.Segment s : m.segments()) {
+            if(!s.sealed) { //the writing file when stopped
+                TailRecovery.recover(new File(queueFileName(s.fileNo)), s, mapped);
+            }
+            manifest.add(s);
+        }
+        minFileNo.set(min);
+        curFileNo.set(max);
+        return max - min + 1;
+    }
+    
+    /**
+     * Trace all valid queue files to find the minimum and maximum fileNo,
+     * and rebuild the manifest
+     * @return number of files
+     */
+    private int scanFiles() {
+        TreeMap<Integer, File> valid = new TreeMap<>();
+        for(String d : dirs) {
+            //list all files which name likes name + '.' + num
+            File[] files = new File(d).listFiles((p, n) -> n.matches(name + "\\.\\d+"));
+            if(files == null || files.length == 0) {
+                continue;
+            }
+            
+            LOG.info("Scan queue files of {} in {}", queueName, d);
+            for (File f : files) {
+                int no = fileNoOf(f);
+                if(no >= 0) {
+                    valid.put(no, f);
+                }
+            }
+        }
+        if(valid.isEmpty()) {
+            return 0;
+        }
+        
+        int max = valid.lastKey();
+        valid.forEach((no, f) -> {
+            Manifest.Segment s;
+            //the next file is created in background, so the writing one
+            //may be the last but one, both of them are recovered
+            if(no > max - TAIL_FILE_NUM) {
+                s = new Manifest.Segment(no, dirOf(f));
+                TailRecovery.recover(f, s, mapped);
+            } else {
+                long len = f.length();
+                //files referred by chunked messages are unknown, only the last ones are checked
+                s = new Manifest.Segment(no, len, len > FILE_HEAD_LEN ? -1 : 0, -1, -1, true, no, dirOf(f));
+            }
+            manifest.add(s);
+        });
+        minFileNo.set(valid.firstKey());
+        curFileNo.set(valid.lastKey());
+        return valid.size();
+    }
+    
+    /**
+     * Read the file number from the header of a queue file
+     * @param f queue file
+     * @return file number, -1 if it's not a valid queue file
+     */
+    private static int fileNoOf(File f) {
+        if(f.length() < FILE_HEAD_LEN) {
+            return -1;
+        }
+        byte[] head = new byte[FILE_HEAD_LEN];
+        try (FastInputStream qis = new FastInputStream(f, FILE_HEAD_LEN)) {
+            qis.read(head);
+            int ver = 0xff & ((int)head[MAGIC.length]);
+            if (IFile.isValidVer(ver) && IFile.byteArrayEquals(head, 0, MAGIC, 0, MAGIC.length)) {
+                return IFile.parseInt(head, MAGIC.length + 1);
+            }
+        } catch (Exception e) {
+            LOG.error("Fail to read {}", f, e);
+        }
+        return -1;
     }
 
     private IOutputStream open(int fileNo) throws IOException {
         IOutputStream qFile;
+        File file = new File(FileUtil.addPath(dirs[placeFile(fileNo)], name + '.' + fileNo));
         if(this.buffered) {
-            qFile = new FastOutputStream(new File(queueFileName(fileNo)));
+            qFile = new FastOutputStream(file);
+        } else if(this.mapped) {
+            qFile = new MappedOutputStream(file, (int)Math.min(maxFileSize, MAX_MAP_SIZE));
+        } else if(this.groupCommit) {
+            qFile = new GroupOutputStream(file);
         } else {
-            qFile = new SafeOutputStream(new File(queueFileName(fileNo)));
+            qFile = new SafeOutputStream(file);
+        }
+        if(chunkCache != null && chunkCache.hotTail()) {
+            qFile = new TailOutputStream(qFile, fileNo, chunkCache);
         }
         byte[] content = new byte[FILE_HEAD_LEN];
         System.arraycopy(MAGIC, 0, content, 0, MAGIC.length);
@@ -159,15 +433,101 @@ final class Writer implements IWriter {
         return qFile;
     }
     
-    private void removeFiles(int lastestFileNo) {
+    /**
+     * Choose a data dir for a new file
+     * @param fileNo file number
+     * @return index of the dir
+     */
+    private int placeFile(int fileNo) {
+        if(dataDirs.length == 1) {
+            return dataDirs[0];
+        }
+        if(placement == Placement.FREE_SPACE) {
+            int best = dataDirs[0];
+            long max = -1;
+            for(int d : dataDirs) {
+                long free = new File(dirs[d]).getUsableSpace();
+                if(free > max) {
+                    max = free;
+                    best = d;
+                }
+            }
+            return best;
+        }
+        return dataDirs[fileNo % dataDirs.length];
+    }
+    
+    /**
+     * Index of the dir a queue file is in
+     * @param f queue file
+     * @return index in dirs, 0 if not found
+     */
+    private int dirOf(File f) {
+        if(dirs.length == 1) {
+            return 0;
+        }
+        File p = f.getAbsoluteFile().getParentFile();
+        for(int i = 0; i < dirs.length; i++) {
+            if(new File(dirs[i]).getAbsoluteFile().equals(p)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+    
+    private static int indexOfDir(List<String> dirs, String dir) {
+        File f = new File(dir).getAbsoluteFile();
+        for(int i = 0; i < dirs.size(); i++) {
+            if(new File(dirs.get(i)).getAbsoluteFile().equals(f)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Number of files can be removed,
+     * more than maxFileNum and not being consumed
+     * @param lastestFileNo latest file number
+     * @return number of removable files
+     */
+    private int removableNum(int lastestFileNo) {
         int curNum = lastestFileNo - this.minFileNo.get() + 1;
-        if (curNum < this.maxFileNum) {
-            return;
+        //when the queue is full, all consumed files can be removed
+        boolean full = overflowing.get() > 0;
+        if (curNum < this.maxFileNum && !full) {
+            return 0;
         }
         int consumerMinFileNo = dispatcher.minFileNo(queueName);
+        //files of chunked messages which are not consumed or being written
+        consumerMinFileNo = Math.min(manifest.chunkFrom(consumerMinFileNo), consumerMinFileNo);
+        consumerMinFileNo = Math.min(chunkFrom, consumerMinFileNo);
+        for(int fileNo : chunking.values()) {
+            consumerMinFileNo = Math.min(fileNo, consumerMinFileNo);
+        }
         int uselessNum = consumerMinFileNo - this.minFileNo.get();
         //can't delete files which are still being consumed
-        int rmvNum = Math.min(curNum - this.maxFileNum, uselessNum);
+        int extraNum = full ? curNum - 1 : curNum - this.maxFileNum;
+        return Math.max(Math.min(extraNum, uselessNum), 0);
+    }
+    
+    /**
+     * Wake up the janitor to remove useless files in background,
+     * pushers never wait for deleting files.
+     * If it's already scheduled, needn't schedule again
+     */
+    private void scheduleRemoving() {
+        if(!removing.compareAndSet(false, true)) {
+            return;
+        }
+        Background.clean(() -> {
+            removing.set(false); //files rolled from now on need another round
+            removeFiles(curFileNo.get());
+        });
+    }
+    
+    private synchronized void removeFiles(int lastestFileNo) {
+        int rmvNum = removableNum(lastestFileNo);
         if(rmvNum <= 0) {
             return;
         }
@@ -181,13 +541,24 @@ final class Writer implements IWriter {
             }
         }
         
-        LOG.info("File num more than {}, remove {} file(s)", this.maxFileNum, rmvNum);
+        LOG.info("File num more than {} or queue is full, remove {} file(s)", this.maxFileNum, rmvNum);
         for (int i = 0; i < rmvNum; i++) {
-            String fn = queueFileName(this.minFileNo.get() + i);
-            File f = new File(fn);
-            if (!f.exists()) {
-                continue;
-            }
+            removeFile(this.minFileNo.get());
+            this.minFileNo.incrementAndGet(); //one by one, readers can skip it at once
+        }
+        failToDelNum = failToDelFiles.size();
+        manifest.removeBefore(this.minFileNo.get());
+        manifest.saveQuietly();
+        storedBytes = manifest.bytesBefore(curFileNo.get());
+    }
+    
+    private void removeFile(int fileNo) {
+        if(chunkCache != null) {
+            chunkCache.remove(fileNo);
+        }
+        String fn = queueFileName(fileNo);
+        File f = new File(fn);
+        if (f.exists()) {
             LOG.info("Remove file {}", fn);
             try {
                 if(!f.delete()) { //sometimes failed here
@@ -199,67 +570,792 @@ final class Writer implements IWriter {
                 failToDelFiles.add(f);
             }
         }
-        this.minFileNo.addAndGet(rmvNum) ;
+    }
+    
+    /**
+     * Remove the oldest file even if it's not consumed,
+     * readers skip it when they find it's dropped
+     * @return false if only the writing file is left
+     */
+    private synchronized boolean dropOldest() {
+        int fileNo = this.minFileNo.get();
+        if(fileNo >= curFileNo.get()) {
+            return false;
+        }
+        LOG.warn("Queue {} is full, drop file {}", queueName, fileNo);
+        removeFile(fileNo);
+        this.minFileNo.incrementAndGet();
+        failToDelNum = failToDelFiles.size();
+        manifest.removeBefore(this.minFileNo.get());
+        Background.clean(manifest::saveQuietly);
+        storedBytes = manifest.bytesBefore(curFileNo.get());
+        return true;
+    }
+    
+    /**
+     * Apply the overflow policy when the queue or the slowest consumer's lag
+     * exceeds its limit. Sizes of full files are recorded when they roll
+     * or are removed, so files are never stated here.
+     * @param len length of the content to push
+     * @throws FQException rejected, or still full when timeout
+     */
+    private void checkQuota(int len) throws FQException {
+        if(maxQueueBytes <= 0 && maxLagBytes <= 0) {
+            return;
+        }
+        String reason = exceeded(len);
+        if(reason == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + overflowTimeout;
+        boolean waiting = false;
+        try {
+            for(; reason != null; reason = exceeded(len)) {
+                if(overflow == Overflow.REJECT) {
+                    throw new FQException("Queue " + queueName + " is full, " + reason);
+                }
+                if(overflow == Overflow.DROP_OLDEST) {
+                    if(!dropOldest()) {
+                        throw new FQException("Queue " + queueName + " is full, nothing to drop, " + reason);
+                    }
+                    continue;
+                }
+                if(System.currentTimeMillis() >= deadline) {
+                    throw new FQException("Queue " + queueName + " is full after waiting "
+                            + overflowTimeout + "ms, " + reason);
+                }
+                if(!waiting) { //the queue is full until all waiting pushers leave
+                    waiting = true;
+                    overflowing.incrementAndGet();
+                }
+                scheduleRemoving(); //consumed files are removed when the queue is full
+                LockSupport.parkNanos(MAX_PARK_TIME);
+            }
+        } finally {
+            if(waiting) {
+                overflowing.decrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Check limits, the lag is counted from the start of
+     * the file the slowest consumer is reading
+     * @param len length of the content to push
+     * @return null if no limit exceeded, else the reason
+     */
+    private String exceeded(int len) {
+        IOutputStream f = qFile;
+        long bytes = storedBytes + (f == null ? 0 : f.size()) + len;
+        if(maxQueueBytes > 0 && bytes > maxQueueBytes) {
+            return "size " + bytes + " exceeds " + maxQueueBytes;
+        }
+        if(maxLagBytes > 0 && bytes > maxLagBytes) { //lag is never larger than the size
+            long now = System.currentTimeMillis();
+            if(now - lagCheckTime > LAG_CHECK_INTERVAL) {
+                //no consumer, nothing lags
+                consumedBytes = dispatcher.consumerNum(queueName) > 0
+                        ? manifest.bytesBefore(dispatcher.minFileNo(queueName)) : Long.MAX_VALUE;
+                lagCheckTime = now;
+            }
+            long lag = bytes - consumedBytes;
+            if(lag > maxLagBytes) {
+                return "lag " + lag + " exceeds " + maxLagBytes;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public int pendingDeletes() {
+        return removableNum(curFileNo.get()) + failToDelNum;
     }
 
     private void openNext() throws IOException {
-        FileUtil.closeQuietly(qFile);
-        qFile = null;
-        int fn = this.curFileNo.incrementAndGet();
-        removeFiles(fn);
-        qFile = open(fn);
+        int fn = this.curFileNo.get() + 1;
+        if(fn > MAX_FILE_NO) {
+            throw new IOException("File number of " + queueName + " exceeds " + MAX_FILE_NO);
+        }
+        //don't set qFile to null, size() may be called in other threads
+        closeFile(qFile);
+        qFile = takeNext(fn);
+        writing = new Writing(fn, qFile);
+        //recorded before readers find it, they look for it by the manifest
+        manifest.add(new Manifest.Segment(fn, dirOf(qFile.file())));
+        this.curFileNo.set(fn);
+        Background.clean(manifest::saveQuietly);
+        storedBytes = manifest.bytesBefore(fn);
+        prepareNext(fn + 1);
+        scheduleRemoving();
+    }
+    
+    /**
+     * Close a full file. If FSYNC messages are written in it,
+     * force it before closing, because their pushers
+     * may call sync after it's closed.
+     * @param f file stream
+     */
+    private void closeFile(IOutputStream f) {
+        if(fsyncInFile) {
+            fsyncInFile = false;
+            try {
+                f.sync(f.size(), Durability.FSYNC);
+            } catch (IOException e) {
+                LOG.error("Fail to save file {} to disk", f.file(), e);
+            }
+        }
+        FileUtil.closeQuietly(f);
+        int fileNo = curFileNo.get();
+        manifest.seal(fileNo, f.size(), msgNum, firstOffset, lastOffset, Math.min(chunkFrom, fileNo));
+        checkpointSize = 0;
+        msgNum = 0;
+        firstOffset = -1;
+        lastOffset = -1;
+        chunkFrom = Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Create the next file and write its header in background
+     * @param fileNo number of the next file
+     */
+    private void prepareNext(int fileNo) {
+        if(fileNo > MAX_FILE_NO) {
+            return;
+        }
+        NextFile n = new NextFile();
+        n.future = Background.prepare(() -> n.claimed.compareAndSet(false, true) ? open(fileNo) : null);
+        nextFile = n;
     }
+    
+    /**
+     * The file being written, readers get its number and size from one reference,
+     * so they never see the number of a file with the size of another
+     */
+    private static final class Writing {
+        final int fileNo;
+        final IOutputStream stream;
 
+        Writing(int fileNo, IOutputStream stream) {
+            this.fileNo = fileNo;
+            this.stream = stream;
+        }
+    }
+    
+    /**
+     * A file being prepared, whoever claims it first opens it,
+     * the preparer or the drainer, never both of them
+     */
+    private static final class NextFile {
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        Future<IOutputStream> future;
+    }
+    
+    /**
+     * Take the prepared file, usually it's ready long before.
+     * If the preparer hasn't started it, such as busy with other queues,
+     * or failed to prepare it, open it right now, never wait in queue
+     * @param fileNo number of the next file
+     * @return output stream of the next file
+     * @throws IOException io exception
+     */
+    private IOutputStream takeNext(int fileNo) throws IOException {
+        NextFile n = nextFile;
+        nextFile = null;
+        if(n != null) {
+            if(n.claimed.compareAndSet(false, true)) {
+                n.future.cancel(false);
+                return open(fileNo);
+            }
+            try {
+                return waitFor(n.future); //done, or being opened, it's short
+            } catch (ExecutionException e) {
+                LOG.warn("Fail to prepare file {}", queueFileName(fileNo), e.getCause());
+            }
+        }
+        return open(fileNo);
+    }
+    
+    /**
+     * Close and remove the prepared file, it has never been used
+     */
+    private void discardNext() {
+        NextFile n = nextFile;
+        nextFile = null;
+        if(n == null) {
+            return;
+        }
+        if(n.claimed.compareAndSet(false, true)) {
+            n.future.cancel(false); //never created
+            return;
+        }
+        try {
+            FileUtil.closeQuietly(waitFor(n.future));
+        } catch (ExecutionException e) {
+            LOG.warn("Fail to prepare file", e.getCause());
+        }
+        File file = new File(queueFileName(curFileNo.get() + 1));
+        if(file.exists() && !file.delete()) {
+            LOG.error("Fail to delete unused file {}", file);
+        }
+    }
+    
+    /**
+     * Wait until the preparing completes, not interrupted,
+     * otherwise the prepared stream may leak
+     */
+    private static IOutputStream waitFor(Future<IOutputStream> f) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            for(;;) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public Durability durability() {
+        return durability;
+    }
+
+    @Override
+    public void write(byte[] msg, int offset, int len, boolean chkHash,
+            Durability durability) throws FQException {
+        write(new ByteBuffer[] {ByteBuffer.wrap(msg, offset, len)}, chkHash, durability);
+    }
+    
+    @Override
+    public void write(ByteBuffer[] msg, boolean chkHash, Durability durability) throws FQException {
+        long total = 0;
+        for(ByteBuffer b : msg) {
+            total += b.remaining();
+        }
+        if (total > MAX_MSG_SIZE) {
+            throw new FQException("Msg too long,len:" + total);
+        }
+        int len = (int)total;
+        if(chkHash) {
+            append(msg, len, Integer.BYTES * 2, len | MSG_HASH_FLAG, IFile.crc32c(msg), 1, 0, -1, null, durability);
+        } else {
+            append(msg, len, Integer.BYTES, len, 0, 1, 0, -1, null, durability);
+        }
+    }
+    
+    /**
+     * Write a large message chunk by chunk, every chunk is written alone,
+     * chunks of other pushers may be written between them.
+     * At last a trailer is written, readers deliver the message when read it.
+     * Files from the first chunk are kept until the trailer is consumed.
+     * Every chunk is written in the durability level.
+     */
+    @Override
+    public long write(InputStream in, boolean chkHash, Durability durability) throws FQException {
+        long msgId = chunkIds.incrementAndGet();
+        byte[] chunk = new byte[CHUNK_HEAD_LEN + CHUNK_SIZE];
+        IFile.encodeLong(chunk, msgId, 0);
+        long firstOffset = -1;
+        long length = 0;
+        int index = 0;
+        try {
+            for(int n; (n = readFully(in, chunk, CHUNK_HEAD_LEN, CHUNK_SIZE)) > 0; index++) {
+                IFile.encodeInt(chunk, index, Long.BYTES);
+                long offset = appendChunk(chunk, CHUNK_HEAD_LEN + n, chkHash, 0, Integer.MAX_VALUE, durability);
+                if(firstOffset < 0) {
+                    firstOffset = offset;
+                    chunking.put(msgId, IFile.offsetFileNo(offset));
+                }
+                length += n;
+            }
+            
+            //trailer: msgId + (chunkNum|CHUNK_LAST) + firstOffset + length
+            IFile.encodeInt(chunk, index | CHUNK_LAST, Long.BYTES);
+            IFile.encodeLong(chunk, firstOffset, CHUNK_HEAD_LEN);
+            IFile.encodeLong(chunk, length, CHUNK_HEAD_LEN + Long.BYTES);
+            int from = firstOffset < 0 ? Integer.MAX_VALUE : IFile.offsetFileNo(firstOffset);
+            return appendChunk(chunk, CHUNK_TRAILER_LEN, chkHash, 1, from, durability);
+        } catch (IOException e) {
+            throw new FQException(e);
+        } finally {
+            chunking.remove(msgId);
+        }
+    }
+    
+    private long appendChunk(byte[] chunk, int len, boolean chkHash,
+            int count, int chunkFrom, Durability durability) throws FQException {
+        ByteBuffer[] body = new ByteBuffer[] {ByteBuffer.wrap(chunk, 0, len)};
+        if(chkHash) {
+            return append(body, len, Integer.BYTES * 2, len | MSG_HASH_FLAG | MSG_CHUNK_FLAG,
+                    IFile.crc32c(chunk, 0, len), count, 0, chunkFrom, null, durability);
+        }
+        return append(body, len, Integer.BYTES, len | MSG_CHUNK_FLAG, 0, count, 0, chunkFrom, null, durability);
+    }
+    
+    private static int readFully(InputStream in, byte[] buf, int offset, int len) throws IOException {
+        int n = 0;
+        while(n < len) {
+            int l = in.read(buf, offset + n, len - n);
+            if(l < 0) {
+                break;
+            }
+            n += l;
+        }
+        return n;
+    }
+    
+    /**
+     * Write all messages in the batch, they are already encoded,
+     * so the batch is put in one slot without header,
+     * it is written in one write, never split into two files.
+     */
     @Override
-    public void write(byte[] msg, int offset, int len, boolean chkHash) throws FQException {
-        if (len > MAX_MSG_SIZE) {
-            throw new FQException("Msg too long,len:" + len);
+    public long write(MessageBatch batch, Durability durability) throws FQException {
+        if(batch.isEmpty()) {
+            return -1;
+        }
+        return append(new ByteBuffer[] {batch.buffer()}, batch.length(), 0, 0, 0,
+                batch.count(), batch.lastPos(), -1, batch, durability);
+    }
+    
+    /**
+     * Put the content in a slot, wait until it's written by the drainer
+     * @param body content
+     * @param len length of the content
+     * @param headLen length of header, 0, 4 or 8
+     * @param lenFlag length and flags in header
+     * @param hashCode hash code in header
+     * @param count number of messages in the content
+     * @param lastPos position of the last message in the content
+     * @param chunkFrom -1 if it isn't a chunk, see Slot.chunkFrom
+     * @param batch batch of the content, null if not a batch, told where it's written
+     * @param durability durability level
+     * @return offset of the content in the queue
+     * @throws FQException write exception
+     */
+    private long append(ByteBuffer[] body, int len, int headLen,
+            int lenFlag, int hashCode, int count, int lastPos,
+            int chunkFrom, MessageBatch batch, Durability durability) throws FQException {
+        Writing w = writing;
+        if(w != null && w.fileNo >= MAX_FILE_NO && w.stream.size() >= maxFileSize) {
+            //never rolls, the file number must be in offsets
+            throw new FQException("Queue " + queueName + " reaches the max file number " + MAX_FILE_NO);
+        }
+        checkQuota(len);
+        long seq = claimed.getAndIncrement();
+        Slot slot = slots[(int)(seq & (RING_SIZE - 1))];
+        for(int i = 0; slot.free != seq; i++) { //the slot is still occupied by a former message
+            if(tryDrain() == 0) {
+                idle(i);
+            }
+        }
+
+        //encode header in the slot, concurrent safe
+        slot.headBuf.clear();
+        if(headLen > 0) {
+            IFile.encodeInt(slot.head, lenFlag, 0);
+            if(headLen > Integer.BYTES) {
+                IFile.encodeInt(slot.head, hashCode, Integer.BYTES);
+            }
         }
+        slot.headBuf.limit(headLen);
+        slot.body = body;
+        slot.len = len;
+        slot.count = count;
+        slot.lastPos = lastPos;
+        slot.chunkFrom = chunkFrom;
+        slot.fsync = durability == Durability.FSYNC;
+        slot.published = seq;
+        awaitDrained(slot, seq);
 
-        int pos = 0;
-        int hashCode = 0;
-        int writeLen = Integer.BYTES + len;
-        if(chkHash) { //concurrent safe
-            hashCode = IFile.hashCode(msg, offset, len);
-            writeLen += Integer.BYTES;
+        IOutputStream f = slot.stream;
+        long offset = IFile.offset(slot.fileNo, slot.pos);
+        if(batch != null) {
+            batch.written(offset, slot.blocked);
+        }
+        long end = slot.end;
+        Exception error = slot.error;
+        slot.body = null;
+        slot.stream = null;
+        slot.error = null;
+        slot.free = seq + RING_SIZE; //release the slot
+        if(error != null) {
+            throw new FQException(error);
         }
         
-        synchronized(this) {
-            if(msgBuf.length < writeLen) {
-                msgBuf = new byte[writeLen * 3 / 2]; //extend message buffer size
+        if(durability != Durability.NONE) {
+            //wait out of the drainer, so pushers in the same group share one force
+            try {
+                f.sync(end, durability);
+            } catch (IOException e) {
+                throw new FQException(e);
             }
-
-            if (chkHash) {
-                IFile.encodeInt(msgBuf, len | MSG_HASH_FLAG, pos);
-                pos += Integer.BYTES;
-                IFile.encodeInt(msgBuf, hashCode, pos);
-            } else {
-                IFile.encodeInt(msgBuf, len, pos);
+        }
+        dispatcher.ready();
+        return offset;
+    }
+    
+    /**
+     * Help to drain until the message in the slot is written.
+     * If another pusher is draining, spin a moment, then park,
+     * the drainer will unpark it after written.
+     * @param slot slot of the message
+     * @param seq sequence of the message
+     */
+    private void awaitDrained(Slot slot, long seq) {
+        for(int i = 0; slot.drained != seq; i++) {
+            if(tryDrain() > 0) {
+                continue;
+            }
+            if(i < SPIN_TIMES) {
+                Thread.onSpinWait();
+                continue;
+            }
+            slot.waiter = Thread.currentThread();
+            if(slot.drained != seq) {
+                //timed, avoid to miss the notification in any case
+                LockSupport.parkNanos(this, MAX_PARK_TIME);
             }
-            pos += Integer.BYTES;
-            System.arraycopy(msg, offset, msgBuf, pos, len);
+            slot.waiter = null;
+        }
+    }
+    
+    /**
+     * Try to be the drainer, only one drainer at the same time.
+     * After quit draining, check again,
+     * because some messages may be published when quiting.
+     * @return number of drained messages
+     */
+    private int tryDrain() {
+        int n = 0;
+        do {
+            if(!draining.compareAndSet(false, true)) {
+                return n;
+            }
+            try {
+                n += drain();
+            } finally {
+                draining.set(false);
+            }
+        } while(hasPublished());
+        return n;
+    }
+    
+    private boolean hasPublished() {
+        long end = Math.min(claimed.get(), drainFrom + RING_SIZE);
+        for(long seq = drainFrom; seq < end; seq++) {
+            Slot slot = slots[(int)(seq & (RING_SIZE - 1))];
+            if(slot.published == seq && slot.drained != seq) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void lockDrain() {
+        for(int i = 0; !draining.compareAndSet(false, true); i++) {
+            idle(i);
+        }
+    }
+    
+    private static void idle(int times) {
+        if(times < SPIN_TIMES) {
+            Thread.onSpinWait();
+        } else if(times < YIELD_TIMES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_TIME);
+        }
+    }
+    
+    /**
+     * Write published slots to the file, one gather-write for a range of slots,
+     * headers and bodies are written from their own buffers.
+     * Unpublished slots are skipped, they will be written in next rounds.
+     * Only called by the drainer.
+     * @return number of drained messages
+     */
+    private int drain() {
+        int total = 0;
+        for(;;) {
+            long start = drainFrom;
+            long end = Math.min(claimed.get(), start + RING_SIZE);
+            IOutputStream f = qFile;
+            long room = f == null ? 0 : maxFileSize - f.size();
+            int bytes = 0;
+            int n = 0;
+            int k = 1; //gather[0] is reserved for the block header
             
+            //collect published slots, not exceed the file size limitation
+            for(long seq = start; seq < end; seq++) {
+                Slot slot = slots[(int)(seq & (RING_SIZE - 1))];
+                if(slot.published != seq || slot.drained == seq) {
+                    continue;
+                }
+                int l = slot.headBuf.remaining() + slot.len;
+                boolean chunk = slot.chunkFrom >= 0;
+                if(n > 0 && (chunk || bytes >= room || bytes + l > MAX_DRAIN_BYTES)) {
+                    break;
+                }
+                if(gather.length < k + 1 + slot.body.length) {
+                    gather = Arrays.copyOf(gather, (k + 1 + slot.body.length) * 3 / 2);
+                }
+                gather[k++] = slot.headBuf;
+                for(ByteBuffer b : slot.body) {
+                    gather[k++] = b;
+                }
+                bytes += l;
+                fsyncInFile |= slot.fsync;
+                drainSeqs[n++] = seq;
+                if(chunk) { //a chunk is written alone, never framed in a block
+                    break;
+                }
+            }
+            if(n == 0) {
+                return total;
+            }
+
+            Exception error = null;
+            int fileNo = curFileNo.get();
+            long pos = f == null ? 0 : f.size();
+            int framing = frame(n, k, bytes, IFile.offset(fileNo, pos));
+            boolean blocked = framing != PLAIN;
+            long size = 0;
             try {
-                qFile.write(msgBuf, 0, writeLen);
-                if (qFile.size() >= maxFileSize) {
+                if(f == null) {
+                    throw new IOException("Writer of " + queueName + " has been closed");
+                }
+                if(framing == COMPRESSED) {
+                    f.write(block, 0, 1);
+                } else if(framing == BATCHED) {
+                    f.write(gather, 0, k);
+                } else {
+                    f.write(gather, 1, k - 1);
+                }
+                count(n, fileNo, pos, blocked); //before rolling, they belong to this file
+                size = f.size();
+                if (size >= maxFileSize && fileNo < MAX_FILE_NO) {
                     openNext();
                 }
             } catch (Exception e) {
-                throw new FQException(e);
+                error = e;
+            }
+            Arrays.fill(gather, 0, k, null); //don't hold pushers' buffers
+            block[0] = null;
+
+            for(int i = 0; i < n; i++) {
+                Slot slot = slots[(int)(drainSeqs[i] & (RING_SIZE - 1))];
+                slot.stream = f;
+                slot.fileNo = fileNo;
+                slot.pos = pos;
+                slot.blocked = blocked;
+                if(!blocked) { //messages in a block share the position of the block
+                    pos += slot.headBuf.limit() + slot.len;
+                }
+                slot.end = size;
+                slot.error = error;
+                slot.drained = drainSeqs[i]; //publish results to the pusher
+                Thread waiter = slot.waiter;
+                if(waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
             }
+            
+            long seq = start;
+            while(seq < end && slots[(int)(seq & (RING_SIZE - 1))].drained == seq) {
+                seq++;
+            }
+            drainFrom = seq;
+            total += n;
         }
-        dispatcher.ready();
+    }
+    
+    /**
+     * Frame drained messages in a block, compress them if codec set.
+     * A single message isn't framed, unless it's compressed,
+     * so pushing one by one has no extra cost.
+     * Only called by the drainer.
+     * @param n number of drained slots
+     * @param k number of buffers in `gather`, from 1
+     * @param bytes length of drained content
+     * @param baseOffset offset of the block
+     * @return PLAIN, BATCHED or COMPRESSED
+     */
+    private int frame(int n, int k, int bytes, long baseOffset) {
+        if(bytes > MAX_BLOCK_SIZE || slots[(int)(drainSeqs[0] & (RING_SIZE - 1))].chunkFrom >= 0) {
+            return PLAIN;
+        }
+        int count = 0;
+        for(int i = 0; i < n; i++) {
+            count += slots[(int)(drainSeqs[i] & (RING_SIZE - 1))].count;
+        }
+        if(codec != null && bytes >= MIN_COMPRESS_LEN && compress(k, bytes, count, baseOffset)) {
+            return COMPRESSED;
+        }
+        if(count <= 1) {
+            return PLAIN;
+        }
+        
+        crc.reset();
+        for(int i = 1; i < k; i++) {
+            crc.update(gather[i].duplicate()); //don't change pushers' buffers
+        }
+        encodeBlockHead(blockHead, BLOCK_HEAD_LEN + bytes, CODEC_NONE,
+                count, bytes, baseOffset, (int)crc.getValue());
+        blockHeadBuf.clear();
+        gather[0] = blockHeadBuf;
+        return BATCHED;
+    }
+    
+    /**
+     * Compress drained messages into a block in `block`.
+     * Not compressed if it's not compressible.
+     * @param k number of buffers in `gather`, from 1
+     * @param bytes length of drained content
+     * @param count number of messages
+     * @param baseOffset offset of the block
+     * @return whether the block is made
+     */
+    private boolean compress(int k, int bytes, int count, long baseOffset) {
+        if(raw.length < bytes) {
+            raw = new byte[Math.max(bytes, raw.length * 2)];
+        }
+        int p = 0;
+        for(int i = 1; i < k; i++) {
+            ByteBuffer b = gather[i].duplicate(); //don't change pushers' buffers
+            int l = b.remaining();
+            b.get(raw, p, l);
+            p += l;
+        }
+        
+        int headLen = blockHead.length;
+        int max = headLen + codec.maxCompressedLen(bytes);
+        if(packed.length < max) {
+            packed = new byte[max];
+        }
+        int len;
+        try {
+            len = codec.compress(raw, 0, bytes, packed, headLen);
+        } catch (IOException e) {
+            LOG.warn("Fail to compress messages of {}", queueName, e);
+            return false;
+        }
+        //a block is longer than its message count, see MessageBatch.offset
+        if(headLen + len >= bytes || headLen + len <= count) {
+            return false;
+        }
+        
+        crc.reset();
+        crc.update(packed, headLen, len);
+        encodeBlockHead(packed, BLOCK_HEAD_LEN + len, codec.id(),
+                count, bytes, baseOffset, (int)crc.getValue());
+        block[0] = ByteBuffer.wrap(packed, 0, headLen + len);
+        return true;
+    }
+    
+    /**
+     * Encode length flag and block header,
+     * codec(1) + count(4) + rawLen(4) + baseOffset(8) + timestamp(8) + checksum(4)
+     */
+    private static void encodeBlockHead(byte[] buf, int len, int codecId,
+            int count, int rawLen, long baseOffset, int checksum) {
+        int p = 0;
+        IFile.encodeInt(buf, BLOCK_FLAG | len, p);
+        p += Integer.BYTES;
+        buf[p++] = (byte)codecId;
+        IFile.encodeInt(buf, count, p);
+        p += Integer.BYTES;
+        IFile.encodeInt(buf, rawLen, p);
+        p += Integer.BYTES;
+        IFile.encodeLong(buf, baseOffset, p);
+        p += Long.BYTES;
+        IFile.encodeLong(buf, System.currentTimeMillis(), p);
+        p += Long.BYTES;
+        IFile.encodeInt(buf, checksum, p);
+    }
+    
+    /**
+     * Count messages written in the current file, for the manifest
+     * @param n number of drained slots
+     * @param fileNo current file number
+     * @param pos position where they were written
+     * @param blocked whether they were compressed into a block
+     */
+    private void count(int n, int fileNo, long pos, boolean blocked) {
+        if(firstOffset < 0) {
+            firstOffset = IFile.offset(fileNo, pos);
+        }
+        for(int i = 0; i < n; i++) {
+            Slot slot = slots[(int)(drainSeqs[i] & (RING_SIZE - 1))];
+            msgNum += slot.count;
+            if(slot.chunkFrom >= 0 && slot.chunkFrom < chunkFrom) { //a trailer
+                chunkFrom = slot.chunkFrom;
+            }
+            if(blocked) {
+                lastOffset = IFile.offset(fileNo, pos);
+            } else {
+                lastOffset = IFile.offset(fileNo, pos + slot.lastPos);
+                pos += slot.headBuf.limit() + slot.len;
+            }
+        }
+    }
+    
+    /**
+     * Save content of the writing file to disk, then record its size
+     * in the manifest, so recovery only checks content after it.
+     * Only called when idle, not more than once in CHECKPOINT_INTERVAL.
+     * Forcing is slow, it's done by the janitor, not in the dispatcher
+     */
+    private void checkpoint() {
+        IOutputStream f = qFile;
+        long size = f.size();
+        long now = System.currentTimeMillis();
+        if(size == checkpointSize || now - checkpointTime < CHECKPOINT_INTERVAL) {
+            return;
+        }
+        checkpointSize = size;
+        checkpointTime = now;
+        int fileNo = curFileNo.get();
+        int num = msgNum;
+        long first = firstOffset;
+        long last = lastOffset;
+        int from = Math.min(chunkFrom, fileNo);
+        Background.clean(() -> {
+            try {
+                f.sync(size, Durability.FSYNC);
+            } catch (IOException e) {
+                LOG.error("Fail to save file {} to disk", f.file(), e);
+                return;
+            }
+            //ignored if the file has been sealed after rolled
+            manifest.checkpoint(fileNo, size, num, first, last, from);
+            manifest.saveQuietly();
+        });
     }
     
     @Override
     public void close() throws IOException {
-        if (qFile == null) {
-            return;
+        lockDrain();
+        try {
+            drain(); //messages published before closing
+            if (qFile == null) {
+                return;
+            }
+            qFile.flush();
+            LOG.debug("Writer close `{}`,size:{}", qFile.file(), qFile.size());
+            closeFile(qFile);
+            qFile = null;
+            writing = null;
+            discardNext();
+            manifest.saveQuietly();
+        } finally {
+            draining.set(false);
         }
-        qFile.flush();
-        LOG.debug("Writer close `{}`,size:{}", qFile.file(), qFile.size());
-        FileUtil.closeQuietly(qFile);
-        qFile = null;
         removeFiles(this.curFileNo.get());
     }
 
@@ -295,22 +1391,68 @@ final class Writer implements IWriter {
 
     @Override
     public String queueFileName(int fileNo) {
-        return FileUtil.addPath(dir, name + '.' + fileNo);
+        String fn = name + '.' + fileNo;
+        if(dirs.length == 1) {
+            return FileUtil.addPath(dir, fn);
+        }
+        int d = manifest.dirOf(fileNo);
+        if(d >= 0 && d < dirs.length) {
+            String path = FileUtil.addPath(dirs[d], fn);
+            if(new File(path).exists()) {
+                return path;
+            }
+        }
+        //not recorded, or data dirs changed
+        for(String s : dirs) {
+            String path = FileUtil.addPath(s, fn);
+            if(new File(path).exists()) {
+                return path;
+            }
+        }
+        return FileUtil.addPath(dir, fn);
     }
 
     @Override
-    public int size() {
+    public long size() {
         return qFile.size();
     }
 
+    @Override
+    public ChunkCache chunkCache() {
+        return chunkCache;
+    }
+
+    @Override
+    public long readable(int fileNo) {
+        //the old file is closed before the next one is published,
+        //so a file before the writing one is already complete
+        Writing w = writing;
+        if(w == null || fileNo < w.fileNo) {
+            return Long.MAX_VALUE;
+        }
+        return fileNo == w.fileNo ? w.stream.written() : 0;
+    }
+
     @Override
     public void hasten() {
-        if(qFile != null) {
-            try {
+        //if a drainer is working, needn't hasten.
+        //qFile may be rolled by the drainer, so flush it out of draining
+        if(!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if(qFile != null) {
                 qFile.flush();
-            } catch (IOException e) {
-                LOG.error("Fail to flush buffered data to disk", e);
+                checkpoint();
             }
+        } catch (IOException e) {
+            LOG.error("Fail to flush buffered data to disk", e);
+        } finally {
+            draining.set(false);
+        }
+        //consumers moved on, files kept for them may be useless now
+        if(qFile != null && removableNum(curFileNo.get()) > 0) {
+            scheduleRemoving();
         }
     }
 }
@@ -15,37 +15,152 @@ limitations under the License.
 */
 package cn.net.zhijian.fileq.bean;
 
+import java.nio.ByteBuffer;
+
+import cn.net.zhijian.fileq.intf.IFile;
 import cn.net.zhijian.fileq.intf.IMessage;
 
 /**
  * Concurrent message,
- * Processing order is not guaranteed
+ * Processing order is not guaranteed.
+ * It may be a view of a mapped file or a read chunk,
+ * then the array is copied only when message() is called.
  * @author flyinmind of csdn.net
  *
  */
 public final class ConcurrentMessage implements IMessage {
-    private final byte[] msg;
+    private static final int UNCHECKED = 0;
+    private static final int PASSED = 1;
+    private static final int FAILED = 2;
+    
+    private byte[] msg;
+    private ByteBuffer view;
+    private Runnable releaser; //keep the mapped region, or return the pooled array
+    private boolean pooled; //msg is a pooled array
     private final int len;
-    private final boolean passed;
+    private final int hashCode;
+    private final int ver;
+    //checked at most once, checking again in another thread gets the same result
+    private int state;
 
     public ConcurrentMessage(int len, byte[] msg, boolean passed) {
         this.msg = msg;
         this.len = len;
-        this.passed = passed;
+        this.hashCode = 0;
+        this.ver = IFile.VER;
+        this.state = passed ? PASSED : FAILED;
+    }
+    
+    /**
+     * Hash code is checked when isCorrect is called first time,
+     * so it costs in the handler's thread, not in the dispatcher
+     * @param len message length
+     * @param msg content
+     * @param hashCode hash code saved in the file
+     * @param ver version of the file
+     */
+    public ConcurrentMessage(int len, byte[] msg, int hashCode, int ver) {
+        this(len, msg, hashCode, ver, null);
+    }
+    
+    /**
+     * A message in a pooled array, may be longer than len,
+     * the array returns to the pool when released
+     * @param len message length
+     * @param msg content
+     * @param passed passed the hash code checking or not
+     * @param releaser run when released, null if not pooled
+     */
+    public ConcurrentMessage(int len, byte[] msg, boolean passed, Runnable releaser) {
+        this(len, msg, passed);
+        this.releaser = releaser;
+        this.pooled = releaser != null;
+    }
+    
+    public ConcurrentMessage(int len, byte[] msg, int hashCode, int ver, Runnable releaser) {
+        this.msg = msg;
+        this.len = len;
+        this.hashCode = hashCode;
+        this.ver = ver;
+        this.state = UNCHECKED;
+        this.releaser = releaser;
+        this.pooled = releaser != null;
+    }
+    
+    /**
+     * A message of a read-only view
+     * @param view content, from 0 to its limit
+     * @param releaser run when released, null if the view needn't release
+     * @param passed passed the hash code checking or not
+     */
+    public ConcurrentMessage(ByteBuffer view, Runnable releaser, boolean passed) {
+        this.view = view;
+        this.releaser = releaser;
+        this.len = view.limit();
+        this.hashCode = 0;
+        this.ver = IFile.VER;
+        this.state = passed ? PASSED : FAILED;
+    }
+    
+    /**
+     * A message of a read-only view, hash code is checked when isCorrect is called
+     */
+    public ConcurrentMessage(ByteBuffer view, Runnable releaser, int hashCode, int ver) {
+        this.view = view;
+        this.releaser = releaser;
+        this.len = view.limit();
+        this.hashCode = hashCode;
+        this.ver = ver;
+        this.state = UNCHECKED;
     }
     
     @Override
-    public byte[] message() {
+    public synchronized byte[] message() {
+        if(msg == null) {
+            if(view == null) {
+                throw new IllegalStateException("Message has been released");
+            }
+            msg = new byte[len];
+            view.duplicate().get(msg);
+        }
         return msg;
     }
 
+    @Override
+    public synchronized ByteBuffer buffer() {
+        if(view == null) {
+            if(msg == null) {
+                throw new IllegalStateException("Message has been released");
+            }
+            return ByteBuffer.wrap(msg, 0, len).slice().asReadOnlyBuffer();
+        }
+        return view.duplicate();
+    }
+
+    @Override
+    public synchronized void release() {
+        view = null; //never access it again, it may be unmapped
+        if(pooled) {
+            msg = null; //it may be reused by others
+        }
+        Runnable r = releaser;
+        releaser = null;
+        if(r != null) {
+            r.run();
+        }
+    }
+
     @Override
     public int len() {
         return len;
     }
 
     @Override
-    public boolean isCorrect() {
-        return passed;
+    public synchronized boolean isCorrect() {
+        if(state == UNCHECKED) {
+            int h = msg != null ? IFile.checksum(ver, msg, 0, len) : IFile.checksum(ver, buffer());
+            state = hashCode == h ? PASSED : FAILED;
+        }
+        return state == PASSED;
     }
 }
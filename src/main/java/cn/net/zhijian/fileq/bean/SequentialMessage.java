@@ -15,6 +15,7 @@ limitations under the License.
 */
 package cn.net.zhijian.fileq.bean;
 
+import cn.net.zhijian.fileq.intf.IFile;
 import cn.net.zhijian.fileq.intf.IMessage;
 
 /**
@@ -27,6 +28,9 @@ public final class SequentialMessage implements IMessage {
     private int len;
     private byte[] msg;
     private boolean passed;
+    private boolean checked;
+    private int hashCode;
+    private int ver;
     
     public SequentialMessage(int len) {
         this.len = len;
@@ -53,10 +57,26 @@ public final class SequentialMessage implements IMessage {
 
     public void passed(boolean passed) {
         this.passed = passed;
+        this.checked = true;
+    }
+    
+    /**
+     * Check the hash code when isCorrect is called
+     * @param hashCode hash code saved in the file
+     * @param ver version of the file
+     */
+    public void verifyLater(int hashCode, int ver) {
+        this.hashCode = hashCode;
+        this.ver = ver;
+        this.checked = false;
     }
     
     @Override
     public boolean isCorrect() {
+        if(!checked) {
+            passed = hashCode == IFile.checksum(ver, msg, 0, len);
+            checked = true;
+        }
         return passed;
     }
 }
@@ -0,0 +1,39 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.intf;
+
+import java.util.List;
+
+/**
+ * Batch message handler, messages are handled in batches,
+ * a batch is confirmed as a whole with one position update
+ * @author flyinmind of csdn.net
+ *
+ */
+public interface IBatchMessageHandler {
+    /**
+     * handle a batch of messages, IReader.confirm should be called finally.
+     * Batches are handled one by one, the next one is not read
+     * until the batch is confirmed, so messages are in order.
+     * @param msgs
+     *  messages in order, up to the max batch size,
+     *  if return false, the same batch will be handled again later.
+     *  Don't keep them after confirmed, their buffers may be recycled
+     * @param reader
+     *  If failed to handle the batch, you can call reader.confirm(false)
+     */
+    boolean handle(List<IMessage> msgs, IReader reader);
+}
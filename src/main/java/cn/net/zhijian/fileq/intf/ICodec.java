@@ -0,0 +1,66 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.intf;
+
+import java.io.IOException;
+
+/**
+ * Compression codec of message blocks.
+ * Its id is saved in the block header, readers find the codec by it,
+ * so a codec must be registered in Codecs before reading its blocks.
+ * It's called by the writer and readers in different threads,
+ * implementations must be thread safe.
+ * @author flyinmind of csdn.net
+ *
+ */
+public interface ICodec {
+    /**
+     * Id saved in block header, 1~127, 1 is Deflate
+     * @return codec id
+     */
+    int id();
+    
+    /**
+     * Max length of the compressed content
+     * @param len length of raw content
+     * @return max compressed length
+     */
+    int maxCompressedLen(int len);
+    
+    /**
+     * Compress content
+     * @param src raw content
+     * @param offset offset of raw content
+     * @param len length of raw content
+     * @param dst buffer to save compressed content, not less than maxCompressedLen
+     * @param dstOffset offset of the buffer
+     * @return length of compressed content
+     * @throws IOException compress exception
+     */
+    int compress(byte[] src, int offset, int len, byte[] dst, int dstOffset) throws IOException;
+    
+    /**
+     * Decompress content
+     * @param src compressed content
+     * @param offset offset of compressed content
+     * @param len length of compressed content
+     * @param dst buffer to save raw content
+     * @param dstOffset offset of the buffer
+     * @param rawLen length of raw content, it must be decompressed exactly
+     * @throws IOException invalid content
+     */
+    void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int rawLen) throws IOException;
+}
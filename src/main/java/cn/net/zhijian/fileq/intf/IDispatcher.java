@@ -33,6 +33,13 @@ public interface IDispatcher {
      */
     int minFileNo(String queueName);
     
+    /**
+     * Get the number of consumers of the queue
+     * @param queueName name of the file queue
+     * @return 0 if the queue has no consumer
+     */
+    int consumerNum(String queueName);
+    
     /**
      * Get handled message number of all queues 
      * @return message number that have already been handled
@@ -46,6 +53,17 @@ public interface IDispatcher {
      * @param handler Message handler
      */
     void addConsumer(boolean autoConfirm, IReader reader, IMessageHandler handler);
+    
+    /**
+     * Add a batch consumer to the queue, one task for one batch
+     * @param autoConfirm Automatically confirm batches
+     * @param reader Queue file reader
+     * @param maxNum Max number of messages in a batch
+     * @param maxWait Max waiting time(ms) for a batch to be full
+     * @param handler Batch message handler
+     */
+    void addBatchConsumer(boolean autoConfirm, IReader reader,
+            int maxNum, long maxWait, IBatchMessageHandler handler);
 
     /**
      * Remove a consumer from the queue
@@ -15,6 +15,9 @@ limitations under the License.
 */
 package cn.net.zhijian.fileq.intf;
 
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
 /**
  * Queue file
  * @author flyinmind of csdn.net
@@ -26,19 +29,74 @@ public interface IFile {
     byte[] MAGIC = "QUEUE".getBytes();
     /**
      * Queue file header: "QUEUE" + ver(1byte) + fileNo(4bytes) + Msgs
-     * Each message: Sign(1bit) + HashFlag(1bit) + Len(30bits) [+ HashCode(4byte)] + content
+     * Each message: Sign(1bit) + HashFlag(1bit) + ChunkFlag(1bit) + Len(29bits) [+ HashCode(4byte)] + content
+     * If sign is 1, it's a block(batch) of messages, encoded as above:
+     * 1(1bit) + 0(1bit) + 0(1bit) + Len(29bits) + codec(1byte) + count(4bytes) + rawLen(4bytes)
+     * + baseOffset(8bytes) + timestamp(8bytes) + checksum(4bytes) + messages.
+     * Messages are compressed if codec isn't 0, checksum is crc32c of the stored messages.
+     * HashCode of a message is crc32c too, it's accelerated by hardware.
+     * If chunk flag is 1, it's a chunk of a large message, never in a block:
+     * msgId(8bytes) + index(4bytes) + data. At last, a trailer is written,
+     * msgId(8bytes) + (chunkNum|CHUNK_LAST)(4bytes) + firstOffset(8bytes) + length(8bytes),
+     * the message is delivered when the trailer is read.
+     * In ver 3, checksum of a block is crc32, and hash code is IFile.hashCode.
+     * In ver 2, a block only has codec, count and rawLen in header.
      */
     int FILE_HEAD_LEN = MAGIC.length + 1 + Integer.BYTES;
     
-    int VER = 0x00;
+    int VER = 0x05; //large messages are written in chunks
+    int VER_CRC32C = 0x04; //checksums are crc32c
+    int VER_BATCH = 0x03; //messages written together are framed in one block
+    int VER_COMPRESS = 0x02; //compressed blocks
+    int VER_LONG_POS = 0x01; //positions are 64 bits, files can be larger than 2GB
+    int VER_INT_POS = 0x00; //positions are 32 bits, still can be read
     int MAX_MSG_SIZE = (1 << 20); //1M
     int MIN_FILESIZE = (1 << 20);
+    long MAX_FILESIZE = (1L << 40) - MAX_MSG_SIZE * 2; //position must be in the offset
     
     int MSG_HASH_FLAG = 0x40000000;
-    int MSG_LEN_MASK = 0x3fffffff;
+    int MSG_CHUNK_FLAG = 0x20000000;
+    int MSG_LEN_MASK = 0x1fffffff;
+    int BLOCK_FLAG = 0x80000000;
+    //codec + count + rawLen + baseOffset + timestamp + checksum
+    int BLOCK_HEAD_LEN = 1 + Integer.BYTES * 2 + Long.BYTES * 2 + Integer.BYTES;
+    int BLOCK_HEAD_LEN_V2 = 1 + Integer.BYTES * 2; //codec + count + rawLen
+    int CODEC_NONE = 0; //messages in the block are not compressed
+    int MAX_BLOCK_SIZE = MAX_MSG_SIZE * 16; //max raw length of a block
+    int CHUNK_HEAD_LEN = Long.BYTES + Integer.BYTES; //msgId + index
+    int CHUNK_TRAILER_LEN = CHUNK_HEAD_LEN + Long.BYTES * 2; //+ firstOffset + length
+    int CHUNK_SIZE = MAX_MSG_SIZE - CHUNK_HEAD_LEN; //max data length in a chunk
+    int CHUNK_LAST = 0x80000000; //flag of the trailer in index
+    
+    int OFFSET_POS_BITS = 40; //offset of a message: fileNo(24bits) + position(40bits)
+    int MAX_FILE_NO = (1 << (Long.SIZE - OFFSET_POS_BITS)) - 1; //no more file after it
+    long MAX_OFFSET_POS = (1L << OFFSET_POS_BITS) - 1;
     
     
     enum InitPosition {CUR, HEAD, END}
+    
+    /**
+     * When push returns, where the message has been saved.
+     * NONE: maybe only in the writer's buffer;
+     * WRITTEN: written to the file, it survives when the process crashed;
+     * FSYNC: saved to disk, it survives when the system crashed.
+     */
+    enum Durability {NONE, WRITTEN, FSYNC}
+    
+    /**
+     * What to do when the queue size or the slowest consumer's lag exceeds its limit.
+     * BLOCK: pushers wait until consumed files are removed, fail when timeout;
+     * REJECT: pushers fail at once;
+     * DROP_OLDEST: remove the oldest files, even if they are not consumed.
+     */
+    enum Overflow {BLOCK, REJECT, DROP_OLDEST}
+    
+    /**
+     * How to place new files in data dirs.
+     * ROUND_ROBIN: one by one, by file number;
+     * FREE_SPACE: the dir with the most usable space.
+     */
+    enum Placement {ROUND_ROBIN, FREE_SPACE}
 
     static int hashCode(byte[] b, int offset, int len) {
         int h = 0;
@@ -54,6 +112,68 @@ public interface IFile {
         return hashCode(b, 0, b.length);
     }
     
+    static int crc32c(byte[] b, int offset, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(b, offset, len);
+        return (int)crc.getValue();
+    }
+    
+    /**
+     * Crc32c of remaining bytes in the buffers,
+     * positions of the buffers are not changed.
+     * @param bufs buffers, heap or direct
+     * @return crc32c
+     */
+    static int crc32c(ByteBuffer[] bufs) {
+        CRC32C crc = new CRC32C();
+        for(ByteBuffer b : bufs) {
+            crc.update(b.duplicate());
+        }
+        return (int)crc.getValue();
+    }
+    
+    /**
+     * Hash code of a message in a file
+     * @param ver version of the file
+     * @param b buffer
+     * @param offset offset of the message
+     * @param len length of the message
+     * @return crc32c since VER 4, IFile.hashCode before
+     */
+    static int checksum(int ver, byte[] b, int offset, int len) {
+        return ver > VER_BATCH ? crc32c(b, offset, len) : hashCode(b, offset, len);
+    }
+    
+    /**
+     * Hash code of a message in a buffer, its position is not changed
+     * @param ver version of the file
+     * @param b buffer of the message
+     * @return crc32c since VER 4, IFile.hashCode before
+     */
+    static int checksum(int ver, ByteBuffer b) {
+        ByteBuffer[] bufs = new ByteBuffer[] {b};
+        return ver > VER_BATCH ? crc32c(bufs) : hashCode(bufs);
+    }
+    
+    /**
+     * Hash code of remaining bytes in the buffers,
+     * same as hashCode(byte[]) if they are put in one array.
+     * Positions of the buffers are not changed.
+     * @param bufs buffers, heap or direct
+     * @return hash code
+     */
+    static int hashCode(ByteBuffer[] bufs) {
+        int h = 0;
+        for(ByteBuffer b : bufs) {
+            int end = b.limit();
+            for (int i = b.position(); i < end; i++) {
+                h = (h << 6) - h; //*=31
+                h += (((int)b.get(i)) & 0xff);
+            }
+        }
+        return h;
+    }
+    
     /**
      * Encode a integer value into buff
      * @param buf The buffer to save integer value
@@ -75,6 +195,53 @@ public interface IFile {
         }
         return v;
     }
+    
+    static void encodeLong(byte[] buf, long v, int pos) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            buf[pos + i] = (byte) (v & 0xff);
+            v >>= 8;
+        }
+    }
+    
+    static long parseLong(byte[] buf, int pos) {
+        long v = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            v <<= 8;
+            v |= ((long)buf[pos + i]) & 0xff;
+        }
+        return v;
+    }
+    
+    /**
+     * Files of old versions can be read
+     * @param ver version in the file header
+     * @return whether the version is supported
+     */
+    static boolean isValidVer(int ver) {
+        return ver >= VER_INT_POS && ver <= VER;
+    }
+    
+    /**
+     * Offset of a message in the queue
+     * @param fileNo number of the file
+     * @param pos position of the message in the file
+     * @return fileNo(24bits) + position(40bits)
+     * @throws IllegalArgumentException fileNo or pos out of its bits
+     */
+    static long offset(int fileNo, long pos) {
+        if(fileNo < 0 || fileNo > MAX_FILE_NO || pos < 0 || pos > MAX_OFFSET_POS) {
+            throw new IllegalArgumentException("Invalid offset, fileNo:" + fileNo + ",pos:" + pos);
+        }
+        return ((long)fileNo << OFFSET_POS_BITS) | pos;
+    }
+    
+    static int offsetFileNo(long offset) {
+        return (int)(offset >>> OFFSET_POS_BITS);
+    }
+    
+    static long offsetPos(long offset) {
+        return offset & ((1L << OFFSET_POS_BITS) - 1);
+    }
 
     /**
      * Compare two byte array
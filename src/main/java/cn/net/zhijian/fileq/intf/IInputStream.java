@@ -18,6 +18,7 @@ package cn.net.zhijian.fileq.intf;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface IInputStream extends IFile, Closeable {
     /**
@@ -36,7 +37,7 @@ public interface IInputStream extends IFile, Closeable {
      * @return The real length skipped
      * @throws IOException io exception
      */
-    default long skip(int n) throws IOException {
+    default long skip(long n) throws IOException {
         if(n <= 0) {
             return 0;
         }
@@ -44,9 +45,9 @@ public interface IInputStream extends IFile, Closeable {
         byte[] buf = new byte[bufSize];
         int readLen = bufSize;
         int len;
-        int count = 0;
+        long count = 0;
         for(; count < n && readLen > 0; count += readLen) {
-            len = Math.min(n - count, bufSize);
+            len = (int)Math.min(n - count, bufSize);
             readLen = read(buf, 0, len);
         } 
         //BufferedInputStream.skip can't handle correctly,
@@ -59,7 +60,7 @@ public interface IInputStream extends IFile, Closeable {
      * Get the reading position
      * @return position
      */
-    int readPos();
+    long readPos();
     
     /**
      * Here serious problem happened when openNext file in IReader, 
@@ -69,5 +70,25 @@ public interface IInputStream extends IFile, Closeable {
      */
     boolean hasMore(int len);
     
+    /**
+     * Read content as a read-only view, without copying,
+     * only streams reading files by mapping support it.
+     * Call retain() to keep the view valid after the stream moves on
+     * @param len length of the content
+     * @return view, null if not supported, then read it by read(byte[])
+     * @throws IOException io exception
+     */
+    default ByteBuffer view(int len) throws IOException {
+        return null;
+    }
+    
+    /**
+     * Keep the region of the last view mapped, even if the stream is closed
+     * @return action to release it, null if views are not supported
+     */
+    default Runnable retain() {
+        return null;
+    }
+    
     File file();
 }
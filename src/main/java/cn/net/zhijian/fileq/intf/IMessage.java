@@ -15,6 +15,10 @@ limitations under the License.
 */
 package cn.net.zhijian.fileq.intf;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 /**
  * Message
  * @author flyinmind of csdn.net
@@ -38,4 +42,42 @@ public interface IMessage {
      * @return true if passed
      */
     boolean isCorrect();   
+    
+    /**
+     * Content as a stream. A large message pushed by a stream
+     * is read from its chunks in queue files, not loaded into memory,
+     * read the stream to its end or close it, files of it are kept until then.
+     * @return stream of the content
+     */
+    default InputStream stream() {
+        return new ByteArrayInputStream(message(), 0, len());
+    }
+    
+    /**
+     * Length of the content, a chunked message may be longer than Integer.MAX_VALUE
+     * @return length
+     */
+    default long length() {
+        return len();
+    }
+    
+    /**
+     * Content as a read-only buffer, from 0 to len().
+     * It may be a view of a mapped queue file or a shared read chunk, not a copy,
+     * it's valid until release() is called. If autoConfirm,
+     * the dispatcher releases it after the handler returns.
+     * Don't keep it after released, call message() to get a copy.
+     * @return read-only buffer
+     */
+    default ByteBuffer buffer() {
+        return ByteBuffer.wrap(message(), 0, len()).slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * Release the buffer, a mapped region is unmapped
+     * when all views of it are released and the reader has left it.
+     * It can be called more than once.
+     */
+    default void release() {
+    }
 }
@@ -18,15 +18,47 @@ package cn.net.zhijian.fileq.intf;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface IOutputStream extends IFile, Closeable {
     void write(byte[] content) throws IOException;
     void write(byte[] content, int offset, int len) throws IOException;
+    /**
+     * Gather-write remaining bytes of the buffers, all of them are consumed
+     * @param srcs buffers, heap or direct
+     * @param offset offset of the first buffer
+     * @param length number of buffers
+     * @throws IOException io exception
+     */
+    void write(ByteBuffer[] srcs, int offset, int length) throws IOException;
     /**
      * Force all content in buffer to be saved to disk right now
      * @throws IOException io exception
      */
     void flush() throws IOException;
-    int size();
+    
+    /**
+     * Wait until all content before `pos` reaches the durability level.
+     * Concurrent safe, it may be called when writing or after closed,
+     * it returns at once if closed, writer saves content before closing if needed.
+     * Concurrent FSYNC callers share one force.
+     * @param pos position in the stream
+     * @param durability durability level
+     * @throws IOException io exception
+     */
+    void sync(long pos, Durability durability) throws IOException;
+    
+    long size();
+    
+    /**
+     * Size of content that has been written to the file, readers can read it.
+     * Content still in the stream's buffer is not counted,
+     * and a write in progress is not counted until it's finished.
+     * @return written size
+     */
+    default long written() {
+        return size();
+    }
+    
     File file();
 }
\ No newline at end of file
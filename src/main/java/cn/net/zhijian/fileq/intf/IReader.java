@@ -16,6 +16,8 @@ limitations under the License.
 package cn.net.zhijian.fileq.intf;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * All read actions are handled in one thread.
@@ -42,6 +44,27 @@ public interface IReader extends IFile, Closeable {
      */
     IMessage read();
     
+    /**
+     * Read messages in a batch, the batch is returned when it is full,
+     * or maxWait passed since its first message was read.
+     * Should be called in a single thread.
+     * By default, return messages available now, never wait.
+     * @param max max number of messages in a batch
+     * @param maxWait max waiting time in milliseconds
+     * @return messages in order, null if no batch is ready
+     */
+    default List<IMessage> readBatch(int max, long maxWait) {
+        List<IMessage> msgs = null;
+        IMessage msg;
+        while((msgs == null || msgs.size() < max) && (msg = read()) != null) {
+            if(msgs == null) {
+                msgs = new ArrayList<>();
+            }
+            msgs.add(msg);
+        }
+        return msgs;
+    }
+    
     /**
      * Confirm whether the message is handled ok or not
      * @param result handle result
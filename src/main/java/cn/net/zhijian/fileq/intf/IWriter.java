@@ -16,7 +16,12 @@ limitations under the License.
 package cn.net.zhijian.fileq.intf;
 
 import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 import cn.net.zhijian.fileq.FQException;
+import cn.net.zhijian.fileq.MessageBatch;
+import cn.net.zhijian.fileq.util.ChunkCache;
 
 /**
  * Queue file writer
@@ -26,17 +31,105 @@ import cn.net.zhijian.fileq.FQException;
 public interface IWriter extends IFile, Closeable {
     int curFileNo();
     int minFileNo();
-    int size();
+    long size();
+    
+    /**
+     * End of content can be read in a file.
+     * The writing file may be longer than its content, such as a mapped file,
+     * or end with a part of a write in progress, readers can't read beyond
+     * its written size, content still buffered by the writer isn't counted.
+     * @param fileNo file number
+     * @return written size of the writing file, 0 for later ones, others are not limited
+     */
+    long readable(int fileNo);
+    
+    /**
+     * Cache of file chunks shared by all readers of the queue
+     * @return chunk cache, null if not enabled
+     */
+    default ChunkCache chunkCache() {
+        return null;
+    }
+
     String dir(); //queue file dir
     String name(); //queue name
     String queueName(); //dir + queue-name
     String queueFileName(int fileNo);
-    void write(byte[] msg, int offset, int len, boolean chkHash) throws FQException;
+    
+    /**
+     * Default durability of the queue, decided by the writing mode
+     * @return durability
+     */
+    Durability durability();
+    
+    /**
+     * Write a message, return after it reaches the durability level
+     * @param msg message
+     * @param offset offset of the message buffer
+     * @param len length of the message
+     * @param chkHash write hash code of the message or not
+     * @param durability durability level
+     * @throws FQException write exception
+     */
+    void write(byte[] msg, int offset, int len, boolean chkHash, Durability durability) throws FQException;
+    
+    default void write(byte[] msg, int offset, int len, boolean chkHash) throws FQException {
+        write(msg, offset, len, chkHash, durability());
+    }
+    
+    /**
+     * Write a message composed of some buffers,
+     * they are written to the file directly, without copying into a heap buffer.
+     * Remaining bytes of the buffers are consumed.
+     * @param msg buffers of the message, heap or direct
+     * @param chkHash write hash code of the message or not
+     * @param durability durability level
+     * @throws FQException write exception
+     */
+    void write(ByteBuffer[] msg, boolean chkHash, Durability durability) throws FQException;
+    
+    default void write(ByteBuffer[] msg, boolean chkHash) throws FQException {
+        write(msg, chkHash, durability());
+    }
+    
+    /**
+     * Write all messages in the batch with one write,
+     * the batch is never split into two files.
+     * Offsets of the messages can be got by batch.offset after written
+     * @param batch encoded messages
+     * @param durability durability level
+     * @return offset of the first message, see IFile.offset, -1 if the batch is empty
+     * @throws FQException write exception
+     */
+    long write(MessageBatch batch, Durability durability) throws FQException;
+    
+    default long write(MessageBatch batch) throws FQException {
+        return write(batch, durability());
+    }
+    
+    /**
+     * Write a large message read from the stream, it's split into chunks,
+     * so it can be larger than MAX_MSG_SIZE
+     * @param in content of the message, read until its end, not closed
+     * @param chkHash write hash codes of the chunks or not
+     * @param durability durability level
+     * @return offset of the message, see IFile.offset
+     * @throws FQException io exception
+     */
+    long write(InputStream in, boolean chkHash, Durability durability) throws FQException;
     
     /**
      * Hasten writer to flush data to stream
      * when dispatcher is idle a moment.
      */
     void hasten();
+    
+    /**
+     * Files are removed in background,
+     * it tells how many files are waiting to be removed,
+     * including files failed to remove.
+     * @return number of files
+     */
+    int pendingDeletes();
     boolean isClosed();
 }
@@ -0,0 +1,219 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+import cn.net.zhijian.fileq.intf.IInputStream;
+import cn.net.zhijian.fileq.util.ChunkCache;
+
+/**
+ * Read messages from chunks in the cache shared by all readers of a queue.
+ * A chunk not cached is read from the file, and put into the cache when it's full,
+ * the last chunk of the writing file is read by each reader itself,
+ * until it's full, only the missing part is read when it grows.
+ * In hot tail mode, chunks of the writing file are filled by the writer,
+ * readers at the tail never touch the file.
+ * Chunks never change after read, so views of them are valid
+ * until they are collected, needn't release them.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class CachedInputStream implements IInputStream {
+    public final File file;
+    private final int fileNo;
+    private final ChunkCache cache;
+    private final int chunkSize;
+    private final LongSupplier end;
+    private FileChannel fc;
+    private byte[] chunk; //the chunk being read
+    private ChunkCache.Chunk shared; //the cached chunk being read, null if it's not cached
+    private long chunkPos = -1; //file position of the chunk
+    private int chunkLen = 0; //valid length of the chunk
+    private long limit = 0; //cached end of readable content
+    private long readPos = 0;
+
+    /**
+     * @param file queue file
+     * @param fileNo number of the file, chunks are cached by it
+     * @param cache shared chunk cache
+     * @param end end of the content can be read,
+     *  the file may be longer than the written content, such as a mapped file
+     * @throws IOException io exception
+     */
+    public CachedInputStream(File file, int fileNo, ChunkCache cache, LongSupplier end) throws IOException {
+        this.fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.file = file;
+        this.fileNo = fileNo;
+        this.cache = cache;
+        this.chunkSize = cache.chunkSize();
+        this.end = end;
+    }
+
+    /**
+     * Make sure the chunk contains readPos
+     * @return false if there's no content at readPos
+     * @throws IOException io exception
+     */
+    private boolean locate() throws IOException {
+        long index = readPos / chunkSize;
+        long pos = index * chunkSize;
+        if(chunkPos != pos) {
+            chunkPos = pos;
+            shared = cache.get(fileNo, index);
+            if(shared != null) {
+                chunk = shared.data;
+                chunkLen = shared.len();
+            } else {
+                chunk = new byte[chunkSize]; //not reused, views may refer to the old one
+                chunkLen = 0;
+            }
+        }
+        if(readPos < chunkPos + chunkLen) {
+            return true;
+        }
+        fill();
+        return readPos < chunkPos + chunkLen;
+    }
+    
+    /**
+     * Read the missing part of the chunk, cache it if it's full
+     * @throws IOException io exception
+     */
+    private void fill() throws IOException {
+        long e = Math.min(readable(), chunkPos + chunkSize);
+        if(shared != null) {
+            chunkLen = shared.len(); //the writer may have filled more
+            if(chunkPos + chunkLen >= e) {
+                return;
+            }
+            //not filled by the writer, read the rest into a copy
+            chunk = Arrays.copyOf(shared.data, chunkSize);
+            shared = null;
+        }
+        while(chunkPos + chunkLen < e) {
+            int l = fc.read(ByteBuffer.wrap(chunk, chunkLen, (int)(e - chunkPos - chunkLen)), chunkPos + chunkLen);
+            if(l <= 0) {
+                break;
+            }
+            chunkLen += l;
+        }
+        if(chunkLen == chunkSize) {
+            cache.put(fileNo, chunkPos / chunkSize, chunk);
+        }
+    }
+    
+    private long readable() throws IOException {
+        long e = end.getAsLong();
+        if(e == Long.MAX_VALUE) {
+            e = fc.size(); //not the writing file, it has been truncated to the real size
+        } else if(!cache.hotTail() || !cache.covers(fileNo, e)) {
+            e = Math.min(e, fc.size()); //content may be still in the writer's buffer
+        }
+        limit = e;
+        return e;
+    }
+
+    @Override
+    public int read(byte[] buff) throws IOException {
+        return read(buff, 0, buff.length);
+    }
+
+    @Override
+    public int read(byte[] buff, int offset, int len) throws IOException {
+        int n = 0;
+        while(n < len && locate()) {
+            int off = (int)(readPos - chunkPos);
+            int l = Math.min(len - n, chunkLen - off);
+            System.arraycopy(chunk, off, buff, offset + n, l);
+            readPos += l;
+            n += l;
+        }
+        return n == 0 && len > 0 ? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(n <= 0) {
+            return 0;
+        }
+        long l = Math.min(n, readable() - readPos);
+        if(l <= 0) {
+            return 0;
+        }
+        readPos += l;
+        return l;
+    }
+
+    @Override
+    public ByteBuffer view(int len) throws IOException {
+        if(!locate()) {
+            return null;
+        }
+        if(chunkPos + chunkLen - readPos < len && chunkLen < chunkSize) {
+            fill();
+        }
+        if(chunkPos + chunkLen - readPos < len) {
+            return null; //crosses chunks
+        }
+        ByteBuffer v = ByteBuffer.wrap(chunk, (int)(readPos - chunkPos), len).slice().asReadOnlyBuffer();
+        readPos += len;
+        return v;
+    }
+
+    @Override
+    public long readPos() {
+        return readPos;
+    }
+
+    @Override
+    public boolean hasMore(int len) {
+        if(limit - readPos >= len) {
+            return true;
+        }
+        try {
+            return readable() - readPos >= len;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(fc != null) {
+            fc.close();
+            fc = null;
+        }
+        chunk = null;
+        shared = null;
+    }
+
+    @Override
+    public File file() {
+        return file;
+    }
+    
+    @Override
+    public String toString() {
+        return "(" + file + ",pos " + readPos + ",chunk " + chunkPos + '+' + chunkLen + ",limit " + limit + ')';
+    }
+}
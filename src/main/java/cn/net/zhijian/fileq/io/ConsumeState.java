@@ -30,6 +30,8 @@ import cn.net.zhijian.fileq.util.LogUtil;
  * It will save position info to disk every 1000 times reading,
  * or it exceeds 1000ms until fore saving disk.
  * The position is written sequential, the last one is the real one. 
+ * Since VER 1, readPos is 64 bits, state files of VER 0 are still loaded,
+ * then rewritten in the new format.
  * It is a high cost operation to save small content to a file.
  * It occupies about 1/3 time when reading a message.
  * So you should set 'bufferedTimes' with a proper value, for example 1000.
@@ -44,17 +46,18 @@ import cn.net.zhijian.fileq.util.LogUtil;
 public final class ConsumeState implements Closeable, IFile {
     private static final Logger LOG = LogUtil.getInstance();
     private static final int MAX_SAVE_INTERVAL = 1000;
-    private static final int MAX_SIZE = 100 * 1024 * Integer.BYTES * 2 + FILE_HEAD_LEN;
+    private static final int ENTRY_LEN = Integer.BYTES + Long.BYTES; //fileNo + readPos
+    private static final int MAX_SIZE = 100 * 1024 * ENTRY_LEN + FILE_HEAD_LEN;
 
     private final File file;
     //after updated maxBuffTimes times, save read position to file
 	//if it is set too large, there will be risks about re-consuming
     private final int maxBuffTimes;
-    private final byte[] buf = new byte[Integer.BYTES * 2];
+    private final byte[] buf = new byte[ENTRY_LEN];
     private IOutputStream stateFile;
     private long recordTime = System.currentTimeMillis(); //save file time
     private volatile int fileNo = 0;
-    private volatile int readPos = FILE_HEAD_LEN;
+    private volatile long readPos = FILE_HEAD_LEN;
     private int posBuffTimes = 0;
 
     public ConsumeState(File file, int maxBuffTimes) throws IOException {
@@ -67,7 +70,7 @@ public final class ConsumeState implements Closeable, IFile {
         }
         
         int fileNo = 0;
-        int readPos = FILE_HEAD_LEN;
+        long readPos = FILE_HEAD_LEN;
         load : try(FastInputStream fis = new FastInputStream(file, MAX_SIZE)) {
             byte[] head = new byte[FILE_HEAD_LEN];
             int readLen = fis.read(head);
@@ -77,33 +80,41 @@ public final class ConsumeState implements Closeable, IFile {
             //MAGIC(5) + ver(1) + fileNo(4)
             int ver = ((int)head[MAGIC.length]) & 0xff;
             fileNo = IFile.parseInt(head, MAGIC.length + 1);
-            if (ver != VER || fileNo != 0
+            if (!IFile.isValidVer(ver) || fileNo != 0
                 || !IFile.byteArrayEquals(head, 0, MAGIC, 0, MAGIC.length)) {
                 break load; //invalid state file
             }
             
             //continue reading until the last one
-            while(fis.read(buf) == buf.length) {
-                fileNo = IFile.parseInt(buf, 0);
-                readPos = IFile.parseInt(buf, Integer.BYTES);
+            if(ver == VER_INT_POS) {
+                byte[] b = new byte[Integer.BYTES * 2];
+                while(fis.read(b) == b.length) {
+                    fileNo = IFile.parseInt(b, 0);
+                    readPos = IFile.parseInt(b, Integer.BYTES);
+                }
+            } else {
+                while(fis.read(buf) == buf.length) {
+                    fileNo = IFile.parseInt(buf, 0);
+                    readPos = IFile.parseLong(buf, Integer.BYTES);
+                }
             }
         }
         init(fileNo, readPos);
     }
     
-    private void init(int fileNo, int readPos) throws IOException {
+    private void init(int fileNo, long readPos) throws IOException {
         this.fileNo = fileNo;
         this.readPos = readPos;
 
         LOG.info("Create read-state file {}", this.file);
         this.stateFile = new SafeOutputStream(this.file);
-        //MAGIC(5) + ver(1) + 0(4) + fileNo(4) + readPos(4) ...
-        byte[] head = new byte[FILE_HEAD_LEN + Integer.BYTES * 2];
+        //MAGIC(5) + ver(1) + 0(4) + fileNo(4) + readPos(8) ...
+        byte[] head = new byte[FILE_HEAD_LEN + ENTRY_LEN];
         System.arraycopy(MAGIC, 0, head, 0, MAGIC.length);
         head[MAGIC.length] = VER;
         IFile.encodeInt(head, 0, MAGIC.length + 1);
         IFile.encodeInt(head, fileNo, FILE_HEAD_LEN);
-        IFile.encodeInt(head, readPos, FILE_HEAD_LEN + Integer.BYTES);
+        IFile.encodeLong(head, readPos, FILE_HEAD_LEN + Integer.BYTES);
         this.stateFile.write(head);
         this.stateFile.flush();
     }
@@ -119,7 +130,7 @@ public final class ConsumeState implements Closeable, IFile {
         stateFile = null;
     }
 
-    public synchronized void save(int fileNo, int readPos, boolean force) {
+    public synchronized void save(int fileNo, long readPos, boolean force) {
         if(readPos == this.readPos && fileNo == this.fileNo) {
             return;
         }
@@ -129,7 +140,7 @@ public final class ConsumeState implements Closeable, IFile {
         save(force || this.posBuffTimes >= maxBuffTimes);
     }
 
-    public synchronized void save(int readPos, boolean force) {
+    public synchronized void save(long readPos, boolean force) {
         if(readPos == this.readPos) {
             return;
         }
@@ -155,11 +166,11 @@ public final class ConsumeState implements Closeable, IFile {
                     init(fileNo, readPos);
                 } else {
                     /*
-                     * Merge 2 integer values into a buffer
+                     * Merge fileNo and readPos into a buffer
                      * to reduce write-operation times
                      */
                     IFile.encodeInt(buf, fileNo, 0);
-                    IFile.encodeInt(buf, readPos, Integer.BYTES);
+                    IFile.encodeLong(buf, readPos, Integer.BYTES);
                     stateFile.write(buf);
                     stateFile.flush(); //It's very important, save it to disk right now
                 }
@@ -173,7 +184,7 @@ public final class ConsumeState implements Closeable, IFile {
         return fileNo;
     }
 
-    public int readPos() {
+    public long readPos() {
         return readPos;
     }
     
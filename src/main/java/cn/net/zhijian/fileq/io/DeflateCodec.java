@@ -0,0 +1,101 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.io;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import cn.net.zhijian.fileq.intf.ICodec;
+
+/**
+ * Deflate codec, built in jdk, no dependency.
+ * Deflater and Inflater are reused in each thread.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class DeflateCodec implements ICodec {
+    public static final int ID = 1;
+    
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * @param level compression level, 0~9, Deflater.BEST_SPEED is recommended
+     */
+    public DeflateCodec(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+    
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+    
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public int maxCompressedLen(int len) {
+        //zlib's bound, stored blocks when not compressible
+        return len + (len >> 12) + (len >> 14) + (len >> 25) + 13 + 6;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int len, byte[] dst, int dstOffset) throws IOException {
+        Deflater d = deflaters.get();
+        try {
+            d.setInput(src, offset, len);
+            d.finish();
+            int n = 0;
+            while(!d.finished()) {
+                int l = d.deflate(dst, dstOffset + n, dst.length - dstOffset - n);
+                if(l == 0 && dst.length - dstOffset - n == 0) {
+                    throw new IOException("Compressed content is too long");
+                }
+                n += l;
+            }
+            return n;
+        } finally {
+            d.reset();
+        }
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int rawLen) throws IOException {
+        Inflater inf = inflaters.get();
+        try {
+            inf.setInput(src, offset, len);
+            int n = 0;
+            while(n < rawLen) {
+                int l = inf.inflate(dst, dstOffset + n, rawLen - n);
+                if(l == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                n += l;
+            }
+            if(n != rawLen || !inf.finished()) {
+                throw new IOException("Invalid compressed content, raw length " + n + ", expected " + rawLen);
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Invalid compressed content", e);
+        } finally {
+            inf.reset();
+        }
+    }
+}
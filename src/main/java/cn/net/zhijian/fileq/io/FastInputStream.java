@@ -18,7 +18,10 @@ package cn.net.zhijian.fileq.io;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongSupplier;
 
 import cn.net.zhijian.fileq.intf.IInputStream;
 
@@ -36,15 +39,33 @@ public final class FastInputStream implements IInputStream {
 
     private FileInputStream fis;
     private BufferedInputStream bis;
-    private int readPos = 0;
+    private long readPos = 0;
     private int available = 0;
 
+    /**
+     * @param file queue file
+     * @param bufSize size of the read buffer
+     * @param end end of the content can be read,
+     *  the file may be longer than the written content, such as a mapped file,
+     *  pre-reading must not exceed it
+     * @throws IOException io exception
+     */
+    public FastInputStream(File file, int bufSize, LongSupplier end) throws IOException {
+        this.fis = new FileInputStream(file);
+        this.bis = new BufferedInputStream(new BoundedInputStream(fis, end), bufSize);
+        this.file = file;
+    }
+    
     public FastInputStream(File file, int bufSize) throws IOException {
         this.fis = new FileInputStream(file);
         this.bis = new BufferedInputStream(fis, bufSize);
         this.file = file;
     }
     
+    public FastInputStream(File file, LongSupplier end) throws IOException {
+        this(file, BUF_SIZE, end);
+    }
+    
     public FastInputStream(File file) throws IOException {
         this(file, BUF_SIZE);
     }
@@ -65,8 +86,25 @@ public final class FastInputStream implements IInputStream {
         return l;
     }
 
+    /**
+     * Skip in the buffer first, then in the file, not by reading it.
+     * BufferedInputStream.skip may skip less than n, so skip until n or the end
+     */
     @Override
-    public int readPos() {
+    public long skip(long n) throws IOException {
+        long count = 0;
+        for(long l; count < n; count += l) {
+            if((l = bis.skip(n - count)) <= 0) {
+                break;
+            }
+        }
+        readPos += count;
+        available = (int)Math.max(available - count, 0);
+        return count;
+    }
+
+    @Override
+    public long readPos() {
         return readPos;
     }
     
@@ -108,4 +146,58 @@ public final class FastInputStream implements IInputStream {
     public String toString() {
         return "(" + file + ",pos " + readPos + ",available " + available + ')';
     }
+    
+    /**
+     * Input stream can't read beyond the end
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private final LongSupplier end;
+        private long pos = 0;
+
+        BoundedInputStream(InputStream in, LongSupplier end) {
+            super(in);
+            this.end = end;
+        }
+
+        private long left() {
+            return end.getAsLong() - pos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(left() <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if(b >= 0) {
+                pos++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long left = left();
+            if(left <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            int l = in.read(b, off, (int)Math.min(len, left));
+            if(l > 0) {
+                pos += l;
+            }
+            return l;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long l = in.skip(Math.max(Math.min(n, left()), 0));
+            pos += l;
+            return l;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.max(Math.min(in.available(), left()), 0);
+        }
+    }
 }
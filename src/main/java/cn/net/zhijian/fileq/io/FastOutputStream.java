@@ -19,7 +19,10 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import cn.net.zhijian.fileq.intf.IOutputStream;
 
@@ -31,15 +34,20 @@ import cn.net.zhijian.fileq.intf.IOutputStream;
  *
  */
 public final class FastOutputStream implements IOutputStream {
+    private static final int TRANSFER_SIZE = 256 * 1024; //max size of the kept transfer buffer
     private final File file;
     //writing is synchronized in Writer.write, read in multi-threads
-    private int size = 0;
+    private volatile long size = 0;
+    private long flushed = 0; //content before it has been flushed by sync
+    private volatile long written = 0; //content before it has been written to the file
+    private long forced = 0; //content before it has been saved to disk
     private FileOutputStream fos;
     private BufferedOutputStream bos;
+    private byte[] transfer; //used to join content of buffers
 
     public FastOutputStream(File file) throws FileNotFoundException {
         this.fos = new FileOutputStream(file);
-        this.bos = new BufferedOutputStream(fos);
+        this.bos = new BufferedOutputStream(new CountingStream(fos));
         this.file = file;
     }
 
@@ -54,19 +62,75 @@ public final class FastOutputStream implements IOutputStream {
         bos.write(content);
         size += content.length;
     }
+
+    /**
+     * Join the buffers, then write them in one write.
+     * BufferedOutputStream flushes its buffer when it's full,
+     * if they were written one by one, a message may be split,
+     * then readers find a partial message at the end of the file.
+     */
+    @Override
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int total = 0;
+        for(int i = 0; i < length; i++) {
+            total += srcs[offset + i].remaining();
+        }
+        byte[] buf = transfer;
+        if(buf == null || buf.length < total) {
+            buf = new byte[Math.max(total, 8 * 1024)];
+            if(buf.length <= TRANSFER_SIZE) {
+                transfer = buf; //not keep a large one
+            }
+        }
+        int pos = 0;
+        for(int i = 0; i < length; i++) {
+            ByteBuffer b = srcs[offset + i];
+            int len = b.remaining();
+            b.get(buf, pos, len);
+            pos += len;
+        }
+        bos.write(buf, 0, total);
+        size += total;
+    }
     
     @Override
-    public int size() {
+    public long size() {
         return size;
     }
     
+    @Override
+    public long written() {
+        return written;
+    }
+    
     @Override
     public File file() {
         return file;
     }
 
+    /**
+     * Flush the buffer to the file, force it if FSYNC.
+     * Callers are serialized, the first one's flush covers others' content.
+     * BufferedOutputStream is synchronized, so it's safe when writing
+     */
+    @Override
+    public synchronized void sync(long pos, Durability durability) throws IOException {
+        if(durability == Durability.NONE || bos == null) {
+            return;
+        }
+        long s = size;
+        if(flushed < pos) {
+            bos.flush();
+            flushed = s;
+        }
+        if(durability == Durability.FSYNC && forced < pos) {
+            fos.getChannel().force(false);
+            forced = s;
+        }
+    }
+
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         if(bos != null) {
             bos.close();
             bos = null;
@@ -79,7 +143,30 @@ public final class FastOutputStream implements IOutputStream {
     }
 
     @Override
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
         bos.flush();
+        flushed = size;
+    }
+
+    /**
+     * Count content really written to the file by BufferedOutputStream,
+     * it's called in the lock of BufferedOutputStream
+     */
+    private final class CountingStream extends FilterOutputStream {
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
     }
 }
@@ -0,0 +1,242 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import cn.net.zhijian.fileq.intf.IOutputStream;
+
+/**
+ * Group commit output stream.
+ * Pushers append content into a shared staging buffer, it's only a memory copy.
+ * Then they call sync to wait until their content is saved to disk.
+ * The first waiting pusher becomes the leader of a group,
+ * it swaps the staging buffer out, saves it with one FileChannel.write
+ * and one force, then wakes up all waiting pushers at once.
+ * Others wait for the leader, needn't any dedicated thread.
+ * So durable pushes in one group share one force.
+ * Pushers only need WRITTEN durability don't force,
+ * and content of NONE durability stays in the staging buffer,
+ * until someone else saves it.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class GroupOutputStream implements IOutputStream {
+    private static final int STAGING_SIZE = 64 * 1024;
+
+    private final File file;
+    private final Object lock = new Object();
+    private FileOutputStream fos;
+    private FileChannel fc;
+
+    //staging buffer, appended by writer, swapped out by group leader
+    private byte[] staging = new byte[STAGING_SIZE];
+    private byte[] spare = new byte[STAGING_SIZE];
+    private int stagingLen = 0;
+    //writing is synchronized in Writer.write, read in multi-threads
+    private volatile long size = 0;
+    private volatile long written = 0; //content before it has been written to the file
+    private long synced = 0; //content before it has been saved to disk
+    private boolean leading = false; //a group leader is saving content
+    private IOException error; //once failed, all waiters fail
+
+    public GroupOutputStream(File file) throws FileNotFoundException {
+        this.fos = new FileOutputStream(file);
+        this.fc = fos.getChannel();
+        this.file = file;
+    }
+
+    @Override
+    public void write(byte[] content, int offset, int len) throws IOException {
+        reserve(len);
+        synchronized(lock) {
+            extend(len);
+            System.arraycopy(content, offset, staging, stagingLen, len);
+            stagingLen += len;
+            size += len;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int len = 0;
+        for(int i = 0; i < length; i++) {
+            len += srcs[offset + i].remaining();
+        }
+        reserve(len);
+        synchronized(lock) {
+            extend(len);
+            for(int i = 0; i < length; i++) {
+                ByteBuffer b = srcs[offset + i];
+                int l = b.remaining();
+                b.get(staging, stagingLen, l);
+                stagingLen += l;
+            }
+            size += len;
+        }
+    }
+    
+    /**
+     * If staging buffer hasn't enough space to append `len` bytes,
+     * commit staged content first, avoid extending the buffer
+     * @param len length of content to be appended
+     * @throws IOException io exception
+     */
+    private void reserve(int len) throws IOException {
+        boolean full;
+        synchronized(lock) {
+            full = stagingLen > 0 && stagingLen + len > staging.length;
+        }
+        if(full) {
+            sync(size, Durability.WRITTEN);
+        }
+    }
+    
+    /**
+     * Extend staging buffer, only happened when a huge message coming.
+     * Must be called in the lock, the leader may swap the buffer at any time
+     * @param len length of content to be appended
+     */
+    private void extend(int len) {
+        if(stagingLen + len > staging.length) {
+            byte[] buf = new byte[stagingLen + len];
+            System.arraycopy(staging, 0, buf, 0, stagingLen);
+            staging = buf;
+        }
+    }
+
+    @Override
+    public void write(byte[] content) throws IOException {
+        write(content, 0, content.length);
+    }
+
+    /**
+     * Wait until all content before `pos` reaches the durability level.
+     * If no group leader, the caller becomes the leader,
+     * writes all staged content, forces it if FSYNC,
+     * then wakes up all waiters.
+     */
+    @Override
+    public void sync(long pos, Durability durability) throws IOException {
+        if(durability == Durability.NONE) {
+            return;
+        }
+        boolean force = durability == Durability.FSYNC;
+        byte[] buf;
+        int len;
+        long target;
+
+        synchronized(lock) {
+            for(;;) {
+                if(error != null) {
+                    throw new IOException("Fail to save content to " + file, error);
+                }
+                if((force ? synced : written) >= pos || fc == null) { //closed stream has been saved
+                    return;
+                }
+                if(!leading) {
+                    break;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted when waiting for group commit", e);
+                }
+            }
+            //be the leader, swap out the staging buffer
+            leading = true;
+            buf = staging;
+            len = stagingLen;
+            target = size;
+            staging = spare;
+            spare = buf;
+            stagingLen = 0;
+        }
+
+        IOException ex = null;
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            while(bb.hasRemaining()) {
+                fc.write(bb);
+            }
+            if(force) {
+                fc.force(false); //don't care file's meta data
+            }
+        } catch(IOException e) {
+            ex = e;
+        }
+
+        synchronized(lock) {
+            leading = false;
+            if(ex == null) {
+                written = target;
+                if(force) {
+                    synced = target;
+                }
+            } else {
+                error = ex;
+            }
+            lock.notifyAll(); //release all waiters of the group
+        }
+        if(ex != null) {
+            throw ex;
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long written() {
+        return written;
+    }
+
+    @Override
+    public File file() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(fc == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            synchronized(lock) {
+                fc.close();
+                fc = null;
+                fos.close();
+                fos = null;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        sync(size, Durability.FSYNC);
+    }
+}
@@ -0,0 +1,357 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Manifest of a queue, records all files of the queue,
+ * so the writer needn't scan the directory and open all files when starting.
+ * It's rewritten when a file rolls or files are removed,
+ * written to a temporary file, then renamed, so it's always complete.
+ * If it's missing or corrupt, the writer scans the directory.
+ * ---
+ * MAGIC(5) + ver(1) + 0(4) + num(4) + segments + crc32(4)
+ * Segment: fileNo(4) + size(8) + msgNum(4) + firstOffset(8) + lastOffset(8) + sealed(1) + chunkFrom(4) + dir(1)
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class Manifest implements IFile {
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final int SEGMENT_LEN = Integer.BYTES * 3 + Long.BYTES * 3 + 2;
+    private static final int SEGMENT_LEN_V3 = SEGMENT_LEN - 1; //no dir
+    private static final int SEGMENT_LEN_V2 = SEGMENT_LEN_V3 - Integer.BYTES; //no chunkFrom
+    private static final int MAX_SEGMENT_NUM = 1024 * 1024;
+    private static final int MANIFEST_VER = 4; //independent of queue files' version
+    private static final int MANIFEST_VER_V3 = 3;
+    private static final int MANIFEST_VER_V2 = 2;
+
+    private final File file;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Object saving = new Object(); //savers share the temporary file
+
+    /**
+     * A queue file, offsets are generated by IFile.offset.
+     * If it's not sealed, it's the writing file,
+     * size is the checkpoint, content before it has been saved to disk,
+     * msgNum and offsets are the state at the checkpoint.
+     * msgNum -1 means unknown.
+     * chunkFrom is the first file of chunked messages whose trailers are in this file,
+     * it must be kept until this file is consumed.
+     * dir is the index of the data dir the file is placed in, 0 is the queue dir.
+     */
+    public static final class Segment {
+        public final int fileNo;
+        public long size;
+        public int msgNum;
+        public long firstOffset;
+        public long lastOffset;
+        public boolean sealed;
+        public int chunkFrom;
+        public final int dir;
+
+        public Segment(int fileNo, long size, int msgNum, long firstOffset, long lastOffset,
+                boolean sealed, int chunkFrom, int dir) {
+            this.fileNo = fileNo;
+            this.size = size;
+            this.msgNum = msgNum;
+            this.firstOffset = firstOffset;
+            this.lastOffset = lastOffset;
+            this.sealed = sealed;
+            this.chunkFrom = chunkFrom;
+            this.dir = dir;
+        }
+
+        public Segment(int fileNo, int dir) {
+            this(fileNo, 0, 0, -1, -1, false, fileNo, dir);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + fileNo + ",size " + size + ",msgs " + msgNum + (sealed ? ")" : ",writing)");
+        }
+    }
+
+    public Manifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the manifest from its file
+     * @param file manifest file
+     * @return null if the file is missing or corrupt
+     */
+    public static Manifest load(File file) {
+        if(!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            int headLen = FILE_HEAD_LEN + Integer.BYTES;
+            if(content.length < headLen + Integer.BYTES) {
+                LOG.warn("Invalid manifest {}, too short", file);
+                return null;
+            }
+            ByteBuffer bb = ByteBuffer.wrap(content);
+            int ver = 0xff & ((int)content[MAGIC.length]);
+            if((ver != MANIFEST_VER && ver != MANIFEST_VER_V3 && ver != MANIFEST_VER_V2)
+               || !IFile.byteArrayEquals(content, 0, MAGIC, 0, MAGIC.length)) {
+                LOG.warn("Invalid manifest {}, ver={}", file, ver);
+                return null;
+            }
+            int segLen = ver == MANIFEST_VER ? SEGMENT_LEN
+                       : (ver == MANIFEST_VER_V3 ? SEGMENT_LEN_V3 : SEGMENT_LEN_V2);
+            int num = bb.getInt(FILE_HEAD_LEN);
+            if(num < 0 || num > MAX_SEGMENT_NUM
+               || content.length != headLen + num * segLen + Integer.BYTES) {
+                LOG.warn("Invalid manifest {}, segment num {}", file, num);
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, content.length - Integer.BYTES);
+            if((int)crc.getValue() != bb.getInt(content.length - Integer.BYTES)) {
+                LOG.warn("Invalid manifest {}, wrong checksum", file);
+                return null;
+            }
+
+            Manifest m = new Manifest(file);
+            bb.position(headLen);
+            for(int i = 0; i < num; i++) {
+                int fileNo = bb.getInt();
+                m.segments.add(new Segment(fileNo, bb.getLong(), bb.getInt(),
+                        bb.getLong(), bb.getLong(), bb.get() != 0,
+                        ver != MANIFEST_VER_V2 ? bb.getInt() : fileNo,
+                        ver == MANIFEST_VER ? bb.get() & 0xff : 0));
+            }
+            return m;
+        } catch(IOException e) {
+            LOG.warn("Fail to load manifest {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the manifest to a temporary file, then rename it,
+     * so it's never half written.
+     * Saved by the writer and the janitor, they are serialized,
+     * so the later one always writes the newer content.
+     * @throws IOException io exception
+     */
+    public void save() throws IOException {
+        synchronized(saving) {
+            write();
+        }
+    }
+
+    private void write() throws IOException {
+        byte[] content;
+        synchronized(this) {
+            int num = segments.size();
+            content = new byte[FILE_HEAD_LEN + Integer.BYTES + num * SEGMENT_LEN + Integer.BYTES];
+            System.arraycopy(MAGIC, 0, content, 0, MAGIC.length);
+            content[MAGIC.length] = (byte)MANIFEST_VER;
+            ByteBuffer bb = ByteBuffer.wrap(content);
+            bb.position(FILE_HEAD_LEN);
+            bb.putInt(num);
+            for(Segment s : segments) {
+                bb.putInt(s.fileNo).putLong(s.size).putInt(s.msgNum)
+                  .putLong(s.firstOffset).putLong(s.lastOffset).put((byte)(s.sealed ? 1 : 0))
+                  .putInt(s.chunkFrom).put((byte)s.dir);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, bb.position());
+            bb.putInt((int)crc.getValue());
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(content);
+            fos.getChannel().force(false);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Save it, only log the exception, the manifest can be rebuilt
+     */
+    public void saveQuietly() {
+        try {
+            save();
+        } catch(IOException e) {
+            LOG.error("Fail to save manifest {}", file, e);
+        }
+    }
+
+    /**
+     * Add a new file, file numbers must be increasing
+     * @param segment new file
+     */
+    public synchronized void add(Segment segment) {
+        segments.add(segment);
+    }
+
+    /**
+     * Set the final state of a full file
+     */
+    public void seal(int fileNo, long size, int msgNum, long firstOffset, long lastOffset, int chunkFrom) {
+        update(fileNo, size, msgNum, firstOffset, lastOffset, true, chunkFrom);
+    }
+
+    /**
+     * Record the state of the writing file,
+     * content before `size` has been saved to disk,
+     * so recovery only checks content after it.
+     * It's recorded in background, if the file has been sealed
+     * and nothing appended after it, the checkpoint is stale
+     */
+    public void checkpoint(int fileNo, long size, int msgNum, long firstOffset, long lastOffset, int chunkFrom) {
+        update(fileNo, size, msgNum, firstOffset, lastOffset, false, chunkFrom);
+    }
+
+    private synchronized void update(int fileNo, long size, int msgNum,
+            long firstOffset, long lastOffset, boolean sealed, int chunkFrom) {
+        for(int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            if(s.fileNo == fileNo) {
+                if(!sealed && s.sealed && s.size >= size) {
+                    return;
+                }
+                s.size = size;
+                s.msgNum = msgNum;
+                s.firstOffset = firstOffset;
+                s.lastOffset = lastOffset;
+                s.sealed = sealed;
+                s.chunkFrom = chunkFrom;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove files before `fileNo`, they have been removed
+     * @param fileNo the minimum file number
+     */
+    public synchronized void removeBefore(int fileNo) {
+        segments.removeIf(s -> s.fileNo < fileNo);
+    }
+
+    public synchronized void clear() {
+        segments.clear();
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    public synchronized int minFileNo() {
+        return segments.isEmpty() ? -1 : segments.get(0).fileNo;
+    }
+
+    public synchronized int maxFileNo() {
+        return segments.isEmpty() ? -1 : segments.get(segments.size() - 1).fileNo;
+    }
+
+    /**
+     * First file referred by chunked messages in files from `fileNo`,
+     * files from it can't be removed
+     * @param fileNo the minimum file number being consumed
+     * @return the minimum file number to keep
+     */
+    public synchronized int chunkFrom(int fileNo) {
+        int min = fileNo;
+        for(Segment s : segments) {
+            if(s.fileNo >= fileNo && s.chunkFrom < min) {
+                min = s.chunkFrom;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Total size of files before `fileNo`, sizes are recorded
+     * when files are sealed or checkpointed, files are not stated
+     * @param fileNo file number
+     * @return bytes
+     */
+    public synchronized long bytesBefore(int fileNo) {
+        long bytes = 0;
+        for(Segment s : segments) {
+            if(s.fileNo >= fileNo) {
+                break;
+            }
+            bytes += s.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Data dir of a file
+     * @param fileNo file number
+     * @return index of the dir, -1 if the file is not recorded
+     */
+    public synchronized int dirOf(int fileNo) {
+        for(int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            if(s.fileNo == fileNo) {
+                return s.dir;
+            }
+            if(s.fileNo < fileNo) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return copy of all files, in order
+     */
+    public synchronized List<Segment> segments() {
+        List<Segment> list = new ArrayList<>(segments.size());
+        for(Segment s : segments) {
+            list.add(new Segment(s.fileNo, s.size, s.msgNum, s.firstOffset, s.lastOffset,
+                    s.sealed, s.chunkFrom, s.dir));
+        }
+        return list;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "(" + file.getName() + ',' + segments + ')';
+    }
+}
@@ -0,0 +1,222 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import cn.net.zhijian.fileq.intf.IInputStream;
+import cn.net.zhijian.fileq.util.FileUtil;
+
+/**
+ * Read messages from a memory mapped file, only memory copies.
+ * New content is found by the size published by the writer,
+ * no io operation, if the writing file is also mapped,
+ * because it's mapped in full size at the beginning.
+ * Otherwise, the file grows while writing,
+ * it's mapped again when reading beyond the mapped region.
+ * A region can't exceed 2GB, larger files are mapped region by region.
+ * The buffer is unmapped right now when closed, unless views of it
+ * are retained, then it's unmapped after all of them released.
+ * In android, there are compatible problems, use SafeInputStream.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class MappedInputStream implements IInputStream {
+    private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+    public final File file;
+    private final LongSupplier end;
+    private FileChannel fc;
+    private MappedByteBuffer buf;
+    private Region region; //reference count of buf
+    private long mapPos = 0; //file position of the mapped buffer
+    private long mapEnd = 0; //file position of the mapped buffer's end
+    private long limit = 0; //cached end of readable content
+    private long readPos = 0;
+
+    /**
+     * @param file queue file
+     * @param end end of the content can be read,
+     *  the file may be longer than the written content, such as a mapped file
+     * @throws IOException io exception
+     */
+    public MappedInputStream(File file, LongSupplier end) throws IOException {
+        this.fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.file = file;
+        this.end = end;
+        map();
+    }
+
+    /**
+     * Map the region from readPos to the end of the file,
+     * or to the max region size
+     * @throws IOException io exception
+     */
+    private void map() throws IOException {
+        long fileSize = fc.size();
+        if(buf != null && fileSize <= mapEnd) {
+            return; //not grown
+        }
+        unmap();
+        mapPos = readPos;
+        mapEnd = Math.min(Math.max(fileSize, readPos), readPos + MAX_MAP_SIZE);
+        buf = fc.map(FileChannel.MapMode.READ_ONLY, mapPos, mapEnd - mapPos);
+        region = new Region(buf);
+    }
+    
+    private void unmap() {
+        if(region != null) {
+            region.release();
+            region = null;
+        }
+        buf = null;
+    }
+
+    @Override
+    public int read(byte[] buff) throws IOException {
+        return read(buff, 0, buff.length);
+    }
+
+    @Override
+    public int read(byte[] buff, int offset, int len) throws IOException {
+        if(mapEnd - readPos < len) {
+            map();
+        }
+        int l = (int)Math.min(len, mapEnd - readPos);
+        if(l <= 0) {
+            return len == 0 ? 0 : -1;
+        }
+        buf.get(buff, offset, l);
+        readPos += l;
+        return l;
+    }
+
+    /**
+     * Skip region by region, until n or the end of the file
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long count = 0;
+        while(count < n) {
+            if(mapEnd - readPos < n - count) {
+                map();
+            }
+            int l = (int)Math.min(n - count, mapEnd - readPos);
+            if(l <= 0) {
+                break;
+            }
+            buf.position(buf.position() + l);
+            readPos += l;
+            count += l;
+        }
+        return count;
+    }
+
+    @Override
+    public ByteBuffer view(int len) throws IOException {
+        if(mapEnd - readPos < len) {
+            map();
+            if(mapEnd - readPos < len) {
+                return null; //crosses regions
+            }
+        }
+        ByteBuffer v = buf.slice();
+        v.limit(len);
+        buf.position(buf.position() + len);
+        readPos += len;
+        return v;
+    }
+
+    @Override
+    public Runnable retain() {
+        Region r = region;
+        r.refs.incrementAndGet();
+        return r::release;
+    }
+
+    @Override
+    public long readPos() {
+        return readPos;
+    }
+
+    @Override
+    public boolean hasMore(int len) {
+        if(limit - readPos >= len) {
+            return true;
+        }
+
+        try {
+            //writer's size is only a memory access
+            long e = end.getAsLong();
+            if(e == Long.MAX_VALUE) {
+                //not the writing file, it has been truncated to the real size,
+                //never read the region beyond it, or else the process crashes
+                e = fc.size();
+            }
+            if(e > mapEnd) {
+                map(); //the file grows, if it's not written by mapping
+            }
+            limit = Math.min(e, mapEnd);
+            return limit - readPos >= len;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(fc != null) {
+            unmap();
+            fc.close();
+            fc = null;
+        }
+    }
+
+    @Override
+    public File file() {
+        return file;
+    }
+
+    /**
+     * A mapped buffer, referred by the stream and retained views,
+     * it's unmapped when the last one releases it
+     */
+    private static final class Region {
+        private final MappedByteBuffer buf;
+        private final AtomicInteger refs = new AtomicInteger(1); //the stream
+
+        Region(MappedByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        void release() {
+            if(refs.decrementAndGet() == 0) {
+                FileUtil.unmap(buf);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "(" + file + ",pos " + readPos + ",mapped " + mapPos + '-' + mapEnd + ')';
+    }
+}
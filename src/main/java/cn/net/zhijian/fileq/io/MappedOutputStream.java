@@ -0,0 +1,177 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import cn.net.zhijian.fileq.intf.IOutputStream;
+import cn.net.zhijian.fileq.util.FileUtil;
+
+/**
+ * Write messages into a memory mapped file, only memory copies.
+ * The file is mapped in regions of mapSize, a region can't exceed 2GB,
+ * usually the whole file is mapped at once, so the file is longer than its content
+ * until it's closed, readers must not read beyond size().
+ * When closed, the buffer is unmapped right now,
+ * and the file is truncated to the real size.
+ * In android, there are compatible problems, use SafeOutputStream.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class MappedOutputStream implements IOutputStream {
+    private final File file;
+    private final int mapSize;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+    private MappedByteBuffer buf;
+    private long mapPos = 0; //file position of the mapped buffer
+    //written by Writer's drainer, read in multi-threads.
+    //volatile, content must be visible before size
+    private volatile long size = 0;
+    private long forced = 0; //content before it has been saved to disk
+
+    /**
+     * @param file queue file
+     * @param mapSize size of mapping, if not enough, map more
+     * @throws IOException io exception
+     */
+    public MappedOutputStream(File file, int mapSize) throws IOException {
+        this.raf = new RandomAccessFile(file, "rw");
+        this.fc = raf.getChannel();
+        this.file = file;
+        this.mapSize = mapSize;
+        try {
+            raf.setLength(0); //remove old content, if the file exists
+            this.buf = fc.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+        } catch(IOException e) {
+            fc.close();
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] content, int offset, int len) throws IOException {
+        reserve(len);
+        buf.put(content, offset, len);
+        size += len;
+    }
+
+    @Override
+    public void write(byte[] content) throws IOException {
+        write(content, 0, content.length);
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int total = 0;
+        for(int i = 0; i < length; i++) {
+            total += srcs[offset + i].remaining();
+        }
+        reserve(total);
+        for(int i = 0; i < length; i++) {
+            buf.put(srcs[offset + i]);
+        }
+        size += total;
+    }
+
+    /**
+     * If the mapped buffer is full, map the next region.
+     * Happened when the last message exceeds the max file size,
+     * or the max file size is larger than one region
+     * @param len length to be written
+     * @throws IOException io exception
+     */
+    private void reserve(int len) throws IOException {
+        if(fc == null) {
+            throw new IOException("Stream of " + file + " has been closed");
+        }
+        if(buf.remaining() >= len) {
+            return;
+        }
+        flush(); //the old region will not be forced any more
+        FileUtil.unmap(buf);
+        mapPos = size;
+        buf = fc.map(FileChannel.MapMode.READ_WRITE, mapPos, Math.max(mapSize, len));
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Content in mapped memory survives when the process crashed,
+     * it's same as written to the file, so only FSYNC needs to force.
+     * Use FileChannel.force, it saves the mapped pages in linux,
+     * and never touches the buffer which may be remapped by the writer.
+     * Callers are serialized, the first one's force covers others' content.
+     */
+    @Override
+    public void sync(long pos, Durability durability) throws IOException {
+        if(durability != Durability.FSYNC) {
+            return;
+        }
+        synchronized(this) {
+            if(fc == null || forced >= pos) {
+                return;
+            }
+            long s = size;
+            fc.force(false);
+            forced = s;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(fc == null) {
+            return;
+        }
+        try {
+            FileUtil.unmap(buf);
+            buf = null;
+            fc.truncate(size); //remove the unused mapped space
+        } finally {
+            fc.close();
+            fc = null;
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * Force modified pages to disk, only when new content written
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if(buf == null || forced == size) {
+            return;
+        }
+        long s = size;
+        buf.force();
+        forced = s;
+    }
+}
@@ -20,6 +20,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.function.LongSupplier;
 
 import cn.net.zhijian.fileq.intf.IInputStream;
 
@@ -39,13 +40,25 @@ public final class SafeInputStream implements IInputStream {
     public final File file;
     private FileInputStream fis;
     private FileChannel fc;
-    private int readPos = 0;
+    private long readPos = 0;
     private long size = 0;
+    private final LongSupplier end;
 
-    public SafeInputStream(File file) throws IOException {
+    /**
+     * @param file queue file
+     * @param end end of the content can be read,
+     *  the file may be longer than the written content, such as a mapped file
+     * @throws IOException io exception
+     */
+    public SafeInputStream(File file, LongSupplier end) throws IOException {
         this.fis = new FileInputStream(file);
         this.fc = fis.getChannel();
         this.file = file;
+        this.end = end;
+    }
+
+    public SafeInputStream(File file) throws IOException {
+        this(file, () -> Long.MAX_VALUE);
     }
 
     @Override
@@ -62,8 +75,25 @@ public final class SafeInputStream implements IInputStream {
         return l;
     }
 
+    /**
+     * Move the position of the channel, not exceed the end
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if(n <= 0) {
+            return 0;
+        }
+        long l = Math.min(n, Math.min(fc.size(), end.getAsLong()) - readPos);
+        if(l <= 0) {
+            return 0;
+        }
+        fc.position(fc.position() + l);
+        readPos += l;
+        return l;
+    }
+
     @Override
-    public int readPos() {
+    public long readPos() {
         return readPos;
     }
     
@@ -76,7 +106,7 @@ public final class SafeInputStream implements IInputStream {
         try {
             //size() is a IO operation,
             //Here,need not a precise value, so use a cached one
-            size = fc.size();
+            size = Math.min(fc.size(), end.getAsLong());
             return size - readPos >= len;
             //return fis.available() > 0; //is writing
         } catch (IOException e) {
@@ -32,14 +32,15 @@ import cn.net.zhijian.fileq.intf.IOutputStream;
  * 3)MappedByteBuffer is the most efficient way.
  *   But it has latency to store data to disk,and it's very hard to close.
  *   In android, there are compatible problems.
- *   So give it up;
+ *   So it's optional, set mappedPush mode to use MappedOutputStream;
  * @author flyinmind of csdn.net
  *
  */
 public final class SafeOutputStream implements IOutputStream {
     private final File file;
     //writing is synchronized in Writer.write, read in multi-threads
-    private int size = 0;
+    private volatile long size = 0;
+    private long forced = 0; //content before it has been saved to disk
     private FileOutputStream fos;
     private FileChannel fc;
 
@@ -60,7 +61,20 @@ public final class SafeOutputStream implements IOutputStream {
     }
 
     @Override
-    public int size() {
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for(int i = 0; i < length; i++) {
+            total += srcs[offset + i].remaining();
+        }
+        //direct buffers are written without copying
+        for(long n = 0; n < total; ) {
+            n += fc.write(srcs, offset, length);
+        }
+        size += total;
+    }
+
+    @Override
+    public long size() {
         return size;
     }
     
@@ -69,8 +83,28 @@ public final class SafeOutputStream implements IOutputStream {
         return file;
     }
 
+    /**
+     * Content has been written to the file when write returns,
+     * so only FSYNC needs to force.
+     * Callers are serialized, the first one's force covers others' content.
+     */
+    @Override
+    public void sync(long pos, Durability durability) throws IOException {
+        if(durability != Durability.FSYNC) {
+            return;
+        }
+        synchronized(this) {
+            if(fc == null || forced >= pos) {
+                return;
+            }
+            long s = size;
+            fc.force(false); //don't care file's meta data
+            forced = s;
+        }
+    }
+
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         if(fc != null) {
             fc.close();
             fc = null;
@@ -84,6 +118,6 @@ public final class SafeOutputStream implements IOutputStream {
 
     @Override
     public void flush() throws IOException {
-		fc.force(false); //don't care file's meta data
+        sync(size, Durability.FSYNC);
     }
 }
@@ -0,0 +1,168 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import cn.net.zhijian.fileq.intf.IOutputStream;
+import cn.net.zhijian.fileq.util.ChunkCache;
+
+/**
+ * Copy content into chunks of the cache before writing it to the file,
+ * so readers at the tail read new messages from memory.
+ * Content in the cache is ahead of the file, readers never read beyond
+ * the size of the stream, so they only read written content.
+ * If a write fails, content after the real size is dropped from the chunk.
+ * A chunk is filled only if it's written from its beginning.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class TailOutputStream implements IOutputStream {
+    private final IOutputStream out;
+    private final int fileNo;
+    private final ChunkCache cache;
+    private final int chunkSize;
+    //writing is synchronized in Writer
+    private ChunkCache.Chunk tail; //chunk being filled, null if not started
+    private long tailPos = 0; //file position of the tail chunk
+
+    /**
+     * @param out stream writing the file
+     * @param fileNo number of the file, chunks are cached by it
+     * @param cache shared chunk cache
+     */
+    public TailOutputStream(IOutputStream out, int fileNo, ChunkCache cache) {
+        this.out = out;
+        this.fileNo = fileNo;
+        this.cache = cache;
+        this.chunkSize = cache.chunkSize();
+    }
+
+    @Override
+    public void write(byte[] content) throws IOException {
+        write(content, 0, content.length);
+    }
+
+    @Override
+    public void write(byte[] content, int offset, int len) throws IOException {
+        long pos = out.size();
+        copy(pos, ByteBuffer.wrap(content, offset, len));
+        try {
+            out.write(content, offset, len);
+        } finally {
+            check(pos + len);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long pos = out.size();
+        long end = pos;
+        for(int i = 0; i < length; i++) {
+            ByteBuffer b = srcs[offset + i].duplicate(); //srcs are consumed when written
+            end += b.remaining();
+            pos = copy(pos, b);
+        }
+        try {
+            out.write(srcs, offset, length);
+        } finally {
+            check(end);
+        }
+    }
+
+    /**
+     * Copy content into the tail chunk, start a new one when it's full
+     * @param pos file position of the content
+     * @param src content
+     * @return file position after the content
+     */
+    private long copy(long pos, ByteBuffer src) {
+        while(src.hasRemaining()) {
+            if(tail == null || pos >= tailPos + chunkSize) {
+                tail = null;
+                long off = pos % chunkSize;
+                if(off != 0) { //the start of the chunk is not cached, skip it
+                    int skip = (int)Math.min(src.remaining(), chunkSize - off);
+                    src.position(src.position() + skip);
+                    pos += skip;
+                    continue;
+                }
+                tailPos = pos;
+                tail = cache.startTail(fileNo, pos / chunkSize);
+            }
+            int off = (int)(pos - tailPos);
+            int l = Math.min(src.remaining(), chunkSize - off);
+            src.get(tail.data, off, l);
+            tail.len(off + l);
+            pos += l;
+        }
+        return pos;
+    }
+
+    /**
+     * Drop content not written from the cache
+     * @param expected expected size after written
+     */
+    private void check(long expected) {
+        long size = out.size();
+        if(size == expected || tail == null) {
+            return;
+        }
+        if(size >= tailPos) {
+            tail.len((int)Math.min(size - tailPos, chunkSize));
+        } else { //former chunks are not right
+            cache.remove(fileNo);
+            tail = null;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void sync(long pos, Durability durability) throws IOException {
+        out.sync(pos, durability);
+    }
+
+    @Override
+    public long size() {
+        return out.size();
+    }
+
+    /**
+     * Readers are bounded by it, when chunks are evicted they read the file,
+     * content still buffered by the stream must not be read
+     */
+    @Override
+    public long written() {
+        return out.written();
+    }
+
+    @Override
+    public File file() {
+        return out.file();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tail = null;
+        out.close();
+    }
+}
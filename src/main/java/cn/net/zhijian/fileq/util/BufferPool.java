@@ -0,0 +1,192 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.util;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Pool of byte arrays in size classes of power of 2,
+ * from MIN_BUF_SIZE to maxBufSize, larger ones are not pooled.
+ * Free arrays kept in the pool are no more than maxBytes,
+ * arrays in use are not counted, they are limited by messages in flight.
+ * Buffers are reference counted, the array returns to the pool
+ * when the last reference is released.
+ * In leak detection mode, where a buffer is acquired is recorded,
+ * and it's logged if the buffer is collected without released,
+ * it costs much, only for debugging.
+ * One pool can be shared by many queues.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class BufferPool {
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final int MIN_SHIFT = 8;
+    public static final int MIN_BUF_SIZE = 1 << MIN_SHIFT;
+    public static final int DEFAULT_MAX_BUF_SIZE = 256 * 1024;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ConcurrentLinkedQueue<byte[]>[] classes;
+    private final int maxShift;
+    private final long maxBytes;
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final AtomicInteger lentNum = new AtomicInteger(0); //acquired, not released
+    private final boolean detectLeaks;
+
+    /**
+     * @param maxBytes max bytes of free arrays kept in the pool
+     * @param maxBufSize max size of pooled arrays, rounded up to power of 2
+     * @param detectLeaks log buffers collected without released
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxBytes, int maxBufSize, boolean detectLeaks) {
+        this.maxShift = Math.max(shiftOf(maxBufSize), MIN_SHIFT);
+        this.maxBytes = maxBytes;
+        this.detectLeaks = detectLeaks;
+        this.classes = new ConcurrentLinkedQueue[maxShift - MIN_SHIFT + 1];
+        for(int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    public BufferPool(long maxBytes) {
+        this(maxBytes, DEFAULT_MAX_BUF_SIZE, false);
+    }
+
+    private static int shiftOf(int size) {
+        return size <= MIN_BUF_SIZE ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Get an array not shorter than len
+     * @param len length needed
+     * @return buffer, its reference count is 1
+     */
+    public Buffer acquire(int len) {
+        int shift = shiftOf(len);
+        if(shift > maxShift) {
+            return new Buffer(new byte[len], null);
+        }
+        byte[] a = classes[shift - MIN_SHIFT].poll();
+        if(a != null) {
+            pooledBytes.addAndGet(-a.length);
+        } else {
+            a = new byte[1 << shift];
+        }
+        lentNum.incrementAndGet();
+        return new Buffer(a, this);
+    }
+
+    private void recycle(byte[] a) {
+        lentNum.decrementAndGet();
+        if(pooledBytes.addAndGet(a.length) > maxBytes) { //full, discard it
+            pooledBytes.addAndGet(-a.length);
+            return;
+        }
+        classes[shiftOf(a.length) - MIN_SHIFT].offer(a);
+    }
+
+    /**
+     * @return bytes of free arrays in the pool
+     */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Buffers not released are not returned to the pool,
+     * it helps to find leaks without the cost of detectLeaks
+     * @return number of pooled buffers acquired and not released
+     */
+    public int lentNum() {
+        return lentNum.get();
+    }
+
+    /**
+     * A pooled array, don't use the array after the last reference released
+     */
+    public static final class Buffer {
+        private final byte[] array;
+        private final BufferPool pool; //null if not pooled
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private final Leak leak; //null if not detecting
+
+        private Buffer(byte[] array, BufferPool pool) {
+            this.array = array;
+            this.pool = pool;
+            if(pool != null && pool.detectLeaks) {
+                this.leak = new Leak(array.length);
+                this.leak.cleanable = CLEANER.register(this, leak);
+            } else {
+                this.leak = null;
+            }
+        }
+
+        public byte[] array() {
+            return array;
+        }
+
+        public Buffer retain() {
+            refs.incrementAndGet();
+            return this;
+        }
+
+        public void release() {
+            int n = refs.decrementAndGet();
+            if(n > 0) {
+                return;
+            }
+            if(n < 0) {
+                LOG.warn("Buffer released too many times", new Throwable());
+                return;
+            }
+            if(leak != null) {
+                leak.released = true;
+                leak.cleanable.clean();
+            }
+            if(pool != null) {
+                pool.recycle(array);
+            }
+        }
+    }
+
+    /**
+     * Run when a buffer is collected or released,
+     * it doesn't refer the buffer, or else the buffer is never collected.
+     * The leaked array is not recycled, it may be still used by someone
+     */
+    private static final class Leak implements Runnable {
+        private final int size;
+        private final Throwable acquiredAt = new Throwable("Acquired here");
+        private volatile boolean released = false;
+        private Cleaner.Cleanable cleanable;
+
+        Leak(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            if(!released) {
+                LOG.error("Buffer of {} bytes leaked, not released", size, acquiredAt);
+            }
+        }
+    }
+}
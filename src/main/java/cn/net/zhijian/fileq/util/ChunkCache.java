@@ -0,0 +1,209 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of queue file content in fixed-size chunks, shared by all readers of a queue.
+ * Only the first reader touching a chunk reads it from disk,
+ * others copy it from the cache, so extra consumers cost little io.
+ * Readers only cache full chunks, content in them never changes.
+ * In hot tail mode, the writer fills chunks of the writing file as it appends,
+ * readers at the tail read new messages from memory without any io,
+ * content before the length of a chunk never changes too.
+ * The least recently used ones are evicted when it's full,
+ * readers lagging behind read evicted chunks from files again.
+ * Chunks of a file are removed when the file is removed.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class ChunkCache {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    private final int chunkSize;
+    private final long maxBytes;
+    private final boolean hotTail;
+    private final LinkedHashMap<Long, Chunk> chunks = new LinkedHashMap<>(16, 0.75f, true); //in access order
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxBytes max bytes of all chunks
+     * @param chunkSize size of a chunk
+     * @param hotTail the writer fills chunks as it appends
+     */
+    public ChunkCache(long maxBytes, int chunkSize, boolean hotTail) {
+        if(chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size too small " + chunkSize);
+        }
+        if(maxBytes < chunkSize) {
+            throw new IllegalArgumentException("Cache size smaller than a chunk " + maxBytes);
+        }
+        this.chunkSize = chunkSize;
+        this.maxBytes = maxBytes;
+        this.hotTail = hotTail;
+    }
+
+    public ChunkCache(long maxBytes) {
+        this(maxBytes, DEFAULT_CHUNK_SIZE, false);
+    }
+
+    private static long key(int fileNo, long index) {
+        return ((long)fileNo << 32) | index;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public boolean hotTail() {
+        return hotTail;
+    }
+
+    /**
+     * Get a chunk, don't change it
+     * @param fileNo file number
+     * @param index index of the chunk in the file
+     * @return chunk, null if not cached
+     */
+    public synchronized Chunk get(int fileNo, long index) {
+        Chunk c = chunks.get(key(fileNo, index));
+        if(c != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return c;
+    }
+
+    /**
+     * Put a full chunk, evict the least recently used ones if full
+     * @param fileNo file number
+     * @param index index of the chunk in the file
+     * @param chunk content, its length is chunkSize, don't change it later
+     */
+    public void put(int fileNo, long index, byte[] chunk) {
+        put(fileNo, index, new Chunk(chunk, chunk.length));
+    }
+
+    /**
+     * Start a chunk of the writing file, it's filled by the writer
+     * @param fileNo file number
+     * @param index index of the chunk in the file
+     * @return empty chunk
+     */
+    public Chunk startTail(int fileNo, long index) {
+        Chunk c = new Chunk(new byte[chunkSize], 0);
+        put(fileNo, index, c);
+        return c;
+    }
+
+    private synchronized void put(int fileNo, long index, Chunk chunk) {
+        Chunk old = chunks.put(key(fileNo, index), chunk);
+        if(old != null) {
+            bytes -= old.data.length;
+        }
+        bytes += chunk.data.length;
+        Iterator<Chunk> it = chunks.values().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().data.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Whether content before `end` of a file can be read from the cache,
+     * only the chunk at the end is checked
+     * @param fileNo file number
+     * @param end end of content
+     * @return true if the chunk at the end is cached
+     */
+    public synchronized boolean covers(int fileNo, long end) {
+        if(end <= 0) {
+            return true;
+        }
+        long index = (end - 1) / chunkSize;
+        Chunk c = chunks.get(key(fileNo, index));
+        return c != null && index * chunkSize + c.len >= end;
+    }
+
+    /**
+     * Remove all chunks of a file, when the file is removed
+     * @param fileNo file number
+     */
+    public synchronized void remove(int fileNo) {
+        Iterator<Map.Entry<Long, Chunk>> it = chunks.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Long, Chunk> e = it.next();
+            if((int)(e.getKey() >>> 32) == fileNo) {
+                bytes -= e.getValue().data.length;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Content of a chunk, bytes before len never change.
+     * The writer copies content into data, then publishes it by len
+     */
+    public static final class Chunk {
+        public final byte[] data;
+        private volatile int len;
+
+        Chunk(byte[] data, int len) {
+            this.data = data;
+            this.len = len;
+        }
+
+        public int len() {
+            return len;
+        }
+
+        public boolean full() {
+            return len == data.length;
+        }
+
+        /**
+         * Only called by the writer
+         * @param len new length of valid content
+         */
+        public void len(int len) {
+            this.len = len;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "(chunks " + chunks.size() + ",bytes " + bytes + ",hits " + hits + ",misses " + misses + ')';
+    }
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2023 zhijian.net.cn
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package cn.net.zhijian.fileq.util;
+
+import cn.net.zhijian.fileq.intf.ICodec;
+import cn.net.zhijian.fileq.io.DeflateCodec;
+
+/**
+ * Registered codecs, readers find codecs of blocks here.
+ * Deflate is registered by default,
+ * other codecs, such as LZ4, are registered by applications,
+ * or by FileQueue.Builder.compression.
+ * @author flyinmind of csdn.net
+ *
+ */
+public final class Codecs {
+    private static final int MAX_ID = 127;
+    private static final ICodec[] CODECS = new ICodec[MAX_ID + 1];
+    
+    static {
+        register(new DeflateCodec());
+    }
+    
+    private Codecs() {
+    }
+    
+    public static synchronized void register(ICodec codec) {
+        int id = codec.id();
+        if(id <= 0 || id > MAX_ID) {
+            throw new IllegalArgumentException("Invalid codec id " + id);
+        }
+        CODECS[id] = codec;
+    }
+    
+    /**
+     * @param id codec id in the block header
+     * @return null if not registered
+     */
+    public static synchronized ICodec get(int id) {
+        return id <= 0 || id > MAX_ID ? null : CODECS[id];
+    }
+}
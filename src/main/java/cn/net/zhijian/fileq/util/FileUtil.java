@@ -16,6 +16,9 @@ limitations under the License.
 package cn.net.zhijian.fileq.util;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 
 /**
  * File utils
@@ -23,6 +26,27 @@ import java.io.File;
  *
  */
 public final class FileUtil {
+    //sun.misc.Unsafe.invokeCleaner, only in java9+, not in android
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> cls = Class.forName("sun.misc.Unsafe");
+            Field f = cls.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = cls.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch(Exception e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+    
     public static String addPath(String path, String name) {
         int len = path.length();
         char ch = path.charAt(len - 1);
@@ -41,4 +65,23 @@ public final class FileUtil {
         } catch(Exception e) {
         }
     }
+    
+    /**
+     * Unmap a mapped buffer right now, don't wait for GC.
+     * After it, the buffer must never be accessed again,
+     * otherwise the process will crash.
+     * @param buf mapped buffer
+     * @return false if it's not supported, the buffer will be unmapped by GC
+     */
+    public static boolean unmap(ByteBuffer buf) {
+        if(buf == null || INVOKE_CLEANER == null || !buf.isDirect()) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buf);
+            return true;
+        } catch(Exception e) {
+            return false;
+        }
+    }
 }
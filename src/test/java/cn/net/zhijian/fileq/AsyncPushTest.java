@@ -0,0 +1,138 @@
+package cn.net.zhijian.fileq;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.Durability;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push asynchronously in many threads, check offsets are unique,
+ * and messages of each thread are in order.
+ * Then close the queue while pushing, every future must complete
+ * @author flyinmind of csdn.net
+ *
+ */
+public class AsyncPushTest extends TestBase {
+    private static final int THREAD_NUM = 4;
+    private static final int MSG_NUM = 50000; //messages of each thread
+    private static final Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        AtomicInteger errNum = new AtomicInteger(0);
+
+        FileQueue.Builder builder = new FileQueue.Builder(FileUtil.addPath(workDir, "asyncq"), "async")
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch counter = new CountDownLatch(THREAD_NUM * MSG_NUM);
+        Map<Integer, Integer> lastSeqs = new ConcurrentHashMap<>();
+        fq.addConsumer("async_consumer", true, (msg, reader) -> {
+            byte[] m = msg.message();
+            int t = IFile.parseInt(m, 0);
+            int seq = IFile.parseInt(m, Integer.BYTES);
+            Integer last = lastSeqs.put(t, seq);
+            if((last == null ? -1 : last) + 1 != seq || !msg.isCorrect()) {
+                errNum.incrementAndGet();
+            }
+            counter.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        List<List<CompletableFuture<Long>>> futures = new ArrayList<>();
+        Thread[] threads = new Thread[THREAD_NUM];
+        for(int t = 0; t < THREAD_NUM; t++) {
+            final int no = t;
+            List<CompletableFuture<Long>> fs = new ArrayList<>(MSG_NUM);
+            futures.add(fs);
+            threads[t] = new Thread(() -> {
+                for(int i = 0; i < MSG_NUM; i++) {
+                    byte[] m = new byte[Integer.BYTES * 2 + i % 50];
+                    IFile.encodeInt(m, no, 0);
+                    IFile.encodeInt(m, i, Integer.BYTES);
+                    fs.add(fq.pushAsync(m, 0, m.length, (i & 1) == 0, Durability.NONE));
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        Set<Long> offsets = new HashSet<>();
+        for(List<CompletableFuture<Long>> fs : futures) {
+            for(CompletableFuture<Long> f : fs) {
+                if(!offsets.add(f.get(10, TimeUnit.SECONDS))) {
+                    errNum.incrementAndGet();
+                }
+            }
+        }
+        long interval = Math.max(System.currentTimeMillis() - start, 1);
+        LOG.info("Push num:{},speed:{}/s", THREAD_NUM * MSG_NUM, (1000L * THREAD_NUM * MSG_NUM) / interval);
+        if(!counter.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", THREAD_NUM * MSG_NUM - counter.getCount());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Unique offsets:{},error num:{}", offsets.size(), errNum.get());
+
+        //close while pushing, pushers never hang, the pushing thread quits
+        builder = new FileQueue.Builder(FileUtil.addPath(workDir, "asyncq"), "closing")
+            .maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue cq = FQTool.create(builder);
+        List<CompletableFuture<Long>> pending = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread pusher = new Thread(() -> {
+            byte[] m = new byte[100];
+            for(int i = 0; i < MSG_NUM; i++) {
+                pending.add(cq.pushAsync(m, Durability.NONE));
+                started.countDown();
+            }
+        });
+        pusher.start();
+        started.await();
+        FQTool.remove(builder.queueName());
+        pusher.join();
+        int written = 0;
+        int rejected = 0;
+        for(CompletableFuture<Long> f : pending) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                written++;
+            } catch(Exception e) {
+                if(!f.isDone()) {
+                    errNum.incrementAndGet();
+                }
+                rejected++;
+            }
+        }
+        for(Thread t : Thread.getAllStackTraces().keySet()) {
+            if(t.getName().startsWith("FileQueue_Async_closing")) {
+                LOG.error("Async pusher still alive after closed");
+                errNum.incrementAndGet();
+            }
+        }
+        LOG.info("Written:{},rejected:{},error num:{}", written, rejected, errNum.get());
+
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+}
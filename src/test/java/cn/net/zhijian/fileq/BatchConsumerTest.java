@@ -0,0 +1,222 @@
+package cn.net.zhijian.fileq;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.intf.IMessage;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Batch consumers get messages in order, never more than maxNum in a batch.
+ * A failed batch, returned false or thrown an exception, is handed out again.
+ * A batch not full is handed out after maxWait.
+ * A batch not confirmed is delivered again after the queue reopened
+ * @author flyinmind of csdn.net
+ *
+ */
+public class BatchConsumerTest extends TestBase {
+    private static final int MSG_NUM = 10000;
+    private static final int MSG_LEN = 100;
+    private static final int MAX_NUM = 50;
+    private static final int FAIL_NUM = 4;
+    private static final long MAX_WAIT = 200; //ms
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "batchconsumerq");
+        clearDir(dir);
+
+        retry(dir);
+        waiting(dir);
+        reopen(dir);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static FileQueue.Builder builder(String dir, String name) {
+        return new FileQueue.Builder(dir, name)
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+    }
+
+    /**
+     * Some batches fail, they are handed out again, the same messages
+     */
+    private static void retry(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "retry");
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger expected = new AtomicInteger(0);
+        AtomicInteger batchNum = new AtomicInteger(0);
+        AtomicInteger failed = new AtomicInteger(-1); //first message of the failed batch
+        AtomicInteger retried = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(MSG_NUM);
+        fq.addBatchConsumer("retry_consumer", MAX_NUM, MAX_WAIT, InitPosition.CUR, true, (msgs, reader) -> {
+            int first = no(msgs.get(0));
+            if(msgs.size() > MAX_NUM) {
+                LOG.error("Batch of {} messages, more than {}", msgs.size(), MAX_NUM);
+                errNum.incrementAndGet();
+            }
+            if(first == failed.get()) { //handed out again
+                failed.set(-1);
+                retried.incrementAndGet();
+            } else if(failed.get() >= 0) {
+                LOG.error("Failed batch at {} not handed out again, got {}", failed.get(), first);
+                errNum.incrementAndGet();
+            }
+            int n = batchNum.incrementAndGet();
+            if(n % 20 == 10 && n / 20 < FAIL_NUM) {
+                failed.set(first);
+                if(n / 20 % 2 == 0) {
+                    return false;
+                }
+                throw new RuntimeException("Batch at " + first + " failed");
+            }
+            check(msgs, expected);
+            for(int i = 0; i < msgs.size(); i++) {
+                over.countDown();
+            }
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        push(fq, 0, MSG_NUM);
+        if(!over.await(60, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages handled", expected.get());
+            errNum.incrementAndGet();
+        }
+        if(retried.get() != FAIL_NUM) {
+            LOG.error("{} failed batches handed out again, not {}", retried.get(), FAIL_NUM);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Retry, batch num:{},time:{},error num:{}", batchNum.get(),
+                System.currentTimeMillis() - start, errNum.get());
+    }
+
+    /**
+     * A few messages are handed out after maxWait, not waiting for a full batch
+     */
+    private static void waiting(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "waiting");
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger expected = new AtomicInteger(0);
+        AtomicLong handledAt = new AtomicLong(0);
+        AtomicInteger size = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(1);
+        fq.addBatchConsumer("waiting_consumer", MAX_NUM, MAX_WAIT, (msgs, reader) -> {
+            check(msgs, expected);
+            size.set(msgs.size());
+            handledAt.set(System.currentTimeMillis());
+            over.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        push(fq, 0, 3);
+        if(!over.await(10, TimeUnit.SECONDS)) {
+            LOG.error("Batch not full never handed out");
+            errNum.incrementAndGet();
+        } else if(size.get() != 3 || handledAt.get() - start < MAX_WAIT / 2) {
+            LOG.error("Batch of {} messages handed out after {}ms", size.get(), handledAt.get() - start);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Waiting, time:{},error num:{}", handledAt.get() - start, errNum.get());
+    }
+
+    /**
+     * Batches are confirmed by the handler, the last one is kept unconfirmed,
+     * it's handed out again after the queue reopened
+     */
+    private static void reopen(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "reopen");
+        FileQueue fq = FQTool.create(builder);
+        int confirmTo = MSG_NUM / 2;
+        AtomicInteger expected = new AtomicInteger(0);
+        AtomicInteger unconfirmed = new AtomicInteger(-1);
+        CountDownLatch held = new CountDownLatch(1);
+        fq.addBatchConsumer("reopen_consumer", MAX_NUM, MAX_WAIT, InitPosition.CUR, false, (msgs, reader) -> {
+            int first = no(msgs.get(0));
+            if(unconfirmed.get() >= 0) {
+                LOG.error("Batch at {} handed out before {} confirmed", first, unconfirmed.get());
+                errNum.incrementAndGet();
+                return false;
+            }
+            check(msgs, expected);
+            if(expected.get() > confirmTo) {
+                unconfirmed.set(first); //never confirmed
+                held.countDown();
+                return true;
+            }
+            reader.confirm(true);
+            return true;
+        });
+        push(fq, 0, MSG_NUM);
+        if(!held.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages handled", expected.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+
+        //continue from the unconfirmed batch
+        fq = FQTool.create(builder);
+        expected.set(unconfirmed.get());
+        CountDownLatch over = new CountDownLatch(MSG_NUM - unconfirmed.get());
+        fq.addBatchConsumer("reopen_consumer", MAX_NUM, MAX_WAIT, (msgs, reader) -> {
+            check(msgs, expected);
+            for(int i = 0; i < msgs.size(); i++) {
+                over.countDown();
+            }
+            return true;
+        });
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages handled after reopened", expected.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Reopen, unconfirmed:{},handled:{},error num:{}", unconfirmed.get(), expected.get(), errNum.get());
+    }
+
+    private static void push(FileQueue fq, int from, int to) throws FQException {
+        for(int no = from; no < to; no++) {
+            byte[] m = new byte[MSG_LEN];
+            IFile.encodeInt(m, no, 0);
+            fq.push(m, true);
+        }
+    }
+
+    private static int no(IMessage msg) {
+        return IFile.parseInt(msg.message(), 0);
+    }
+
+    /**
+     * Messages in the batch follow the last one handled
+     */
+    private static void check(List<IMessage> msgs, AtomicInteger expected) {
+        for(IMessage msg : msgs) {
+            int no = no(msg);
+            if(no != expected.getAndIncrement() || msg.len() != MSG_LEN || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, expected {}", no, expected.get() - 1);
+                }
+                expected.set(no + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package cn.net.zhijian.fileq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push messages in batches, half by MessageBatch, half by list,
+ * segments are small, so batches are written across many files
+ * @author flyinmind of csdn.net
+ *
+ */
+public class BatchPushTest extends TestBase {
+    private static final int BATCH_NUM = 4000;
+    private static final int BATCH_SIZE = 50;
+    private static final int MSG_NUM = BATCH_NUM * BATCH_SIZE;
+    private static Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) {
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        Dispatcher dispatcher = new Dispatcher(threadPool);
+        String dir = FileUtil.addPath(workDir, "batchq");
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "batch")
+                .dispatcher(dispatcher)
+                .maxFileNum(100)
+                .maxFileSize(IFile.MIN_FILESIZE);
+        dispatcher.start();
+
+        CountDownLatch over = new CountDownLatch(1);
+        AtomicInteger pollNum = new AtomicInteger(0);
+        AtomicInteger errNum = new AtomicInteger(0);
+        try {
+            FileQueue fq = builder.build();
+            fq.addConsumer("batch_consumer", true, (msg, reader) -> {
+                int no = IFile.parseInt(msg.message(), 0);
+                if(no != pollNum.get() || msg.len() != 10 + no % 20 || !msg.isCorrect()) {
+                    if(errNum.incrementAndGet() < 10) {
+                        LOG.error("Invalid msg no {}, expected {}, len {}", no, pollNum.get(), msg.len());
+                    }
+                }
+                if(pollNum.incrementAndGet() == MSG_NUM) {
+                    over.countDown();
+                }
+                return true;
+            });
+
+            long start = System.currentTimeMillis();
+            MessageBatch batch = new MessageBatch();
+            List<byte[]> list = new ArrayList<>();
+            int no = 0;
+            for(int i = 0; i < BATCH_NUM; i++) {
+                for(int j = 0; j < BATCH_SIZE; j++, no++) {
+                    byte[] content = new byte[10 + no % 20];
+                    IFile.encodeInt(content, no, 0);
+                    if((i & 1) == 0) {
+                        batch.add(content, true);
+                    } else {
+                        list.add(content);
+                    }
+                }
+                if((i & 1) == 0) {
+                    fq.push(batch);
+                    batch.clear();
+                } else {
+                    fq.pushBatch(list, true);
+                    list.clear();
+                }
+            }
+            long interval = Math.max(System.currentTimeMillis() - start, 1);
+            LOG.info("Push num:{},speed:{}/s,interval:{}ms", MSG_NUM, (1000L * MSG_NUM) / interval, interval);
+
+            if(!over.await(30, TimeUnit.SECONDS)) {
+                LOG.error("Only {} messages received", pollNum.get());
+            }
+            LOG.info("Poll num:{},error num:{}", pollNum.get(), errNum.get());
+            dispatcher.shutdown();
+            fq.close();
+        } catch (Exception e) {
+            LOG.error("Failed", e);
+        }
+        threadPool.shutdown();
+        System.exit(0);
+    }
+}
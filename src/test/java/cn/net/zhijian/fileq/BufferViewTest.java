@@ -0,0 +1,148 @@
+package cn.net.zhijian.fileq;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IMessage;
+import cn.net.zhijian.fileq.io.DeflateCodec;
+import cn.net.zhijian.fileq.util.BufferPool;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Concurrent consumers get messages as read-only views,
+ * of mapped files, of read chunks and of compressed blocks,
+ * pushed one by one or in batches,
+ * optionally in pooled buffers. Views are checked by their content.
+ * Buffers are lent out until messages are released,
+ * by the dispatcher if autoConfirm, or by handlers later,
+ * all of them are returned to the pool at last
+ * @author flyinmind of csdn.net
+ *
+ */
+public class BufferViewTest extends TestBase {
+    private static final int MSG_NUM = 20000;
+    private static final int BATCH_SIZE = 20;
+    private static final int HELD_NUM = 100; //messages kept by the handler
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "viewq");
+        clearDir(dir);
+        BufferPool pool = new BufferPool(16 * 1024 * 1024);
+
+        test(new FileQueue.Builder(dir, "mapped").mappedPoll(true), null, true);
+        test(new FileQueue.Builder(dir, "chunk"), null, true);
+        test(new FileQueue.Builder(dir, "chunk_pooled"), pool, true);
+        test(new FileQueue.Builder(dir, "block_pooled").compression(new DeflateCodec()), pool, true);
+        test(new FileQueue.Builder(dir, "mapped_held").mappedPoll(true), null, false);
+        test(new FileQueue.Builder(dir, "chunk_held"), pool, false);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * @param autoConfirm if false, the handler keeps some messages,
+     *  releases them after all messages received
+     */
+    private static void test(FileQueue.Builder builder, BufferPool pool, boolean autoConfirm) throws Exception {
+        FileQueue fq = FQTool.create(builder.bufferViews(true).pooledPoll(pool)
+                .maxFileNum(100).maxFileSize(IFile.MIN_FILESIZE));
+        CountDownLatch over = new CountDownLatch(MSG_NUM);
+        Queue<IMessage> held = new ConcurrentLinkedQueue<>();
+        AtomicInteger heldNum = new AtomicInteger(0);
+        fq.addConsumer("view_consumer", false, autoConfirm, (msg, reader) -> {
+            ByteBuffer b = msg.buffer();
+            int no = b.getInt(0);
+            if(!b.isReadOnly() || b.remaining() != msg.len() || !check(no, b) || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("{}: invalid msg {}, len {}", builder.queueName(), no, msg.len());
+                }
+            }
+            if(!autoConfirm) {
+                //half of them are single ones, the others are in blocks
+                if(no % (MSG_NUM / HELD_NUM) == BATCH_SIZE * 3 + 10 && heldNum.incrementAndGet() <= HELD_NUM) {
+                    held.add(msg); //released later
+                } else {
+                    msg.release();
+                }
+                reader.confirm(true);
+            }
+            over.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        MessageBatch batch = new MessageBatch();
+        for(int no = 0; no < MSG_NUM; no++) {
+            if((no / BATCH_SIZE) % 4 == 3) { //single ones are read into chunks, not in blocks
+                fq.push(message(no), true);
+                continue;
+            }
+            batch.add(message(no), true);
+            if(batch.count() == BATCH_SIZE) {
+                fq.push(batch);
+                batch = new MessageBatch();
+            }
+        }
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("{}: {} messages not received", builder.queueName(), over.getCount());
+            errNum.incrementAndGet();
+        }
+
+        //kept views are still valid, until released
+        for(IMessage msg : held) {
+            ByteBuffer b = msg.buffer();
+            if(!check(b.getInt(0), b)) {
+                LOG.error("{}: held msg {} changed", builder.queueName(), b.getInt(0));
+                errNum.incrementAndGet();
+            }
+            msg.release();
+        }
+        if(!autoConfirm && held.size() != HELD_NUM) {
+            LOG.error("{}: {} messages held", builder.queueName(), held.size());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        if(pool != null && pool.lentNum() != 0) {
+            LOG.error("{}: {} buffers not returned to the pool", builder.queueName(), pool.lentNum());
+            errNum.incrementAndGet();
+        }
+        LOG.info("{}: poll num:{},time:{},pooled bytes:{},error num:{}", builder.queueName(),
+                MSG_NUM - over.getCount(), System.currentTimeMillis() - start,
+                pool == null ? 0 : pool.pooledBytes(), errNum.get());
+    }
+
+    private static boolean check(int no, ByteBuffer b) {
+        byte[] m = message(no);
+        return b.remaining() == m.length && b.equals(ByteBuffer.wrap(m));
+    }
+
+    /**
+     * Compressible in even batches, random in odd ones
+     */
+    private static byte[] message(int no) {
+        byte[] m = new byte[Integer.BYTES + (no * 71) % 1500];
+        if((no / BATCH_SIZE) % 2 == 1) {
+            new Random(no).nextBytes(m);
+        }
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
@@ -0,0 +1,131 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.io.DeflateCodec;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Checksums are crc32c in new files, old files use IFile.hashCode.
+ * Corrupt a hashed message, a plain block and a compressed block,
+ * consumers find the wrong ones, verified at once or lazily
+ * @author flyinmind of csdn.net
+ *
+ */
+public class ChecksumTest extends TestBase {
+    private static final int GOOD_NUM = 100; //good messages before and after the corrupted ones
+    private static final int BATCH_SIZE = 10;
+    private static final int WRONG_NUM = 1 + BATCH_SIZE; //the message and the plain block
+    private static final Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) throws Exception {
+        int errNum = 0;
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        CRC32C crc = new CRC32C();
+        crc.update(data, 3, 900);
+        if(IFile.crc32c(data, 3, 900) != (int)crc.getValue()
+           || IFile.checksum(IFile.VER, data, 3, 900) != (int)crc.getValue()
+           || IFile.checksum(IFile.VER_BATCH, data, 3, 900) != IFile.hashCode(data, 3, 900)) {
+            LOG.error("Wrong checksum");
+            errNum++;
+        }
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "checksumq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "checksum")
+            .compression(new DeflateCodec());
+        FileQueue fq = FQTool.create(builder);
+        Random rand = new Random(2);
+        for(int i = 0; i < GOOD_NUM; i++) {
+            fq.push(randomMsg(rand), true);
+        }
+        MessageBatch batch = new MessageBatch();
+        batch.add(randomMsg(rand), true);
+        fq.push(batch); //a single message is not framed
+        long msgPos = IFile.offsetPos(batch.offset(0, 0));
+        batch = randomBatch(rand);
+        fq.push(batch); //not compressible
+        long plainBlockPos = IFile.offsetPos(batch.offset(0, 0));
+        batch = new MessageBatch();
+        for(int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new byte[100], true);
+        }
+        fq.push(batch);
+        long packedBlockPos = IFile.offsetPos(batch.offset(0, 0));
+        for(int i = 0; i < GOOD_NUM; i++) {
+            fq.push(randomMsg(rand), true);
+        }
+        FQTool.remove(builder.queueName());
+
+        //change a byte in content of each one
+        try (RandomAccessFile raf = new RandomAccessFile(new File(FileUtil.addPath(dir, "checksum.0")), "rw")) {
+            int hashedHead = Integer.BYTES * 2;
+            int blockHead = Integer.BYTES + IFile.BLOCK_HEAD_LEN;
+            flip(raf, msgPos + hashedHead + 1);
+            flip(raf, plainBlockPos + blockHead + hashedHead + 1);
+            flip(raf, packedBlockPos + blockHead + 1);
+        }
+
+        //the compressed block can't be decompressed, it is skipped
+        errNum += consume(builder, "eager", false);
+        errNum += consume(builder, "lazy", true);
+        LOG.info("error num:{}", errNum);
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static int consume(FileQueue.Builder builder, String consumer, boolean lazy) throws Exception {
+        FileQueue fq = FQTool.create(builder.lazyVerify(lazy));
+        AtomicInteger received = new AtomicInteger(0);
+        AtomicInteger wrong = new AtomicInteger(0);
+        fq.addConsumer(consumer, true, (msg, reader) -> {
+            if(!msg.isCorrect()) {
+                wrong.incrementAndGet();
+            }
+            received.incrementAndGet();
+            return true;
+        });
+        for(int i = 0; i < 100 && received.get() < GOOD_NUM * 2 + WRONG_NUM; i++) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200); //nothing more
+        FQTool.remove(builder.queueName());
+        LOG.info("{}: received {}, wrong {}", consumer, received.get(), wrong.get());
+        return received.get() == GOOD_NUM * 2 + WRONG_NUM && wrong.get() == WRONG_NUM ? 0 : 1;
+    }
+
+    private static byte[] randomMsg(Random rand) {
+        byte[] m = new byte[50 + rand.nextInt(50)];
+        rand.nextBytes(m);
+        return m;
+    }
+
+    private static MessageBatch randomBatch(Random rand) throws FQException {
+        MessageBatch batch = new MessageBatch();
+        for(int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(randomMsg(rand), true);
+        }
+        return batch;
+    }
+
+    private static void flip(RandomAccessFile raf, long pos) throws Exception {
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0xff);
+    }
+}
@@ -0,0 +1,208 @@
+package cn.net.zhijian.fileq;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.Durability;
+import cn.net.zhijian.fileq.intf.IMessage;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Large messages are written in chunks across files,
+ * small messages of another thread are written between them.
+ * A failed large message is delivered again,
+ * and its files are kept until its stream is closed
+ * @author flyinmind of csdn.net
+ *
+ */
+public class ChunkedMessageTest extends TestBase {
+    private static final int LARGE_LEN = 5 * IFile.MAX_MSG_SIZE + 12345;
+    private static final int SMALL_NUM = 5000;
+    private static final int SMALL_LEN = 1000;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        byte[] large = new byte[LARGE_LEN];
+        new Random(1).nextBytes(large);
+        long largeCrc = crc(new ByteArrayInputStream(large), -1);
+
+        redeliver(large, largeCrc);
+        retain(large, largeCrc);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * The first delivery reads a half and fails, the second reads all
+     */
+    private static void redeliver(byte[] large, long largeCrc) throws Exception {
+        String dir = FileUtil.addPath(workDir, "chunkq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "chunk")
+            .maxFileSize(IFile.MIN_FILESIZE)
+            .maxFileNum(3);
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger attempts = new AtomicInteger(0);
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(SMALL_NUM + 1);
+        fq.addConsumer("chunk_consumer", true, false, (msg, reader) -> {
+            if(msg.length() <= IFile.MAX_MSG_SIZE) {
+                if(IFile.parseInt(msg.message(), 0) != expected.getAndIncrement() || !msg.isCorrect()) {
+                    errNum.incrementAndGet();
+                }
+                reader.confirm(true);
+                over.countDown();
+                return true;
+            }
+            try {
+                if(attempts.incrementAndGet() == 1) {
+                    crc(msg.stream(), LARGE_LEN / 2);
+                    msg.release();
+                    reader.confirm(false);
+                    return true;
+                }
+                if(msg.length() != LARGE_LEN || crc(msg.stream(), -1) != largeCrc || !msg.isCorrect()) {
+                    LOG.error("Wrong large message, length {}", msg.length());
+                    errNum.incrementAndGet();
+                }
+            } catch(IOException e) {
+                LOG.error("Fail to read large message", e);
+                errNum.incrementAndGet();
+            }
+            msg.release();
+            reader.confirm(true);
+            over.countDown();
+            return true;
+        });
+
+        Thread pusher = new Thread(() -> {
+            byte[] m = new byte[SMALL_LEN];
+            for(int i = 0; i < SMALL_NUM; i++) {
+                IFile.encodeInt(m, i, 0);
+                try {
+                    fq.push(m, true);
+                } catch(FQException e) {
+                    LOG.error("Fail to push", e);
+                    errNum.incrementAndGet();
+                }
+            }
+        });
+        pusher.start();
+        fq.push(new ByteArrayInputStream(large), true, Durability.NONE);
+        pusher.join();
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} small messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        if(attempts.get() != 2) {
+            LOG.error("Large message delivered {} times", attempts.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Redeliver, small num:{}, attempts:{}, error num:{}", expected.get(), attempts.get(), errNum.get());
+    }
+
+    /**
+     * The handler keeps the stream after confirmed, many files are written
+     * after it, files of the large message are kept until the stream is closed
+     */
+    private static void retain(byte[] large, long largeCrc) throws Exception {
+        String dir = FileUtil.addPath(workDir, "retainq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "retain")
+            .maxFileSize(IFile.MIN_FILESIZE)
+            .maxFileNum(3);
+        FileQueue fq = FQTool.create(builder);
+        AtomicReference<IMessage> held = new AtomicReference<>();
+        AtomicReference<InputStream> stream = new AtomicReference<>();
+        AtomicInteger received = new AtomicInteger(0);
+        fq.addConsumer("retain_consumer", true, false, (msg, reader) -> {
+            if(msg.length() > IFile.MAX_MSG_SIZE) {
+                stream.set(msg.stream()); //not read now
+                held.set(msg);
+            }
+            reader.confirm(true);
+            received.incrementAndGet();
+            return true;
+        });
+
+        fq.push(new ByteArrayInputStream(large), true, Durability.NONE);
+        byte[] m = new byte[SMALL_LEN];
+        int num = IFile.MIN_FILESIZE * 10 / SMALL_LEN; //about 10 files
+        for(int i = 0; i < num; i++) {
+            fq.push(m);
+        }
+        for(int i = 0; i < 100 && received.get() < num + 1; i++) {
+            Thread.sleep(100);
+        }
+        IMessage msg = held.get();
+        if(msg == null) {
+            LOG.error("Large message not received");
+            errNum.incrementAndGet();
+            FQTool.remove(builder.queueName());
+            return;
+        }
+
+        int firstFileNo = ((ChunkedMessage)msg).firstFileNo();
+        File first = new File(FileUtil.addPath(dir, "retain." + firstFileNo));
+        if(!first.exists()) {
+            LOG.error("File {} removed while it's pinned", first);
+            errNum.incrementAndGet();
+        }
+        if(crc(stream.get(), -1) != largeCrc) {
+            LOG.error("Wrong content of the kept large message");
+            errNum.incrementAndGet();
+        }
+        msg.release();
+
+        //files roll again, unpinned files are removed
+        for(int i = 0; i < num / 2; i++) {
+            fq.push(m);
+        }
+        for(int i = 0; i < 50 && first.exists(); i++) {
+            Thread.sleep(100);
+        }
+        if(first.exists()) {
+            LOG.error("File {} not removed after released", first);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Retain, received:{}, error num:{}", received.get(), errNum.get());
+    }
+
+    /**
+     * Crc of the stream
+     * @param in stream
+     * @param max max bytes to read, -1 means all
+     * @return crc32
+     */
+    private static long crc(InputStream in, int max) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[64 * 1024];
+        long total = 0;
+        for(int n; (max < 0 || total < max) && (n = in.read(buf)) > 0; total += n) {
+            crc.update(buf, 0, n);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,244 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.ICodec;
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.io.DeflateCodec;
+import cn.net.zhijian.fileq.util.Codecs;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Round trip of codecs, then write a queue by deflate, by a custom codec
+ * and without compression, in each file, compressed blocks, plain blocks
+ * and single messages are mixed, read them all in order.
+ * Blocks of a codec not registered are not skipped, the consumer waits
+ * until the codec is registered
+ * @author flyinmind of csdn.net
+ *
+ */
+public class CodecTest extends TestBase {
+    private static final int BATCH_NUM = 20; //batches of each kind in a round
+    private static final int BATCH_SIZE = 50;
+    private static final int SINGLE_NUM = 100;
+    private static final int ROUND_NUM = 3; //deflate, rle, none
+    private static final int CYCLE = BATCH_SIZE * 2 + SINGLE_NUM / BATCH_NUM; //messages pushed in a loop
+    private static final int ROUND_MSG_NUM = CYCLE * BATCH_NUM;
+    private static final Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) throws Exception {
+        AtomicInteger errNum = new AtomicInteger(0);
+        ICodec[] codecs = new ICodec[] {new DeflateCodec(), new RleCodec(100), null};
+        for(int i = 0; i < 2; i++) {
+            ICodec codec = codecs[i];
+            for(int no = 0; no < 100; no++) {
+                byte[] raw = message(no * 7919);
+                byte[] packed = new byte[codec.maxCompressedLen(raw.length)];
+                int len = codec.compress(raw, 0, raw.length, packed, 0);
+                byte[] out = new byte[raw.length + 2];
+                codec.decompress(packed, 0, len, out, 1, raw.length);
+                if(!Arrays.equals(raw, 0, raw.length, out, 1, raw.length + 1)) {
+                    LOG.error("Codec {} fails to restore message {}", codec.id(), no);
+                    errNum.incrementAndGet();
+                }
+            }
+        }
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "codecq");
+        clearDir(dir);
+        int no = 0;
+        for(ICodec codec : codecs) {
+            FileQueue.Builder builder = new FileQueue.Builder(dir, "codec").compression(codec);
+            FileQueue fq = FQTool.create(builder);
+            for(int i = 0; i < BATCH_NUM; i++) {
+                MessageBatch batch = new MessageBatch();
+                for(int j = 0; j < BATCH_SIZE; j++) { //compressible
+                    batch.add(message(no++), (j & 1) == 0);
+                }
+                fq.push(batch);
+                batch = new MessageBatch();
+                for(int j = 0; j < BATCH_SIZE; j++) { //not compressible
+                    batch.add(message(no++), true);
+                }
+                fq.push(batch);
+                for(int j = 0; j < SINGLE_NUM / BATCH_NUM; j++) {
+                    fq.push(message(no++), true);
+                }
+            }
+            FQTool.remove(builder.queueName());
+        }
+
+        //each round is written in a new file, compressed ones are smaller
+        long plainSize = new File(FileUtil.addPath(dir, "codec.2")).length();
+        for(int i = 0; i < 2; i++) {
+            long size = new File(FileUtil.addPath(dir, "codec." + i)).length();
+            if(size >= plainSize) {
+                LOG.error("Not compressed by codec {}, size {}, plain size {}", codecs[i].id(), size, plainSize);
+                errNum.incrementAndGet();
+            }
+        }
+
+        //read files of all codecs, codecs are registered by the builder
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "codec");
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch over = new CountDownLatch(ROUND_MSG_NUM * ROUND_NUM);
+        AtomicInteger expected = new AtomicInteger(0);
+        fq.addConsumer("codec_consumer", true, (msg, reader) -> {
+            int n = expected.getAndIncrement();
+            byte[] m = message(n);
+            if(msg.len() != m.length || !Arrays.equals(m, 0, m.length, msg.message(), 0, m.length)
+               || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, len {}", n, msg.len());
+                }
+            }
+            over.countDown();
+            return true;
+        });
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        LOG.info("Poll num:{},error num:{}", expected.get(), errNum.get());
+        unregistered(dir, errNum);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * The codec id is changed after registered, blocks are written with an id not registered,
+     * they are read after a codec of that id is registered
+     */
+    private static void unregistered(String dir, AtomicInteger errNum) throws Exception {
+        RleCodec codec = new RleCodec(101);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "unregistered").compression(codec);
+        codec.id = 102;
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(BATCH_SIZE);
+        fq.addConsumer("unregistered_consumer", true, (msg, reader) -> {
+            int n = expected.getAndIncrement();
+            byte[] m = message(n);
+            if(msg.len() != m.length || !Arrays.equals(m, 0, m.length, msg.message(), 0, m.length)) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {} of unregistered codec, len {}", n, msg.len());
+                }
+            }
+            over.countDown();
+            return true;
+        });
+        MessageBatch batch = new MessageBatch();
+        for(int no = 0; no < BATCH_SIZE; no++) {
+            batch.add(message(no), true);
+        }
+        fq.push(batch);
+
+        Thread.sleep(1500);
+        if(expected.get() != 0) {
+            LOG.error("{} messages received before the codec registered", expected.get());
+            errNum.incrementAndGet();
+        }
+        Codecs.register(new RleCodec(102));
+        if(!over.await(10, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received after the codec registered", expected.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Unregistered, poll num:{},error num:{}", expected.get(), errNum.get());
+    }
+
+    /**
+     * Message of a number, the second batch in a loop is random, others are compressible
+     */
+    private static byte[] message(int no) {
+        int k = no % CYCLE;
+        if(k >= BATCH_SIZE && k < BATCH_SIZE * 2) {
+            byte[] m = new byte[100 + no % 50];
+            new Random(no).nextBytes(m);
+            IFile.encodeInt(m, no, 0);
+            return m;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"no\":").append(no).append(",\"name\":\"sensor\",\"values\":[");
+        for(int i = 0; i < no % 20; i++) {
+            sb.append("0,0,0,");
+        }
+        sb.append("0],\"memo\":\"");
+        for(int i = 0; i < 200 + no % 40; i++) {
+            sb.append(' ');
+        }
+        sb.append("\"}");
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * Run length encoding, count(1) + byte(1), a codec out of the library
+     */
+    private static final class RleCodec implements ICodec {
+        private int id;
+
+        RleCodec(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public int maxCompressedLen(int len) {
+            return len * 2;
+        }
+
+        @Override
+        public int compress(byte[] src, int offset, int len, byte[] dst, int dstOffset) throws IOException {
+            int p = dstOffset;
+            int end = offset + len;
+            for(int i = offset; i < end;) {
+                byte b = src[i];
+                int n = 1;
+                while(i + n < end && n < 255 && src[i + n] == b) {
+                    n++;
+                }
+                dst[p++] = (byte)n;
+                dst[p++] = b;
+                i += n;
+            }
+            return p - dstOffset;
+        }
+
+        @Override
+        public void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int rawLen)
+                throws IOException {
+            int p = dstOffset;
+            for(int i = offset; i < offset + len; i += 2) {
+                int n = src[i] & 0xff;
+                if(p + n > dstOffset + rawLen) {
+                    throw new IOException("Invalid rle content");
+                }
+                Arrays.fill(dst, p, p + n, src[i + 1]);
+                p += n;
+            }
+            if(p != dstOffset + rawLen) {
+                throw new IOException("Invalid rle length");
+            }
+        }
+    }
+}
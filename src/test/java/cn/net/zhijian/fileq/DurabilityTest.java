@@ -0,0 +1,126 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.Durability;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push messages of all durability levels into one queue,
+ * synchronously and asynchronously, in buffered and group commit mode.
+ * When a WRITTEN or FSYNC push returns, or its future completes,
+ * the message must be in the file, though others are still buffered.
+ * All messages are received in order
+ * @author flyinmind of csdn.net
+ *
+ */
+public class DurabilityTest extends TestBase {
+    private static final int MSG_NUM = 6000;
+    private static final int MSG_LEN = 100;
+    private static final Durability[] LEVELS = new Durability[] {
+        Durability.NONE, Durability.NONE, Durability.WRITTEN, Durability.NONE, Durability.FSYNC
+    };
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "durabilityq");
+        clearDir(dir);
+
+        test(new FileQueue.Builder(dir, "buffered").bufferedPush(true), false);
+        test(new FileQueue.Builder(dir, "buffered_async").bufferedPush(true), true);
+        test(new FileQueue.Builder(dir, "group").groupCommit(true).durability(Durability.NONE), false);
+        test(new FileQueue.Builder(dir, "group_async").groupCommit(true).durability(Durability.NONE), true);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static void test(FileQueue.Builder builder, boolean async) throws Exception {
+        FileQueue fq = FQTool.create(builder.maxFileNum(100).maxFileSize(IFile.MIN_FILESIZE));
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(MSG_NUM);
+        fq.addConsumer("durability_consumer", true, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != MSG_LEN || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, expected {}", no, expected.get() - 1);
+                }
+            }
+            over.countDown();
+            return true;
+        });
+
+        File queue = new File(builder.queueName());
+        String dir = queue.getParent();
+        String name = queue.getName();
+        AtomicInteger durableNum = new AtomicInteger(0);
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for(int no = 0; no < MSG_NUM; no++) {
+            byte[] m = new byte[MSG_LEN];
+            IFile.encodeInt(m, no, 0);
+            Durability d = LEVELS[no % LEVELS.length];
+            if(async) {
+                CompletableFuture<Long> f = fq.pushAsync(m, 0, MSG_LEN, true, d);
+                if(d != Durability.NONE) {
+                    f.thenAccept(offset -> check(dir, name, offset, d, durableNum));
+                }
+                futures.add(f);
+            } else {
+                MessageBatch batch = new MessageBatch();
+                batch.add(m, true); //a single message gets its own position
+                fq.push(batch, d);
+                if(d != Durability.NONE) {
+                    check(dir, name, batch.offset(0, 0), d, durableNum);
+                }
+            }
+        }
+        for(CompletableFuture<Long> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+        if(durableNum.get() != MSG_NUM * 2 / LEVELS.length) {
+            LOG.error("{}: only {} durable messages checked", builder.queueName(), durableNum.get());
+            errNum.incrementAndGet();
+        }
+
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("{}: only {} messages received", builder.queueName(), expected.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("{}: push num:{},time:{},error num:{}", builder.queueName(), MSG_NUM,
+                System.currentTimeMillis() - start, errNum.get());
+    }
+
+    /**
+     * The whole message is in the file, not only in the writer's buffer
+     */
+    private static void check(String dir, String name, long offset, Durability d, AtomicInteger durableNum) {
+        int fileNo = IFile.offsetFileNo(offset);
+        long end = IFile.offsetPos(offset) + Integer.BYTES * 2 + MSG_LEN;
+        File f = new File(FileUtil.addPath(dir, name + '.' + fileNo));
+        if(f.length() < end) {
+            if(errNum.incrementAndGet() < 10) {
+                LOG.error("{} message not in {}, file length {}, message end {}", d, f, f.length(), end);
+            }
+        }
+        durableNum.incrementAndGet();
+    }
+}
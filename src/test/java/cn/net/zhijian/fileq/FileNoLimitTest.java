@@ -0,0 +1,132 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * File numbers must fit in the 24 bits of offsets.
+ * A queue never rolls after the file MAX_FILE_NO, pushing fails when it's full,
+ * messages written before are still consumed. It can't be reopened,
+ * because a new file is always opened when started
+ * @author flyinmind of csdn.net
+ *
+ */
+public class FileNoLimitTest extends TestBase {
+    private static final int MSG_LEN = 1000;
+    private static final int MSG_NUM = 5000; //more than 2 files
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "filenoq");
+        clearDir(dir);
+
+        offsets();
+        lastFile(dir);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static void offsets() {
+        long offset = IFile.offset(IFile.MAX_FILE_NO, IFile.MAX_OFFSET_POS);
+        if(IFile.offsetFileNo(offset) != IFile.MAX_FILE_NO || IFile.offsetPos(offset) != IFile.MAX_OFFSET_POS) {
+            LOG.error("Max offset {} not restored", Long.toHexString(offset));
+            errNum.incrementAndGet();
+        }
+        long[][] invalid = new long[][] {{IFile.MAX_FILE_NO + 1, 0}, {-1, 0},
+            {0, IFile.MAX_OFFSET_POS + 1}, {0, -1}};
+        for(long[] o : invalid) {
+            try {
+                IFile.offset((int)o[0], o[1]);
+                LOG.error("Offset of fileNo {} pos {} is accepted", o[0], o[1]);
+                errNum.incrementAndGet();
+            } catch(IllegalArgumentException e) {
+            }
+        }
+    }
+
+    /**
+     * The writer starts from the file before the last one,
+     * it's rolled once, then pushing fails when the last one is full
+     */
+    private static void lastFile(String dir) throws Exception {
+        int fileNo = IFile.MAX_FILE_NO - 2; //the writer starts from the next one
+        byte[] head = new byte[IFile.FILE_HEAD_LEN];
+        System.arraycopy(IFile.MAGIC, 0, head, 0, IFile.MAGIC.length);
+        head[IFile.MAGIC.length] = (byte)IFile.VER;
+        IFile.encodeInt(head, fileNo, IFile.MAGIC.length + 1);
+        try(FileOutputStream out = new FileOutputStream(FileUtil.addPath(dir, "limit." + fileNo))) {
+            out.write(head);
+        }
+
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "limit")
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger expected = new AtomicInteger(0);
+        fq.addConsumer("limit_consumer", true, InitPosition.HEAD, true, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != MSG_LEN) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, expected {}", no, expected.get() - 1);
+                }
+                expected.set(no + 1);
+            }
+            return true;
+        });
+
+        int pushed = 0;
+        for(; pushed < MSG_NUM; pushed++) {
+            byte[] m = new byte[MSG_LEN];
+            IFile.encodeInt(m, pushed, 0);
+            try {
+                fq.push(m, true);
+            } catch (FQException e) {
+                LOG.info("Rejected, {}", e.getMessage());
+                break;
+            }
+        }
+        long bytes = (long)pushed * MSG_LEN;
+        if(pushed == MSG_NUM || bytes < IFile.MIN_FILESIZE * 2 * 9 / 10) {
+            LOG.error("Rejected after {} messages", pushed);
+            errNum.incrementAndGet();
+        }
+        if(new File(FileUtil.addPath(dir, "limit." + (IFile.MAX_FILE_NO + 1))).exists()) {
+            LOG.error("File after {} is created", IFile.MAX_FILE_NO);
+            errNum.incrementAndGet();
+        }
+
+        for(int i = 0; i < 100 && expected.get() < pushed; i++) {
+            Thread.sleep(100);
+        }
+        if(expected.get() != pushed) {
+            LOG.error("Only {}/{} messages received", expected.get(), pushed);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        try {
+            FQTool.create(builder);
+            LOG.error("Queue reopened after the file {}", IFile.MAX_FILE_NO);
+            errNum.incrementAndGet();
+            FQTool.remove(builder.queueName());
+        } catch(FQException e) {
+            LOG.info("Not reopened, {}", e.getMessage());
+        }
+        LOG.info("Last file, pushed:{},received:{},error num:{}", pushed, expected.get(), errNum.get());
+    }
+}
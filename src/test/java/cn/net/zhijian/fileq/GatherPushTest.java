@@ -0,0 +1,160 @@
+package cn.net.zhijian.fileq;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push messages composed of many buffers, heap, direct, read-only,
+ * sliced and empty ones, in all writing modes.
+ * Consumers get the remaining content of all buffers as one message,
+ * and positions of the buffers are not changed
+ * @author flyinmind of csdn.net
+ *
+ */
+public class GatherPushTest extends TestBase {
+    private static final int MSG_NUM = 3000;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "gatherq");
+        clearDir(dir);
+
+        test(new FileQueue.Builder(dir, "plain"));
+        test(new FileQueue.Builder(dir, "buffered").bufferedPush(true));
+        test(new FileQueue.Builder(dir, "group").groupCommit(true));
+        test(new FileQueue.Builder(dir, "mapped").mappedPush(true));
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static void test(FileQueue.Builder builder) throws Exception {
+        FileQueue fq = FQTool.create(builder.maxFileNum(100).maxFileSize(IFile.MIN_FILESIZE));
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(MSG_NUM);
+        fq.addConsumer("gather_consumer", true, (msg, reader) -> {
+            int no = expected.getAndIncrement();
+            byte[] m = message(no);
+            if(msg.len() != m.length || !Arrays.equals(m, 0, m.length, msg.message(), 0, m.length)
+               || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, len {}, expected {}", no, msg.len(), m.length);
+                }
+            }
+            over.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        for(int no = 0; no < MSG_NUM; no++) {
+            ByteBuffer[] bufs = split(no, message(no));
+            int[] positions = new int[bufs.length];
+            for(int i = 0; i < bufs.length; i++) {
+                positions[i] = bufs[i].position();
+            }
+            if(no % 5 == 0 && bufs.length == 1) {
+                fq.push(bufs[0], true);
+            } else {
+                fq.push(bufs, true);
+            }
+            for(int i = 0; i < bufs.length; i++) {
+                if(bufs[i].position() != positions[i]) {
+                    LOG.error("Position of buffer {} in msg {} changed", i, no);
+                    errNum.incrementAndGet();
+                }
+            }
+        }
+
+        //too long in all, though each buffer is short
+        ByteBuffer half = ByteBuffer.allocate(IFile.MAX_MSG_SIZE / 2 + 1);
+        try {
+            fq.push(half, half);
+            LOG.error("Too long message pushed");
+            errNum.incrementAndGet();
+        } catch(FQException e) {
+            LOG.info("Too long message rejected, {}", e.getMessage());
+        }
+
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        Thread.sleep(100); //nothing more
+        if(expected.get() != MSG_NUM) {
+            LOG.error("{} messages received, expected {}", expected.get(), MSG_NUM);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("{}: push num:{},time:{},error num:{}", builder.queueName(), MSG_NUM,
+                System.currentTimeMillis() - start, errNum.get());
+    }
+
+    /**
+     * Split the message into buffers of different kinds,
+     * each one has content out of its remaining part
+     */
+    private static ByteBuffer[] split(int no, byte[] m) {
+        if(no % 7 == 0) { //one direct buffer
+            ByteBuffer b = ByteBuffer.allocateDirect(m.length);
+            b.put(m).flip();
+            return new ByteBuffer[] {b};
+        }
+        int num = 1 + no % 4;
+        ByteBuffer[] bufs = new ByteBuffer[num + 1];
+        int from = 0;
+        for(int i = 0; i < num; i++) {
+            int to = i == num - 1 ? m.length : from + (m.length - from) / 2;
+            int len = to - from;
+            ByteBuffer b;
+            switch((no + i) % 4) {
+            case 0: //heap, with bytes before and after the content
+                byte[] arr = new byte[len + 6];
+                System.arraycopy(m, from, arr, 3, len);
+                b = ByteBuffer.wrap(arr, 3, len);
+                break;
+            case 1: //direct
+                b = ByteBuffer.allocateDirect(len + 6);
+                b.position(3);
+                b.put(m, from, len);
+                b.limit(3 + len).position(3);
+                break;
+            case 2: //read-only slice
+                byte[] big = new byte[len + 10];
+                System.arraycopy(m, from, big, 5, len);
+                b = ByteBuffer.wrap(big, 5, len).slice().asReadOnlyBuffer();
+                break;
+            default: //wrap the array directly
+                b = ByteBuffer.wrap(m, from, len);
+                break;
+            }
+            bufs[i] = b;
+            from = to;
+        }
+        bufs[num] = ByteBuffer.allocate(0); //an empty one at the end
+        return bufs;
+    }
+
+    private static byte[] message(int no) {
+        byte[] m = new byte[Integer.BYTES + (no * 131) % 3000];
+        new Random(no).nextBytes(m);
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
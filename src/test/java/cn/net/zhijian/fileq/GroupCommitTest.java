@@ -0,0 +1,128 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.Durability;
+import cn.net.zhijian.fileq.io.Manifest;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push in many threads in group commit mode, with all durability levels,
+ * messages of each thread are received in order.
+ * The last push of each thread is forced, then all staged messages
+ * must be in the files, even those pushed without durability.
+ * Messages drained together are framed in blocks, so files may be larger
+ * @author flyinmind of csdn.net
+ *
+ */
+public class GroupCommitTest extends TestBase {
+    private static final int THREAD_NUM = 16;
+    private static final int MSG_NUM = 2000; //messages of each thread
+    private static final int MSG_LEN = 100;
+    private static final Durability[] LEVELS = new Durability[] {
+        Durability.FSYNC, Durability.WRITTEN, Durability.NONE
+    };
+    private static final Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        AtomicInteger errNum = new AtomicInteger(0);
+        String dir = FileUtil.addPath(workDir, "groupq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "group")
+            .groupCommit(true)
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch counter = new CountDownLatch(THREAD_NUM * MSG_NUM);
+        Map<Integer, Integer> lastSeqs = new ConcurrentHashMap<>();
+        fq.addConsumer("group_consumer", true, (msg, reader) -> {
+            byte[] m = msg.message();
+            int t = IFile.parseInt(m, 0);
+            int seq = IFile.parseInt(m, Integer.BYTES);
+            Integer last = lastSeqs.put(t, seq);
+            if((last == null ? -1 : last) + 1 != seq || msg.len() != MSG_LEN || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {} of thread {}, last {}", seq, t, last);
+                }
+            }
+            counter.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        Thread[] threads = new Thread[THREAD_NUM];
+        for(int i = 0; i < THREAD_NUM; i++) {
+            int t = i;
+            threads[i] = new Thread(() -> {
+                byte[] m = new byte[MSG_LEN];
+                IFile.encodeInt(m, t, 0);
+                for(int seq = 0; seq < MSG_NUM; seq++) {
+                    IFile.encodeInt(m, seq, Integer.BYTES);
+                    //the last one is forced
+                    Durability d = seq == MSG_NUM - 1 ? Durability.FSYNC : LEVELS[(seq + t) % LEVELS.length];
+                    try {
+                        fq.push(m, 0, MSG_LEN, true, d);
+                    } catch(FQException e) {
+                        LOG.error("Fail to push", e);
+                        errNum.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        LOG.info("Push num:{},time:{}", THREAD_NUM * MSG_NUM, System.currentTimeMillis() - start);
+
+        //every message is in files after the last forced pushes
+        long bytes = 0;
+        int lastNo = 0;
+        File[] files = new File(dir).listFiles((d, n) -> n.matches("group\\.\\d+"));
+        for(File f : files) {
+            bytes += f.length() - IFile.FILE_HEAD_LEN;
+            lastNo = Math.max(lastNo, Integer.parseInt(f.getName().substring("group.".length())));
+        }
+        long expected = (long)THREAD_NUM * MSG_NUM * (Integer.BYTES * 2 + MSG_LEN);
+        if(bytes < expected) {
+            LOG.error("{} bytes in {} files, expected at least {}", bytes, files.length, expected);
+            errNum.incrementAndGet();
+        }
+        //no partial record at the end of the last file
+        File last = new File(FileUtil.addPath(dir, "group." + lastNo));
+        File copy = new File(FileUtil.addPath(dir, "group.check"));
+        Files.copy(last.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Manifest.Segment s = new Manifest.Segment(lastNo, 0);
+        TailRecovery.recover(copy, s, false);
+        if(s.size != last.length()) {
+            LOG.error("Partial record at the end of {}, size {}, recovered {}", last, last.length(), s.size);
+            errNum.incrementAndGet();
+        }
+        copy.delete();
+
+        if(!counter.await(30, TimeUnit.SECONDS)) {
+            LOG.error("{} messages not received", counter.getCount());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Poll num:{},error num:{}", THREAD_NUM * MSG_NUM - counter.getCount(), errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+}
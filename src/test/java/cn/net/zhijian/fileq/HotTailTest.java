@@ -0,0 +1,130 @@
+package cn.net.zhijian.fileq;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.ChunkCache;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * The writer fills the read cache as it appends, in every writing mode.
+ * Consumers at the tail read new messages from the cache across many rolls,
+ * chunks of a new file never show content of the former one.
+ * Consumers lagging beyond a small cache read the writing file.
+ * After reopened, the writing file is appended from its middle,
+ * consumers continue reading it correctly
+ * @author flyinmind of csdn.net
+ *
+ */
+public class HotTailTest extends TestBase {
+    private static final int ROUND_NUM = 10000; //messages pushed in a round
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long CACHE_BYTES = 32 * 1024 * 1024; //larger than all files
+    private static final long SMALL_CACHE_BYTES = 1024 * 1024; //consumers lag beyond it
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+    private static final AtomicReference<ChunkCache> cache = new AtomicReference<>();
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "hottailq");
+        clearDir(dir);
+
+        test(new FileQueue.Builder(dir, "plain"), CACHE_BYTES);
+        test(new FileQueue.Builder(dir, "buffered").bufferedPush(true), CACHE_BYTES);
+        test(new FileQueue.Builder(dir, "group").groupCommit(true), CACHE_BYTES);
+        test(new FileQueue.Builder(dir, "mapped").mappedPush(true), CACHE_BYTES);
+        //evicted chunks are read from the writing file, not beyond its written size
+        test(new FileQueue.Builder(dir, "buffered_lagging").bufferedPush(true), SMALL_CACHE_BYTES);
+        test(new FileQueue.Builder(dir, "group_lagging").groupCommit(true), SMALL_CACHE_BYTES);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static void test(FileQueue.Builder builder, long cacheBytes) throws Exception {
+        builder.readCache(cacheBytes, CHUNK_SIZE, true)
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+        AtomicInteger seqExpected = new AtomicInteger(0);
+        AtomicInteger conNum = new AtomicInteger(0);
+        long start = System.currentTimeMillis();
+        for(int round = 0; round < 2; round++) { //continue after reopened
+            FileQueue fq = FQTool.create(builder);
+            int to = ROUND_NUM * (round + 1);
+            CountDownLatch seqOver = new CountDownLatch(ROUND_NUM);
+            fq.addConsumer("sequential", true, (msg, reader) -> {
+                cache.set(reader.writer().chunkCache());
+                int no = seqExpected.getAndIncrement();
+                if(!check(no, msg.message(), msg.len()) || !msg.isCorrect()) {
+                    if(errNum.incrementAndGet() < 10) {
+                        LOG.error("{}: invalid msg {}, len {}", builder.queueName(), no, msg.len());
+                    }
+                }
+                seqOver.countDown();
+                return true;
+            });
+            CountDownLatch conOver = new CountDownLatch(ROUND_NUM);
+            fq.addConsumer("concurrent", false, (msg, reader) -> {
+                int no = IFile.parseInt(msg.message(), 0);
+                if(!check(no, msg.message(), msg.len()) || !msg.isCorrect()) {
+                    if(errNum.incrementAndGet() < 10) {
+                        LOG.error("{}: invalid msg {} in concurrent, len {}", builder.queueName(), no, msg.len());
+                    }
+                }
+                conNum.incrementAndGet();
+                conOver.countDown();
+                return true;
+            });
+
+            for(int no = to - ROUND_NUM; no < to; no++) {
+                fq.push(message(no), true);
+            }
+            if(!seqOver.await(30, TimeUnit.SECONDS) || !conOver.await(30, TimeUnit.SECONDS)) {
+                LOG.error("{}: {}/{} messages not received", builder.queueName(), seqOver.getCount(), conOver.getCount());
+                errNum.incrementAndGet();
+            }
+            ChunkCache c = cache.get();
+            if((cacheBytes == CACHE_BYTES && c.hits() < c.misses() * 10) || c.bytes() > cacheBytes) {
+                LOG.error("{}: not read from the tail, cache:{}", builder.queueName(), c);
+                errNum.incrementAndGet();
+            }
+            LOG.info("{}: round {},cache:{}", builder.queueName(), round, c);
+            FQTool.remove(builder.queueName());
+        }
+        if(seqExpected.get() != ROUND_NUM * 2 || conNum.get() != ROUND_NUM * 2) {
+            LOG.error("{}: {}/{} messages received", builder.queueName(), seqExpected.get(), conNum.get());
+            errNum.incrementAndGet();
+        }
+        LOG.info("{}: push num:{},time:{},error num:{}", builder.queueName(), ROUND_NUM * 2,
+                System.currentTimeMillis() - start, errNum.get());
+    }
+
+    private static boolean check(int no, byte[] msg, int len) {
+        byte[] m = message(no);
+        return len == m.length && Arrays.equals(m, 0, m.length, msg, 0, len);
+    }
+
+    /**
+     * Random content, a stale chunk never matches
+     */
+    private static byte[] message(int no) {
+        byte[] m = new byte[Integer.BYTES + (no * 67) % 1500];
+        new Random(no).nextBytes(m);
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
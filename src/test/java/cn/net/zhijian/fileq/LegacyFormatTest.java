@@ -0,0 +1,150 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Queue files and a consume state written in VER_INT_POS(32 bits positions),
+ * they are consumed from the old position, new messages are appended
+ * in files of the current version, and the state is rewritten in the new format
+ * @author flyinmind of csdn.net
+ *
+ */
+public class LegacyFormatTest extends TestBase {
+    private static final int FILE_MSG_NUM = 1000; //messages in each old file
+    private static final int CONSUMED_NUM = 300; //consumed in the old state
+    private static final int NEW_NUM = 500;
+    private static final int TOTAL = FILE_MSG_NUM * 2 + NEW_NUM;
+    private static final Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) throws Exception {
+        String dir = FileUtil.addPath(workDir, "legacyq");
+        clearDir(dir);
+        long consumedPos = writeOldFile(new File(FileUtil.addPath(dir, "legacy.0")), 0, 0);
+        writeOldFile(new File(FileUtil.addPath(dir, "legacy.1")), 1, FILE_MSG_NUM);
+        File state = new File(FileUtil.addPath(dir, "legacy_old_consumer"));
+        writeOldState(state, 0, (int)consumedPos);
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "legacy")
+            .maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger errNum = new AtomicInteger(0);
+        AtomicInteger expected = new AtomicInteger(CONSUMED_NUM);
+        CountDownLatch over = new CountDownLatch(TOTAL - CONSUMED_NUM);
+        fq.addConsumer("old_consumer", true, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != 10 + no % 20 || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg no {}, expected {}, len {}", no, expected.get() - 1, msg.len());
+                }
+            }
+            over.countDown();
+            return true;
+        });
+        for(int i = FILE_MSG_NUM * 2; i < TOTAL; i++) {
+            fq.push(message(i), true);
+        }
+        if(!over.await(10, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get() - CONSUMED_NUM);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+
+        //state file is rewritten in the current version
+        try (RandomAccessFile raf = new RandomAccessFile(state, "r")) {
+            raf.seek(IFile.MAGIC.length);
+            int ver = raf.read();
+            long entries = raf.length() - IFile.FILE_HEAD_LEN;
+            if(ver != IFile.VER || entries % (Integer.BYTES + Long.BYTES) != 0) {
+                LOG.error("State file not migrated, ver {}, entries length {}", ver, entries);
+                errNum.incrementAndGet();
+            }
+        }
+
+        //reopen it, nothing consumed again
+        fq = FQTool.create(builder);
+        AtomicInteger again = new AtomicInteger(0);
+        fq.addConsumer("old_consumer", true, (msg, reader) -> {
+            again.incrementAndGet();
+            return true;
+        });
+        Thread.sleep(500);
+        if(again.get() > 0) {
+            LOG.error("{} messages consumed again", again.get());
+            errNum.incrementAndGet();
+        }
+        LOG.info("Poll num:{},error num:{}", expected.get() - CONSUMED_NUM, errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static byte[] message(int no) {
+        byte[] content = new byte[10 + no % 20];
+        IFile.encodeInt(content, no, 0);
+        return content;
+    }
+
+    /**
+     * Write a queue file of VER_INT_POS, messages are hashed by IFile.hashCode
+     * @return position after CONSUMED_NUM messages
+     */
+    private static long writeOldFile(File f, int fileNo, int from) throws IOException {
+        long consumedPos = -1;
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            byte[] head = new byte[IFile.FILE_HEAD_LEN];
+            System.arraycopy(IFile.MAGIC, 0, head, 0, IFile.MAGIC.length);
+            head[IFile.MAGIC.length] = IFile.VER_INT_POS;
+            IFile.encodeInt(head, fileNo, IFile.MAGIC.length + 1);
+            out.write(head);
+            long pos = head.length;
+            byte[] msgHead = new byte[Integer.BYTES * 2];
+            for(int i = 0; i < FILE_MSG_NUM; i++) {
+                if(i == CONSUMED_NUM) {
+                    consumedPos = pos;
+                }
+                byte[] content = message(from + i);
+                IFile.encodeInt(msgHead, content.length | IFile.MSG_HASH_FLAG, 0);
+                IFile.encodeInt(msgHead, IFile.hashCode(content), Integer.BYTES);
+                out.write(msgHead);
+                out.write(content);
+                pos += msgHead.length + content.length;
+            }
+        }
+        return consumedPos;
+    }
+
+    /**
+     * Write a consume state of VER_INT_POS, entries are fileNo(4) + readPos(4)
+     */
+    private static void writeOldState(File f, int fileNo, int readPos) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            byte[] head = new byte[IFile.FILE_HEAD_LEN];
+            System.arraycopy(IFile.MAGIC, 0, head, 0, IFile.MAGIC.length);
+            head[IFile.MAGIC.length] = IFile.VER_INT_POS;
+            out.write(head);
+            byte[] entry = new byte[Integer.BYTES * 2];
+            IFile.encodeInt(entry, 0, 0);
+            IFile.encodeInt(entry, IFile.FILE_HEAD_LEN, Integer.BYTES);
+            out.write(entry); //older positions, the last one is valid
+            IFile.encodeInt(entry, fileNo, 0);
+            IFile.encodeInt(entry, readPos, Integer.BYTES);
+            out.write(entry);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.io.Manifest;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * The queue starts from its manifest, files out of it are not scanned.
+ * A manifest saved before files were created or removed is corrected
+ * by probing files around its ends. A corrupt manifest is ignored,
+ * files are found by scanning. In all cases, consumers read all messages
+ * left in order, and pushers continue at the end
+ * @author flyinmind of csdn.net
+ *
+ */
+public class ManifestTest extends TestBase {
+    private static final String NAME = "manifest";
+    private static final int MSG_LEN = 1000;
+    private static final int ROUND_NUM = 2000; //about 2 files
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+    private static int pushed = 0; //messages pushed in all rounds
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "manifestq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, NAME)
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+
+        loaded(builder, dir);
+        stale(builder, dir);
+        corrupt(builder, dir, "flipped", () -> {
+            try(RandomAccessFile f = new RandomAccessFile(manifestFile(dir), "rw")) {
+                f.seek(f.length() / 2);
+                int b = f.read();
+                f.seek(f.length() / 2);
+                f.write(b ^ 0xff);
+            }
+        });
+        corrupt(builder, dir, "truncated", () -> {
+            try(RandomAccessFile f = new RandomAccessFile(manifestFile(dir), "rw")) {
+                f.setLength(f.length() - 3);
+            }
+        });
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * The manifest matches files. A file far after the last one
+     * isn't in the manifest, it's never found, because files are not scanned
+     */
+    private static void loaded(FileQueue.Builder builder, String dir) throws Exception {
+        FileQueue fq = FQTool.create(builder);
+        push(fq, ROUND_NUM);
+        FQTool.remove(builder.queueName());
+        checkManifest(dir, 0, pushed, false);
+
+        int orphan = lastFileNo(dir) + 5;
+        writeHead(dir, orphan);
+        fq = FQTool.create(builder);
+        CountDownLatch over = consume(fq, "loaded_consumer", 0, pushed + ROUND_NUM);
+        push(fq, ROUND_NUM);
+        await("loaded_consumer", over);
+        FQTool.remove(builder.queueName());
+        if(new File(queueFile(dir, orphan)).length() != IFile.FILE_HEAD_LEN) {
+            LOG.error("File {} out of the manifest is used", orphan);
+            errNum.incrementAndGet();
+        }
+        new File(queueFile(dir, orphan)).delete();
+        checkManifest(dir, 0, pushed, false);
+        LOG.info("Loaded, pushed:{},error num:{}", pushed, errNum.get());
+    }
+
+    /**
+     * The manifest was saved before two files were created,
+     * and before the first two files were removed
+     */
+    private static void stale(FileQueue.Builder builder, String dir) throws Exception {
+        File saved = new File(FileUtil.addPath(dir, NAME + ".saved"));
+        Files.copy(manifestFile(dir).toPath(), saved.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FileQueue fq = FQTool.create(builder);
+        push(fq, ROUND_NUM);
+        FQTool.remove(builder.queueName());
+
+        Manifest m = Manifest.load(manifestFile(dir));
+        int first = 0; //the first message left
+        for(Manifest.Segment s : m.segments()) {
+            if(s.fileNo < 2) {
+                first += s.msgNum;
+                new File(queueFile(dir, s.fileNo)).delete();
+            }
+        }
+        Files.move(saved.toPath(), manifestFile(dir).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        fq = FQTool.create(builder);
+        CountDownLatch over = consume(fq, "stale_consumer", first, pushed + ROUND_NUM);
+        push(fq, ROUND_NUM); //appended after the files created later
+        await("stale_consumer", over);
+        FQTool.remove(builder.queueName());
+        checkManifest(dir, first, pushed, false);
+        LOG.info("Stale, first:{},pushed:{},error num:{}", first, pushed, errNum.get());
+    }
+
+    /**
+     * Files are scanned when the manifest is corrupt
+     */
+    private static void corrupt(FileQueue.Builder builder, String dir, String how, Damage damage) throws Exception {
+        int first = IFile.parseInt(firstMessage(dir), 0);
+        damage.apply();
+        if(Manifest.load(manifestFile(dir)) != null) {
+            LOG.error("{} manifest is loaded", how);
+            errNum.incrementAndGet();
+        }
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch over = consume(fq, how + "_consumer", first, pushed + ROUND_NUM);
+        push(fq, ROUND_NUM);
+        await(how + "_consumer", over);
+        FQTool.remove(builder.queueName());
+        checkManifest(dir, first, pushed, true);
+        LOG.info("Corrupt({}), first:{},pushed:{},error num:{}", how, first, pushed, errNum.get());
+    }
+
+    @FunctionalInterface
+    private interface Damage {
+        void apply() throws Exception;
+    }
+
+    /**
+     * A new consumer reads from the head, messages are consecutive
+     * @param from first message expected
+     * @param to end of messages, exclusive, some are pushed later
+     */
+    private static CountDownLatch consume(FileQueue fq, String name, int from, int to) throws FQException {
+        AtomicInteger expected = new AtomicInteger(from);
+        CountDownLatch over = new CountDownLatch(to - from);
+        fq.addConsumer(name, true, InitPosition.HEAD, true, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != MSG_LEN || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("{}: invalid msg {}, expected {}", name, no, expected.get() - 1);
+                }
+                expected.set(no + 1);
+            }
+            over.countDown();
+            return true;
+        });
+        return over;
+    }
+
+    private static void await(String name, CountDownLatch over) throws InterruptedException {
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("{}: {} messages not received", name, over.getCount());
+            errNum.incrementAndGet();
+        }
+    }
+
+    /**
+     * The saved manifest lists all files, sealed, with their real sizes,
+     * the messages in them are from `first` to `to`.
+     * After scanned, only tail files are counted, others are unknown(-1)
+     */
+    private static void checkManifest(String dir, int first, int to, boolean scanned) {
+        Manifest m = Manifest.load(manifestFile(dir));
+        if(m == null) {
+            LOG.error("Manifest not saved");
+            errNum.incrementAndGet();
+            return;
+        }
+        int msgNum = 0;
+        int unknown = 0;
+        int fileNum = 0;
+        for(Manifest.Segment s : m.segments()) {
+            File f = new File(queueFile(dir, s.fileNo));
+            if(!s.sealed || s.size != f.length()) {
+                LOG.error("Segment {} of size {}, file size {}", s, s.size, f.length());
+                errNum.incrementAndGet();
+            }
+            if(s.msgNum < 0) {
+                unknown++;
+            } else {
+                msgNum += s.msgNum;
+            }
+            fileNum++;
+        }
+        if(scanned ? (msgNum > to - first || unknown == 0) : (msgNum != to - first || unknown > 0)) {
+            LOG.error("{} messages counted, {} segments unknown", msgNum, unknown);
+            errNum.incrementAndGet();
+        }
+        if(fileNum != lastFileNo(dir) - m.minFileNo() + 1) {
+            LOG.error("{} segments, {} files", fileNum, lastFileNo(dir) - m.minFileNo() + 1);
+            errNum.incrementAndGet();
+        }
+    }
+
+    private static void push(FileQueue fq, int num) throws FQException {
+        for(int i = 0; i < num; i++) {
+            byte[] m = new byte[MSG_LEN];
+            IFile.encodeInt(m, pushed++, 0);
+            fq.push(m, true);
+        }
+    }
+
+    /**
+     * First message of the first file
+     */
+    private static byte[] firstMessage(String dir) throws Exception {
+        int min = Integer.MAX_VALUE;
+        for(File f : new File(dir).listFiles((p, n) -> n.matches(NAME + "\\.\\d+"))) {
+            min = Math.min(min, Integer.parseInt(f.getName().substring(NAME.length() + 1)));
+        }
+        byte[] content = Files.readAllBytes(new File(queueFile(dir, min)).toPath());
+        int lenFlag = IFile.parseInt(content, IFile.FILE_HEAD_LEN);
+        int headLen = (lenFlag & IFile.MSG_HASH_FLAG) != 0 ? Integer.BYTES * 2 : Integer.BYTES;
+        int off = IFile.FILE_HEAD_LEN + headLen;
+        byte[] m = new byte[MSG_LEN];
+        System.arraycopy(content, off, m, 0, MSG_LEN);
+        return m;
+    }
+
+    private static void writeHead(String dir, int fileNo) throws Exception {
+        byte[] head = new byte[IFile.FILE_HEAD_LEN];
+        System.arraycopy(IFile.MAGIC, 0, head, 0, IFile.MAGIC.length);
+        head[IFile.MAGIC.length] = (byte)IFile.VER;
+        IFile.encodeInt(head, fileNo, IFile.MAGIC.length + 1);
+        try(FileOutputStream out = new FileOutputStream(queueFile(dir, fileNo))) {
+            out.write(head);
+        }
+    }
+
+    private static int lastFileNo(String dir) {
+        int last = -1;
+        for(File f : new File(dir).listFiles((p, n) -> n.matches(NAME + "\\.\\d+"))) {
+            last = Math.max(last, Integer.parseInt(f.getName().substring(NAME.length() + 1)));
+        }
+        return last;
+    }
+
+    private static File manifestFile(String dir) {
+        return new File(FileUtil.addPath(dir, NAME + ".manifest"));
+    }
+
+    private static String queueFile(String dir, int fileNo) {
+        return FileUtil.addPath(dir, NAME + "." + fileNo);
+    }
+}
@@ -0,0 +1,117 @@
+package cn.net.zhijian.fileq;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Read mapped files while they are written in every writing mode,
+ * across many rolls, by a sequential and a concurrent consumer.
+ * Then a new consumer reads all closed files from the head
+ * @author flyinmind of csdn.net
+ *
+ */
+public class MappedPollTest extends TestBase {
+    private static final int MSG_NUM = 20000;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "mappedpollq");
+        clearDir(dir);
+
+        test(new FileQueue.Builder(dir, "plain"));
+        test(new FileQueue.Builder(dir, "buffered").bufferedPush(true));
+        test(new FileQueue.Builder(dir, "group").groupCommit(true));
+        test(new FileQueue.Builder(dir, "mapped").mappedPush(true));
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static void test(FileQueue.Builder builder) throws Exception {
+        builder.mappedPoll(true).maxFileNum(100).maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch seqOver = new CountDownLatch(MSG_NUM);
+        fq.addConsumer("sequential", true, (msg, reader) -> {
+            int no = expected.getAndIncrement();
+            if(!check(no, msg.message(), msg.len()) || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("{}: invalid msg {}, len {}", builder.queueName(), no, msg.len());
+                }
+            }
+            seqOver.countDown();
+            return true;
+        });
+        CountDownLatch conOver = new CountDownLatch(MSG_NUM);
+        fq.addConsumer("concurrent", false, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(!check(no, msg.message(), msg.len()) || !msg.isCorrect()) {
+                errNum.incrementAndGet();
+            }
+            conOver.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        for(int no = 0; no < MSG_NUM; no++) {
+            fq.push(message(no), true);
+        }
+        if(!seqOver.await(30, TimeUnit.SECONDS) || !conOver.await(30, TimeUnit.SECONDS)) {
+            LOG.error("{}: {}/{} messages not received", builder.queueName(), seqOver.getCount(), conOver.getCount());
+            errNum.incrementAndGet();
+        }
+        LOG.info("{}: push num:{},time:{}", builder.queueName(), MSG_NUM, System.currentTimeMillis() - start);
+
+        //all files from the head, closed ones and the writing one
+        CountDownLatch headOver = new CountDownLatch(MSG_NUM);
+        AtomicInteger headExpected = new AtomicInteger(0);
+        fq.addConsumer("from_head", true, InitPosition.HEAD, true, (msg, reader) -> {
+            int no = headExpected.getAndIncrement();
+            if(!check(no, msg.message(), msg.len())) {
+                errNum.incrementAndGet();
+            }
+            headOver.countDown();
+            return true;
+        });
+        if(!headOver.await(30, TimeUnit.SECONDS)) {
+            LOG.error("{}: {} messages not read from the head", builder.queueName(), headOver.getCount());
+            errNum.incrementAndGet();
+        }
+        Thread.sleep(100); //nothing more
+        if(expected.get() != MSG_NUM || headExpected.get() != MSG_NUM) {
+            LOG.error("{}: {}/{} messages received", builder.queueName(), expected.get(), headExpected.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("{}: error num:{}", builder.queueName(), errNum.get());
+    }
+
+    private static boolean check(int no, byte[] msg, int len) {
+        byte[] m = message(no);
+        return len == m.length && Arrays.equals(m, 0, m.length, msg, 0, len);
+    }
+
+    private static byte[] message(int no) {
+        byte[] m = new byte[Integer.BYTES + (no * 53) % 2000];
+        new Random(no).nextBytes(m);
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
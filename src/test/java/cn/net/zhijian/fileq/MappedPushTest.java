@@ -0,0 +1,107 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.io.Manifest;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push into mapped files across many rolls, consumers read them
+ * by streams while writing. Files are truncated to their content when closed,
+ * without any zero-filled tail. Then reopen it, consumers continue
+ * from where they stopped, no message is lost or delivered again
+ * @author flyinmind of csdn.net
+ *
+ */
+public class MappedPushTest extends TestBase {
+    private static final int ROUND_NUM = 20000; //messages pushed in a round
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+    private static final AtomicInteger expected = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "mappedq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "mapped")
+            .mappedPush(true)
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+
+        round(builder, 0);
+        checkFiles(dir);
+        round(builder, ROUND_NUM); //continue after reopened
+        checkFiles(dir);
+
+        LOG.info("Poll num:{},error num:{}", expected.get(), errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static void round(FileQueue.Builder builder, int from) throws Exception {
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch over = new CountDownLatch(ROUND_NUM);
+        fq.addConsumer("mapped_consumer", true, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != length(no) || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, expected {}, len {}", no, expected.get() - 1, msg.len());
+                }
+            }
+            over.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        for(int no = from; no < from + ROUND_NUM; no++) {
+            byte[] m = new byte[length(no)];
+            IFile.encodeInt(m, no, 0);
+            fq.push(m, no % 2 == 0);
+        }
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get() - from);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Push num:{},time:{},error num:{}", ROUND_NUM, System.currentTimeMillis() - start, errNum.get());
+    }
+
+    /**
+     * Each closed file ends with a complete message, no zeros after it
+     */
+    private static void checkFiles(String dir) throws Exception {
+        File[] files = new File(dir).listFiles((d, n) -> n.matches("mapped\\.\\d+"));
+        if(files.length < 5) {
+            LOG.error("Only {} files, not rolled", files.length);
+            errNum.incrementAndGet();
+        }
+        File copy = new File(FileUtil.addPath(dir, "mapped.check"));
+        for(File f : files) {
+            Files.copy(f.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Manifest.Segment s = new Manifest.Segment(0, 0);
+            TailRecovery.recover(copy, s, true); //zeros are cut in mapped mode
+            if(s.size != f.length() || f.length() > IFile.MIN_FILESIZE + IFile.MAX_MSG_SIZE) {
+                LOG.error("File {} not truncated, size {}, content size {}", f, f.length(), s.size);
+                errNum.incrementAndGet();
+            }
+        }
+        copy.delete();
+    }
+
+    private static int length(int no) {
+        return Integer.BYTES + (no * 37) % 500;
+    }
+}
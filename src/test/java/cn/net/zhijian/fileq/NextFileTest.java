@@ -0,0 +1,192 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Next files are prepared in background.
+ * When the preparer is busy, rolling never waits for it,
+ * the file is claimed by the writer, the queued preparation does nothing.
+ * The prepared file is removed when the queue is closed.
+ * A prepared file left by a crash becomes the writing file when reopened,
+ * a consumer finds it with only its head, it's not skipped after the writer rolled
+ * @author flyinmind of csdn.net
+ *
+ */
+public class NextFileTest extends TestBase {
+    private static final int MSG_NUM = 5000; //about 5 files
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+    private static final AtomicInteger seqExpected = new AtomicInteger(0);
+    private static final Set<Integer> conReceived = ConcurrentHashMap.newKeySet();
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "nextq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "next")
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+
+        stalled(builder, dir);
+        closed(dir);
+        reopen(builder, dir);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * The preparer is blocked, files are rolled without it,
+     * the queued preparations are cancelled or claimed by the writer
+     */
+    private static void stalled(FileQueue.Builder builder, String dir) throws Exception {
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch over = consume(fq, MSG_NUM * 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        Background.prepare(() -> gate.await(30, TimeUnit.SECONDS));
+
+        Thread pusher = new Thread(() -> push(fq, 0, MSG_NUM));
+        long start = System.currentTimeMillis();
+        pusher.start();
+        pusher.join(20000);
+        if(pusher.isAlive()) {
+            LOG.error("Rolling waits for the blocked preparer");
+            errNum.incrementAndGet();
+        }
+        gate.countDown();
+        pusher.join();
+        push(fq, MSG_NUM, MSG_NUM * 2); //prepared in background again
+
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {}/{} messages received", seqExpected.get(), conReceived.size());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Stalled, time:{},files:{},error num:{}", System.currentTimeMillis() - start,
+                lastFileNo(dir, "next") + 1, errNum.get());
+    }
+
+    /**
+     * The prepared file is never used, it's removed when closed
+     */
+    private static void closed(String dir) {
+        int last = lastFileNo(dir, "next");
+        if(new File(FileUtil.addPath(dir, "next." + last)).length() <= IFile.FILE_HEAD_LEN) {
+            LOG.error("Prepared file next.{} not removed when closed", last);
+            errNum.incrementAndGet();
+        }
+    }
+
+    /**
+     * A file prepared before crashed is found after the last one,
+     * it becomes the writing file. A consumer opens it with only its head,
+     * then the writer fills it and rolls, it's still read by the consumer
+     */
+    private static void reopen(FileQueue.Builder builder, String dir) throws Exception {
+        int fileNo = lastFileNo(dir, "next") + 1;
+        byte[] head = new byte[IFile.FILE_HEAD_LEN];
+        System.arraycopy(IFile.MAGIC, 0, head, 0, IFile.MAGIC.length);
+        head[IFile.MAGIC.length] = (byte)IFile.VER;
+        IFile.encodeInt(head, fileNo, IFile.MAGIC.length + 1);
+        try(FileOutputStream out = new FileOutputStream(FileUtil.addPath(dir, "next." + fileNo))) {
+            out.write(head);
+        }
+
+        FileQueue fq = FQTool.create(builder);
+        int from = MSG_NUM * 2;
+        CountDownLatch over = consume(fq, MSG_NUM);
+        Thread.sleep(2000); //consumers reach the writing file, only its head
+        fq.pauseAllConsumers();
+        push(fq, from, from + MSG_NUM); //fill it and roll
+        fq.continueAllConsumers();
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {}/{} messages received after reopened", seqExpected.get() - from, conReceived.size());
+            errNum.incrementAndGet();
+        }
+        if(lastFileNo(dir, "next") <= fileNo) {
+            LOG.error("Not rolled after the prepared file {}", fileNo);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Reopen, prepared file:{},error num:{}", fileNo, errNum.get());
+    }
+
+    /**
+     * A sequential and a concurrent consumer, both of them check messages
+     */
+    private static CountDownLatch consume(FileQueue fq, int num) throws FQException {
+        CountDownLatch over = new CountDownLatch(num * 2);
+        conReceived.clear();
+        fq.addConsumer("seq_consumer", true, (msg, reader) -> {
+            int no = seqExpected.getAndIncrement();
+            if(!check(no, msg.message(), msg.len()) || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, len {}", no, msg.len());
+                }
+            }
+            over.countDown();
+            return true;
+        });
+        fq.addConsumer("con_consumer", false, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(!check(no, msg.message(), msg.len()) || !msg.isCorrect() || !conReceived.add(no)) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {} in concurrent, len {}", no, msg.len());
+                }
+            }
+            over.countDown();
+            return true;
+        });
+        return over;
+    }
+
+    private static void push(FileQueue fq, int from, int to) {
+        try {
+            for(int no = from; no < to; no++) {
+                fq.push(message(no), true);
+            }
+        } catch (FQException e) {
+            LOG.error("Fail to push", e);
+            errNum.incrementAndGet();
+        }
+    }
+
+    private static int lastFileNo(String dir, String name) {
+        int last = -1;
+        for(File f : new File(dir).listFiles((p, n) -> n.matches(name + "\\.\\d+"))) {
+            last = Math.max(last, Integer.parseInt(f.getName().substring(name.length() + 1)));
+        }
+        return last;
+    }
+
+    private static boolean check(int no, byte[] msg, int len) {
+        byte[] m = message(no);
+        return len == m.length && Arrays.equals(m, 0, m.length, msg, 0, len);
+    }
+
+    private static byte[] message(int no) {
+        byte[] m = new byte[Integer.BYTES + (no * 31) % 400 + 800];
+        new Random(no).nextBytes(m);
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
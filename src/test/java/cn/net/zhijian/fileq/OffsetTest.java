@@ -0,0 +1,209 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.ICodec;
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.Durability;
+import cn.net.zhijian.fileq.io.DeflateCodec;
+import cn.net.zhijian.fileq.util.Codecs;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Offsets returned by push(batch) and pushAsync locate the messages consumers read.
+ * Files are parsed as a reader does, a message in a block, compressed or not,
+ * is at the offset of the block plus its index, a plain one is at its position.
+ * Offsets are unique, increasing in pushing order, the same as the delivering order
+ * @author flyinmind of csdn.net
+ *
+ */
+public class OffsetTest extends TestBase {
+    private static final int ROUND_NUM = 200; //small batches, framed in blocks
+    private static final int BATCH_NUM = 20;
+    private static final int ASYNC_NUM = 10000;
+    private static final int LARGE_NUM = IFile.MAX_BLOCK_SIZE / 400; //messages are longer than 500 bytes
+    private static final int TOTAL = ROUND_NUM / 10 + (ROUND_NUM - ROUND_NUM / 10) * BATCH_NUM + LARGE_NUM + ASYNC_NUM;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "offsetq");
+        clearDir(dir);
+
+        test(new FileQueue.Builder(dir, "plain"), dir, "plain");
+        test(new FileQueue.Builder(dir, "deflate").compression(new DeflateCodec()), dir, "deflate");
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static void test(FileQueue.Builder builder, String dir, String name) throws Exception {
+        builder.maxFileNum(100).maxFileSize(IFile.MIN_FILESIZE * 4);
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger delivered = new AtomicInteger(0);
+        List<Long> offsets = new ArrayList<>(); //offsets of messages in pushing order
+        CountDownLatch over = new CountDownLatch(1);
+        fq.addConsumer("offset_consumer", true, (msg, reader) -> {
+            int no = delivered.getAndIncrement();
+            if(!check(no, msg.message(), msg.len()) || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("{}: invalid msg {}, len {}", name, no, msg.len());
+                }
+            }
+            if(no == TOTAL - 1) {
+                over.countDown();
+            }
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        MessageBatch batch = new MessageBatch();
+        for(int round = 0; round < ROUND_NUM; round++) {
+            //a single message isn't framed, it's at its position
+            int num = round % 10 == 0 ? 1 : BATCH_NUM;
+            pushBatch(fq, batch, num, offsets);
+        }
+        //longer than a block, written plain in one write
+        pushBatch(fq, batch, LARGE_NUM, offsets);
+
+        List<CompletableFuture<Long>> futures = new ArrayList<>(ASYNC_NUM);
+        int from = offsets.size();
+        for(int i = 0; i < ASYNC_NUM; i++) {
+            futures.add(fq.pushAsync(message(from + i), Durability.NONE));
+        }
+        for(CompletableFuture<Long> f : futures) {
+            offsets.add(f.get(30, TimeUnit.SECONDS));
+        }
+        int total = offsets.size();
+        if(!over.await(30, TimeUnit.SECONDS) || delivered.get() != TOTAL) {
+            LOG.error("{}: {}/{} messages delivered", name, delivered.get(), total);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+
+        //delivered in pushing order, so offsets must increase in it
+        for(int no = 1; no < total; no++) {
+            if(offsets.get(no) <= offsets.get(no - 1)) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("{}: offset {} of msg {} not after {}", name, offsets.get(no), no, offsets.get(no - 1));
+                }
+            }
+        }
+        Map<Long, byte[]> read = readAll(dir, name);
+        if(read.size() != total) {
+            LOG.error("{}: {} messages in files, {} pushed", name, read.size(), total);
+            errNum.incrementAndGet();
+        }
+        for(int no = 0; no < total; no++) {
+            byte[] m = read.get(offsets.get(no));
+            if(m == null || !check(no, m, m.length)) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("{}: msg {} not found at {}", name, no, Long.toHexString(offsets.get(no)));
+                }
+            }
+        }
+        LOG.info("{}: push num:{},time:{},error num:{}", name, total, System.currentTimeMillis() - start, errNum.get());
+    }
+
+    private static void pushBatch(FileQueue fq, MessageBatch batch, int num, List<Long> offsets) throws FQException {
+        int from = offsets.size();
+        int[] pos = new int[num];
+        batch.clear();
+        for(int i = 0; i < num; i++) {
+            pos[i] = batch.length();
+            byte[] m = message(from + i);
+            batch.add(m, 0, m.length, i % 2 == 0);
+        }
+        fq.push(batch);
+        for(int i = 0; i < num; i++) {
+            offsets.add(batch.offset(i, pos[i]));
+        }
+    }
+
+    /**
+     * Parse all files as a reader does
+     * @return messages by the offsets where they are delivered
+     */
+    private static Map<Long, byte[]> readAll(String dir, String name) throws Exception {
+        Map<Long, byte[]> msgs = new HashMap<>();
+        File[] files = new File(dir).listFiles((p, n) -> n.matches(name + "\\.\\d+"));
+        for(File f : files) {
+            int fileNo = Integer.parseInt(f.getName().substring(name.length() + 1));
+            byte[] content = Files.readAllBytes(f.toPath());
+            int p = IFile.FILE_HEAD_LEN;
+            while(p + Integer.BYTES <= content.length) {
+                int lenFlag = IFile.parseInt(content, p);
+                if((lenFlag & IFile.BLOCK_FLAG) == 0) {
+                    int headLen = (lenFlag & IFile.MSG_HASH_FLAG) != 0 ? Integer.BYTES * 2 : Integer.BYTES;
+                    int len = lenFlag & IFile.MSG_LEN_MASK;
+                    msgs.put(IFile.offset(fileNo, p), Arrays.copyOfRange(content, p + headLen, p + headLen + len));
+                    p += headLen + len;
+                    continue;
+                }
+
+                //codec(1) + count(4) + rawLen(4) + baseOffset(8) + timestamp(8) + checksum(4)
+                int len = lenFlag & IFile.MSG_LEN_MASK;
+                int h = p + Integer.BYTES;
+                int codecId = content[h] & 0xff;
+                int count = IFile.parseInt(content, h + 1);
+                int rawLen = IFile.parseInt(content, h + 1 + Integer.BYTES);
+                byte[] raw = Arrays.copyOfRange(content, h + IFile.BLOCK_HEAD_LEN, h + len);
+                if(codecId != IFile.CODEC_NONE) {
+                    ICodec codec = Codecs.get(codecId);
+                    byte[] b = new byte[rawLen];
+                    codec.decompress(raw, 0, raw.length, b, 0, rawLen);
+                    raw = b;
+                }
+                long base = IFile.offset(fileNo, p);
+                int i = 0;
+                for(int q = 0; q < raw.length; i++) {
+                    int l = IFile.parseInt(raw, q);
+                    int headLen = (l & IFile.MSG_HASH_FLAG) != 0 ? Integer.BYTES * 2 : Integer.BYTES;
+                    l &= IFile.MSG_LEN_MASK;
+                    msgs.put(base + i, Arrays.copyOfRange(raw, q + headLen, q + headLen + l));
+                    q += headLen + l;
+                }
+                if(i != count) {
+                    LOG.error("{}: {} messages in block {}, count {}", name, i, Long.toHexString(base), count);
+                    errNum.incrementAndGet();
+                }
+                p = h + len;
+            }
+        }
+        return msgs;
+    }
+
+    private static boolean check(int no, byte[] msg, int len) {
+        byte[] m = message(no);
+        return len == m.length && Arrays.equals(m, 0, m.length, msg, 0, len);
+    }
+
+    /**
+     * Compressible content, different in every message
+     */
+    private static byte[] message(int no) {
+        byte[] m = new byte[Integer.BYTES + (no * 37) % 900 + 50];
+        Arrays.fill(m, (byte)(no % 251));
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
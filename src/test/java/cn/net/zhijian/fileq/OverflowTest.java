@@ -0,0 +1,292 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.intf.IFile.Overflow;
+import cn.net.zhijian.fileq.intf.IMessageHandler;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Pushers are blocked when the queue is full, woken up when consumers move on.
+ * REJECT fails at once, DROP_OLDEST removes files a stalled consumer hasn't read,
+ * the consumer skips them. A queue without consumers has no lag,
+ * but its size is still limited
+ * @author flyinmind of csdn.net
+ *
+ */
+public class OverflowTest extends TestBase {
+    private static final int MSG_LEN = 1000;
+    private static final int MSG_NUM = 8000; //8 files
+    private static final long LIMIT = 4 * IFile.MIN_FILESIZE;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "overflowq");
+        clearDir(dir);
+
+        blocked(dir);
+        rejected(dir);
+        lagging(dir);
+        dropOldest(dir);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static FileQueue.Builder builder(String dir, String name) {
+        return new FileQueue.Builder(dir, name)
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+    }
+
+    /**
+     * The consumer is stalled, the pusher is blocked when the queue is full,
+     * it goes on after the consumer moves on and consumed files are removed
+     */
+    private static void blocked(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "blocked")
+            .maxQueueBytes(LIMIT)
+            .overflow(Overflow.BLOCK, 10000);
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(MSG_NUM);
+        fq.addConsumer("blocked_consumer", true, stalled(gate, expected, over));
+
+        AtomicInteger pushed = new AtomicInteger(0);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread pusher = new Thread(() -> {
+            try {
+                for(int no = 0; no < MSG_NUM; no++) {
+                    fq.push(message(no), true);
+                    pushed.incrementAndGet();
+                }
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        pusher.start();
+        Thread.sleep(2000);
+        if(!pusher.isAlive() || (long)pushed.get() * MSG_LEN > LIMIT) {
+            LOG.error("Pusher not blocked, {} messages pushed", pushed.get());
+            errNum.incrementAndGet();
+        }
+
+        gate.countDown(); //consumer moves on, pusher is woken up
+        pusher.join(30000);
+        if(failure.get() != null || pushed.get() != MSG_NUM) {
+            LOG.error("Only {} messages pushed", pushed.get(), failure.get());
+            errNum.incrementAndGet();
+        }
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Blocked, pushed:{},received:{},error num:{}", pushed.get(), expected.get(), errNum.get());
+    }
+
+    /**
+     * The size is limited even if there are no consumers,
+     * pushers fail at once when it's exceeded
+     */
+    private static void rejected(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "rejected")
+            .maxQueueBytes(LIMIT)
+            .overflow(Overflow.REJECT, 10000);
+        FileQueue fq = FQTool.create(builder);
+        int pushed = 0;
+        for(; pushed < MSG_NUM; pushed++) {
+            try {
+                fq.push(message(pushed), true);
+            } catch (FQException e) {
+                break;
+            }
+        }
+        long bytes = (long)pushed * MSG_LEN;
+        if(pushed == MSG_NUM || bytes > LIMIT || bytes < LIMIT - 2 * IFile.MIN_FILESIZE) {
+            LOG.error("Rejected after {} messages", pushed);
+            errNum.incrementAndGet();
+        }
+        long start = System.currentTimeMillis();
+        try {
+            fq.push(message(pushed), true);
+            LOG.error("Push after rejected");
+            errNum.incrementAndGet();
+        } catch (FQException e) {
+            if(System.currentTimeMillis() - start > 1000) {
+                LOG.error("Rejected after {}ms", System.currentTimeMillis() - start);
+                errNum.incrementAndGet();
+            }
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Rejected, pushed:{},error num:{}", pushed, errNum.get());
+    }
+
+    /**
+     * Without consumers, nothing lags, pushing never fails.
+     * A stalled consumer lags, pushers are rejected,
+     * after it caught up, pushing succeeds again
+     */
+    private static void lagging(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "lagging")
+            .maxLagBytes(LIMIT / 2)
+            .overflow(Overflow.REJECT, 10000);
+        FileQueue fq = FQTool.create(builder);
+        int num = MSG_NUM / 2; //more than the max lag
+        for(int no = 0; no < num; no++) {
+            try {
+                fq.push(message(no), true);
+            } catch (FQException e) {
+                LOG.error("Rejected without consumers at {}", no, e);
+                errNum.incrementAndGet();
+                break;
+            }
+        }
+
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(num);
+        fq.addConsumer("lagging_consumer", true, InitPosition.HEAD, true, stalled(gate, expected, over));
+        Thread.sleep(500); //the lag is checked periodically
+        try {
+            fq.push(message(num), true);
+            LOG.error("Not rejected when the consumer lags");
+            errNum.incrementAndGet();
+        } catch (FQException e) {
+            LOG.info("Rejected, {}", e.getMessage());
+        }
+
+        gate.countDown();
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        Thread.sleep(500);
+        try {
+            fq.push(message(num), true);
+        } catch (FQException e) {
+            LOG.error("Rejected after the consumer caught up", e);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Lagging, received:{},error num:{}", expected.get(), errNum.get());
+    }
+
+    /**
+     * The oldest files are dropped, even if the consumer hasn't read them,
+     * pushers never wait. The consumer skips dropped files
+     */
+    private static void dropOldest(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "drop")
+            .maxQueueBytes(LIMIT)
+            .overflow(Overflow.DROP_OLDEST, 10000);
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger(0);
+        AtomicInteger last = new AtomicInteger(-1);
+        CountDownLatch over = new CountDownLatch(1);
+        fq.addConsumer("drop_consumer", true, (msg, reader) -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no <= last.get() || msg.len() != MSG_LEN) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {} after {}", no, last.get());
+                }
+            }
+            last.set(no);
+            received.incrementAndGet();
+            if(no == MSG_NUM - 1) {
+                over.countDown();
+            }
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        for(int no = 0; no < MSG_NUM; no++) {
+            try {
+                fq.push(message(no), true);
+            } catch (FQException e) {
+                LOG.error("Fail to push msg {}", no, e);
+                errNum.incrementAndGet();
+                break;
+            }
+        }
+        long interval = System.currentTimeMillis() - start;
+        if(new File(FileUtil.addPath(dir, "drop.0")).exists() || fileBytes(dir, "drop") > LIMIT) {
+            LOG.error("Oldest files not dropped, {} bytes", fileBytes(dir, "drop"));
+            errNum.incrementAndGet();
+        }
+
+        gate.countDown(); //the consumer moves forward, skips dropped files
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Last message not received, the last one is {}", last.get());
+            errNum.incrementAndGet();
+        }
+        if(received.get() >= MSG_NUM) {
+            LOG.error("No message dropped, {} received", received.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Drop oldest, push time:{},received:{},error num:{}", interval, received.get(), errNum.get());
+    }
+
+    /**
+     * Handler stalled until the gate is opened, then messages are checked in order
+     */
+    private static IMessageHandler stalled(CountDownLatch gate, AtomicInteger expected, CountDownLatch over) {
+        return (msg, reader) -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != MSG_LEN) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, expected {}", no, expected.get() - 1);
+                }
+                expected.set(no + 1);
+            }
+            over.countDown();
+            return true;
+        };
+    }
+
+    /**
+     * Size of queue files, the next file prepared in advance has only its head
+     */
+    private static long fileBytes(String dir, String name) {
+        long bytes = 0;
+        for(File f : new File(dir).listFiles((p, n) -> n.matches(name + "\\.\\d+"))) {
+            bytes += f.length();
+        }
+        return bytes;
+    }
+
+    private static byte[] message(int no) {
+        byte[] m = new byte[MSG_LEN];
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
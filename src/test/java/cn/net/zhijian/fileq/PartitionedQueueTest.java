@@ -0,0 +1,82 @@
+package cn.net.zhijian.fileq;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Push by keys in many threads, check messages of each key are in order
+ * @author flyinmind of csdn.net
+ *
+ */
+public class PartitionedQueueTest {
+    private static final int THREAD_NUM = 4;
+    private static final int KEY_NUM = 16; //keys of each thread
+    private static final int MSG_NUM = 100000; //messages of each thread
+    private static final Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) throws Exception {
+        CountDownLatch counter = new CountDownLatch(THREAD_NUM * MSG_NUM);
+        ExecutorService threadPool = Executors.newFixedThreadPool(8);
+        FQTool.start(threadPool);
+        String queueDir = FileUtil.addPath(System.getProperty("user.dir"), "partitioned");
+        FileQueue.Builder builder = new FileQueue.Builder(queueDir, "queue")
+            .maxFileNum(10)
+            .maxFileSize(16 * 1024 * 1024);
+        PartitionedFileQueue pq = FQTool.createPartitioned(builder, 4);
+
+        Map<Integer, Integer> lastSeqs = new ConcurrentHashMap<>();
+        AtomicInteger errNum = new AtomicInteger(0);
+        pq.addConsumer("sequential", true, (msg, reader) -> { //in order in each key
+            byte[] m = msg.message();
+            int key = IFile.parseInt(m, 0);
+            int seq = IFile.parseInt(m, Integer.BYTES);
+            Integer last = lastSeqs.put(key, seq);
+            if(last != null && last >= seq) {
+                errNum.incrementAndGet();
+            }
+            counter.countDown();
+            return true;
+        });
+
+        long start = System.currentTimeMillis();
+        Thread[] threads = new Thread[THREAD_NUM];
+        for(int t = 0; t < THREAD_NUM; t++) {
+            final int base = t * KEY_NUM;
+            threads[t] = new Thread(() -> {
+                byte[] key = new byte[Integer.BYTES];
+                for(int i = 0; i < MSG_NUM; i++) {
+                    byte[] m = new byte[Integer.BYTES * 2];
+                    IFile.encodeInt(m, base + i % KEY_NUM, 0);
+                    IFile.encodeInt(m, i, Integer.BYTES);
+                    IFile.encodeInt(key, base + i % KEY_NUM, 0);
+                    try {
+                        pq.push(key, m);
+                    } catch (FQException e) {
+                        LOG.error("Fail to push", e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        LOG.info("Push num:{}, interval:{}ms", THREAD_NUM * MSG_NUM, System.currentTimeMillis() - start);
+        counter.await();
+        LOG.info("Poll num:{},error num:{}, interval:{}ms", THREAD_NUM * MSG_NUM,
+                errNum.get(), System.currentTimeMillis() - start);
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,121 @@
+package cn.net.zhijian.fileq;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.util.ChunkCache;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Many consumers read the same files through a shared chunk cache,
+ * only the first one reads a chunk from disk, the others hit the cache.
+ * A consumer lagging far behind reads evicted chunks from files again.
+ * The cache never exceeds its max size
+ * @author flyinmind of csdn.net
+ *
+ */
+public class ReadCacheTest extends TestBase {
+    private static final int MSG_NUM = 20000;
+    private static final int CONSUMER_NUM = 4;
+    private static final long CACHE_BYTES = 4 * 1024 * 1024;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+    private static final AtomicReference<ChunkCache> cache = new AtomicReference<>();
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "readcacheq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "cached")
+            .readCache(CACHE_BYTES)
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue fq = FQTool.create(builder);
+
+        //all files are written before consuming, consumers read them together
+        for(int no = 0; no < MSG_NUM; no++) {
+            fq.push(message(no), true);
+        }
+        long start = System.currentTimeMillis();
+        CountDownLatch over = new CountDownLatch(CONSUMER_NUM);
+        for(int i = 0; i < CONSUMER_NUM; i++) {
+            consume(fq, "consumer_" + i, InitPosition.CUR, over);
+        }
+        if(!over.await(60, TimeUnit.SECONDS)) {
+            LOG.error("Only {} consumers finished", CONSUMER_NUM - over.getCount());
+            errNum.incrementAndGet();
+        }
+        ChunkCache c = cache.get();
+        long hits = c.hits();
+        long misses = c.misses();
+        LOG.info("Shared, time:{},cache:{}", System.currentTimeMillis() - start, c);
+        if(hits < misses * (CONSUMER_NUM - 1) / 2) {
+            LOG.error("Only {} hits, {} misses", hits, misses);
+            errNum.incrementAndGet();
+        }
+
+        //the head of the queue has been evicted, read from files
+        over = new CountDownLatch(1);
+        consume(fq, "lagging", InitPosition.HEAD, over);
+        if(!over.await(60, TimeUnit.SECONDS)) {
+            LOG.error("Lagging consumer not finished");
+            errNum.incrementAndGet();
+        }
+        LOG.info("Lagging, cache:{}", c);
+        if(c.misses() - misses < misses / 2) { //most of them are evicted
+            LOG.error("Evicted chunks are not read again, {} misses", c.misses() - misses);
+            errNum.incrementAndGet();
+        }
+        if(c.bytes() > CACHE_BYTES) {
+            LOG.error("Cache size {} exceeds {}", c.bytes(), CACHE_BYTES);
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Check messages are received in order, count down when all received
+     */
+    private static void consume(FileQueue fq, String name, InitPosition cp, CountDownLatch over) throws FQException {
+        AtomicInteger expected = new AtomicInteger(0);
+        fq.addConsumer(name, true, cp, true, (msg, reader) -> {
+            cache.set(reader.writer().chunkCache());
+            int no = expected.getAndIncrement();
+            byte[] m = message(no);
+            if(msg.len() != m.length || !Arrays.equals(m, 0, m.length, msg.message(), 0, msg.len())
+               || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("{}: invalid msg {}, len {}", name, no, msg.len());
+                }
+            }
+            if(no == MSG_NUM - 1) {
+                over.countDown();
+            }
+            return true;
+        });
+    }
+
+    private static byte[] message(int no) {
+        byte[] m = new byte[Integer.BYTES + (no * 53) % 2000];
+        new Random(no).nextBytes(m);
+        IFile.encodeInt(m, no, 0);
+        return m;
+    }
+}
@@ -0,0 +1,204 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IMessageHandler;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Files beyond maxFileNum are removed by the janitor after they are consumed.
+ * Pushers never wait for it, when it's blocked, removable files are reported
+ * by pendingDeletes, they are removed after it goes on.
+ * Files a stalled consumer hasn't read are kept, it reads all of them
+ * @author flyinmind of csdn.net
+ *
+ */
+public class RetentionTest extends TestBase {
+    private static final int MSG_LEN = 1000;
+    private static final int MSG_NUM = 10000; //about 10 files
+    private static final int MAX_FILE_NUM = 4;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "retentionq");
+        clearDir(dir);
+
+        janitorBlocked(dir);
+        consumerStalled(dir);
+
+        LOG.info("error num:{}", errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static FileQueue.Builder builder(String dir, String name) {
+        return new FileQueue.Builder(dir, name)
+            .maxFileNum(MAX_FILE_NUM)
+            .maxFileSize(IFile.MIN_FILESIZE);
+    }
+
+    /**
+     * The consumer keeps up, files are removable when rolled.
+     * The janitor is blocked, pushers go on, consumed files are pending,
+     * they are removed after the janitor goes on
+     */
+    private static void janitorBlocked(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "janitor");
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(MSG_NUM * 2);
+        fq.addConsumer("janitor_consumer", true, check(expected, over, null));
+        push(fq, 0, MSG_NUM);
+        while(expected.get() < MSG_NUM) {
+            Thread.sleep(10);
+        }
+        waitRemoved(fq, dir, "janitor");
+        int first = firstFileNo(dir, "janitor");
+
+        CountDownLatch gate = new CountDownLatch(1);
+        Background.clean(() -> {
+            try {
+                gate.await(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        Thread pusher = new Thread(() -> push(fq, MSG_NUM, MSG_NUM * 2));
+        long start = System.currentTimeMillis();
+        pusher.start();
+        pusher.join(20000);
+        if(pusher.isAlive()) {
+            LOG.error("Pusher waits for the blocked janitor");
+            errNum.incrementAndGet();
+        }
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        long pushTime = System.currentTimeMillis() - start;
+
+        //nothing is removed by pushers
+        int fileNum = fileNum(dir, "janitor");
+        int pending = fq.pendingDeletes();
+        if(firstFileNo(dir, "janitor") != first || pending < fileNum - MAX_FILE_NUM - 1) {
+            LOG.error("{} files, {} pending deletes when the janitor is blocked", fileNum, pending);
+            errNum.incrementAndGet();
+        }
+
+        gate.countDown();
+        pusher.join();
+        waitRemoved(fq, dir, "janitor");
+        FQTool.remove(builder.queueName());
+        LOG.info("Janitor blocked, push time:{},files:{},pending:{},error num:{}",
+                pushTime, fileNum, pending, errNum.get());
+    }
+
+    /**
+     * A stalled consumer holds all files it hasn't read, nothing is pending.
+     * After it moves on, it reads all of them, then they are removed
+     */
+    private static void consumerStalled(String dir) throws Exception {
+        FileQueue.Builder builder = builder(dir, "stalled");
+        FileQueue fq = FQTool.create(builder);
+        AtomicInteger expected = new AtomicInteger(0);
+        CountDownLatch over = new CountDownLatch(MSG_NUM);
+        CountDownLatch gate = new CountDownLatch(1);
+        fq.addConsumer("stalled_consumer", true, check(expected, over, gate));
+
+        push(fq, 0, MSG_NUM);
+        Thread.sleep(1000); //give the janitor a chance
+        int fileNum = fileNum(dir, "stalled");
+        int pending = fq.pendingDeletes();
+        if(fileNum < MSG_NUM * MSG_LEN / IFile.MIN_FILESIZE || pending != 0) {
+            LOG.error("{} files, {} pending deletes when the consumer is stalled", fileNum, pending);
+            errNum.incrementAndGet();
+        }
+
+        gate.countDown();
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        waitRemoved(fq, dir, "stalled"); //the dispatcher wakes the janitor when idle
+        FQTool.remove(builder.queueName());
+        LOG.info("Consumer stalled, files:{},error num:{}", fileNum, errNum.get());
+    }
+
+    /**
+     * Files are removed down to maxFileNum, the next file prepared is not counted
+     */
+    private static void waitRemoved(FileQueue fq, String dir, String name) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while(System.currentTimeMillis() < end
+              && (fq.pendingDeletes() > 0 || fileNum(dir, name) > MAX_FILE_NUM + 1)) {
+            Thread.sleep(100);
+        }
+        if(fq.pendingDeletes() > 0 || fileNum(dir, name) > MAX_FILE_NUM + 1) {
+            LOG.error("{}: {} files, {} pending deletes", name, fileNum(dir, name), fq.pendingDeletes());
+            errNum.incrementAndGet();
+        }
+    }
+
+    /**
+     * Messages are received in order, the handler waits for the gate if it's not null
+     */
+    private static IMessageHandler check(AtomicInteger expected, CountDownLatch over, CountDownLatch gate) {
+        return (msg, reader) -> {
+            if(gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != MSG_LEN) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, expected {}", no, expected.get() - 1);
+                }
+                expected.set(no + 1);
+            }
+            over.countDown();
+            return true;
+        };
+    }
+
+    private static void push(FileQueue fq, int from, int to) {
+        try {
+            for(int no = from; no < to; no++) {
+                byte[] m = new byte[MSG_LEN];
+                IFile.encodeInt(m, no, 0);
+                fq.push(m, true);
+            }
+        } catch (FQException e) {
+            LOG.error("Fail to push", e);
+            errNum.incrementAndGet();
+        }
+    }
+
+    private static int firstFileNo(String dir, String name) {
+        int first = Integer.MAX_VALUE;
+        for(File f : new File(dir).listFiles((p, n) -> n.matches(name + "\\.\\d+"))) {
+            first = Math.min(first, Integer.parseInt(f.getName().substring(name.length() + 1)));
+        }
+        return first;
+    }
+
+    private static int fileNum(String dir, String name) {
+        return new File(dir).listFiles((p, n) -> n.matches(name + "\\.\\d+")).length;
+    }
+}
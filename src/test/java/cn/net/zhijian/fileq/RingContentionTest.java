@@ -0,0 +1,143 @@
+package cn.net.zhijian.fileq;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * More pushers than slots of the writer's ring, they push single messages,
+ * batches and buffers at the same time, across many files.
+ * A sequential consumer gets messages of each thread in order,
+ * a concurrent consumer gets all of them
+ * @author flyinmind of csdn.net
+ *
+ */
+public class RingContentionTest extends TestBase {
+    private static final int THREAD_NUM = 300; //more than slots in the ring
+    private static final int MSG_NUM = 100; //messages of each thread
+    private static final int BATCH_SIZE = 5;
+    private static final int TOTAL = THREAD_NUM * MSG_NUM;
+    private static final Logger LOG = LogUtil.getInstance();
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(8);
+        FQTool.start(threadPool);
+        AtomicInteger errNum = new AtomicInteger(0);
+        String dir = FileUtil.addPath(workDir, "ringq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "ring")
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+        FileQueue fq = FQTool.create(builder);
+
+        CountDownLatch seqOver = new CountDownLatch(TOTAL);
+        Map<Integer, Integer> lastSeqs = new ConcurrentHashMap<>();
+        fq.addConsumer("ring_sequential", true, (msg, reader) -> {
+            byte[] m = msg.message();
+            int t = IFile.parseInt(m, 0);
+            int seq = IFile.parseInt(m, Integer.BYTES);
+            Integer last = lastSeqs.put(t, seq);
+            if((last == null ? -1 : last) + 1 != seq || msg.len() != length(t, seq) || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {} of thread {}, last {}", seq, t, last);
+                }
+            }
+            seqOver.countDown();
+            return true;
+        });
+        CountDownLatch conOver = new CountDownLatch(TOTAL);
+        fq.addConsumer("ring_concurrent", false, (msg, reader) -> {
+            if(!msg.isCorrect()) {
+                errNum.incrementAndGet();
+            }
+            conOver.countDown();
+            return true;
+        });
+
+        CountDownLatch ready = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREAD_NUM];
+        for(int i = 0; i < THREAD_NUM; i++) {
+            int t = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    ready.await();
+                    push(fq, t);
+                } catch(Exception e) {
+                    LOG.error("Fail to push", e);
+                    errNum.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        long start = System.currentTimeMillis();
+        ready.countDown(); //all start at the same time
+        for(Thread t : threads) {
+            t.join();
+        }
+        LOG.info("Push num:{},time:{}", TOTAL, System.currentTimeMillis() - start);
+
+        if(!seqOver.await(60, TimeUnit.SECONDS)) {
+            LOG.error("{} messages not received by the sequential consumer", seqOver.getCount());
+            errNum.incrementAndGet();
+        }
+        if(!conOver.await(60, TimeUnit.SECONDS)) {
+            LOG.error("{} messages not received by the concurrent consumer", conOver.getCount());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        LOG.info("Poll num:{},error num:{}", TOTAL - seqOver.getCount(), errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Push messages of a thread, in turn by array, by batch and by buffers
+     */
+    private static void push(FileQueue fq, int t) throws FQException {
+        for(int seq = 0; seq < MSG_NUM;) {
+            switch((seq / BATCH_SIZE) % 3) {
+            case 0:
+                byte[] m = message(t, seq++);
+                fq.push(m, true);
+                break;
+            case 1:
+                MessageBatch batch = new MessageBatch();
+                for(int i = 0; i < BATCH_SIZE && seq < MSG_NUM; i++) {
+                    batch.add(message(t, seq++), true);
+                }
+                fq.push(batch);
+                break;
+            default:
+                byte[] c = message(t, seq++);
+                ByteBuffer head = ByteBuffer.wrap(c, 0, Integer.BYTES * 2);
+                ByteBuffer body = ByteBuffer.allocateDirect(c.length - Integer.BYTES * 2);
+                body.put(c, Integer.BYTES * 2, body.capacity()).flip();
+                fq.push(new ByteBuffer[] {head, body}, true);
+                break;
+            }
+        }
+    }
+
+    private static int length(int t, int seq) {
+        return 20 + (t + seq) % 200;
+    }
+
+    private static byte[] message(int t, int seq) {
+        byte[] m = new byte[length(t, seq)];
+        IFile.encodeInt(m, t, 0);
+        IFile.encodeInt(m, seq, Integer.BYTES);
+        return m;
+    }
+}
@@ -0,0 +1,142 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.intf.IFile.Placement;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Stripe queue files in three data dirs, one of them doesn't exist at first.
+ * Then a dir is removed from the settings, its files are moved to another one,
+ * all messages are still read in order, new files are placed in the left dirs.
+ * At last the manifest is lost, files are found by scanning all dirs
+ * @author flyinmind of csdn.net
+ *
+ */
+public class StripedDirsTest extends TestBase {
+    private static final int MSG_NUM = 5000; //about 5 files
+    private static final int MSG_LEN = 1000;
+    private static final Logger LOG = LogUtil.getInstance();
+    private static final AtomicInteger errNum = new AtomicInteger(0);
+    private static final AtomicInteger expected = new AtomicInteger(0);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "stripeq");
+        String[] dataDirs = new String[3];
+        clearDir(dir);
+        for(int i = 0; i < dataDirs.length; i++) {
+            dataDirs[i] = FileUtil.addPath(workDir, "stripe_d" + i);
+            clearDir(dataDirs[i]);
+        }
+        new File(dataDirs[2]).delete(); //created by the queue
+
+        //round robin in 3 dirs, no consumer
+        FileQueue.Builder builder = builder(dir).dataDirs(Placement.ROUND_ROBIN, dataDirs);
+        FileQueue fq = FQTool.create(builder);
+        push(fq, 0, MSG_NUM);
+        FQTool.remove(builder.queueName());
+        int fileNum = 0;
+        for(int no = 0; ; no++) {
+            int found = -1;
+            for(int d = 0; d < dataDirs.length; d++) {
+                if(new File(FileUtil.addPath(dataDirs[d], "stripe." + no)).exists()) {
+                    found = d;
+                }
+            }
+            if(found < 0) {
+                break;
+            }
+            if(found != no % dataDirs.length || new File(FileUtil.addPath(dir, "stripe." + no)).exists()) {
+                LOG.error("File {} placed in dir {}", no, found);
+                errNum.incrementAndGet();
+            }
+            fileNum++;
+        }
+        if(fileNum < 4) {
+            LOG.error("Only {} files written", fileNum);
+            errNum.incrementAndGet();
+        }
+
+        //the third dir is removed, its files are moved to the first one
+        for(File f : new File(dataDirs[2]).listFiles()) {
+            Files.move(f.toPath(), new File(dataDirs[0], f.getName()).toPath());
+        }
+        builder = builder(dir).dataDirs(Placement.ROUND_ROBIN, dataDirs[0], dataDirs[1]);
+        fq = FQTool.create(builder);
+        CountDownLatch over = consume(fq, MSG_NUM * 2, InitPosition.HEAD);
+        push(fq, MSG_NUM, MSG_NUM * 2);
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received", expected.get());
+            errNum.incrementAndGet();
+        }
+        FQTool.remove(builder.queueName());
+        File[] left = new File(dataDirs[2]).listFiles();
+        if(left.length > 0) {
+            LOG.error("{} files placed in the removed dir", left.length);
+            errNum.incrementAndGet();
+        }
+
+        //lost the manifest, files are found in all dirs, go on consuming
+        new File(FileUtil.addPath(dir, "stripe.manifest")).delete();
+        builder = builder(dir).dataDirs(Placement.FREE_SPACE, dataDirs[0], dataDirs[1]);
+        fq = FQTool.create(builder);
+        over = consume(fq, MSG_NUM * 2 + 100, InitPosition.CUR);
+        push(fq, MSG_NUM * 2, MSG_NUM * 2 + 100);
+        if(!over.await(30, TimeUnit.SECONDS)) {
+            LOG.error("Only {} messages received after the manifest lost", expected.get());
+            errNum.incrementAndGet();
+        }
+        Thread.sleep(100); //nothing more
+        FQTool.remove(builder.queueName());
+
+        LOG.info("Poll num:{},error num:{}", expected.get(), errNum.get());
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    private static FileQueue.Builder builder(String dir) {
+        return new FileQueue.Builder(dir, "stripe")
+            .maxFileNum(100)
+            .maxFileSize(IFile.MIN_FILESIZE);
+    }
+
+    private static void push(FileQueue fq, int from, int to) throws FQException {
+        byte[] m = new byte[MSG_LEN];
+        for(int no = from; no < to; no++) {
+            IFile.encodeInt(m, no, 0);
+            fq.push(m, true);
+        }
+    }
+
+    /**
+     * Check messages are received in order, until the `to`th one
+     */
+    private static CountDownLatch consume(FileQueue fq, int to, InitPosition cp) throws FQException {
+        CountDownLatch over = new CountDownLatch(to - expected.get());
+        fq.addConsumer("stripe_consumer", true, cp, true, (msg, reader) -> {
+            int no = IFile.parseInt(msg.message(), 0);
+            if(no != expected.getAndIncrement() || msg.len() != MSG_LEN || !msg.isCorrect()) {
+                if(errNum.incrementAndGet() < 10) {
+                    LOG.error("Invalid msg {}, expected {}", no, expected.get() - 1);
+                }
+            }
+            over.countDown();
+            return true;
+        });
+        return over;
+    }
+}
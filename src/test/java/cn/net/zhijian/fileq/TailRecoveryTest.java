@@ -0,0 +1,158 @@
+package cn.net.zhijian.fileq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import cn.net.zhijian.fileq.intf.IFile;
+import cn.net.zhijian.fileq.intf.IFile.InitPosition;
+import cn.net.zhijian.fileq.io.Manifest;
+import cn.net.zhijian.fileq.util.FileUtil;
+import cn.net.zhijian.fileq.util.LogUtil;
+
+/**
+ * Damage the tail of a queue file in many ways,
+ * check the recovered size and message number.
+ * Empty messages at the end are kept, except in mapped mode.
+ * Without the manifest, the torn file before an empty next one is recovered
+ * @author flyinmind of csdn.net
+ *
+ */
+public class TailRecoveryTest extends TestBase {
+    private static final int MSG_NUM = 100;
+    private static final int EMPTY_NUM = 3; //empty messages at the end
+    private static final Logger LOG = LogUtil.getInstance();
+    private static int errNum = 0;
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(2);
+        FQTool.start(threadPool);
+        String dir = FileUtil.addPath(workDir, "recoveryq");
+        clearDir(dir);
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "recovery");
+        FileQueue fq = FQTool.create(builder);
+        for(int i = 0; i < MSG_NUM; i++) {
+            fq.push(new byte[20 + i], true);
+        }
+        for(int i = 0; i < EMPTY_NUM; i++) {
+            fq.push(new byte[0]);
+        }
+        FQTool.remove(builder.queueName());
+
+        File src = new File(FileUtil.addPath(dir, "recovery.0"));
+        long len = src.length();
+        long msgEnd = len - EMPTY_NUM * Integer.BYTES; //end of the last non-empty message
+        long lastPos = msgEnd - (Integer.BYTES * 2 + 20 + MSG_NUM - 1);
+        File f = new File(FileUtil.addPath(dir, "recovery.case"));
+
+        copy(src, f);
+        check("intact", f, false, len, MSG_NUM + EMPTY_NUM);
+
+        copy(src, f);
+        check("intact mapped", f, true, msgEnd, MSG_NUM);
+
+        copy(src, f);
+        append(f, new byte[] {0x7f, 0x01});
+        check("partial header", f, false, len, MSG_NUM + EMPTY_NUM);
+
+        copy(src, f);
+        byte[] partial = new byte[Integer.BYTES + 10];
+        IFile.encodeInt(partial, 100, 0);
+        append(f, partial);
+        check("partial message", f, false, len, MSG_NUM + EMPTY_NUM);
+
+        copy(src, f);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(msgEnd - 1);
+            int b = raf.read();
+            raf.seek(msgEnd - 1);
+            raf.write(b ^ 0xff);
+        }
+        check("bad crc", f, false, lastPos, MSG_NUM - 1);
+
+        copy(src, f);
+        append(f, new byte[64 * 1024]);
+        check("mapped zeros", f, true, msgEnd, MSG_NUM);
+
+        f.delete();
+        lostManifest(dir, src, len);
+        LOG.info("error num:{}", errNum);
+        FQTool.stop();
+        threadPool.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Crashed with a torn writing file and an empty next one,
+     * which was prepared in background, and the manifest is lost.
+     * The torn file is recovered too, not only the last one
+     */
+    private static void lostManifest(String dir, File src, long len) throws Exception {
+        copy(src, new File(FileUtil.addPath(dir, "crash.0")));
+        byte[] partial = new byte[Integer.BYTES + 10];
+        IFile.encodeInt(partial, 100, 0);
+        append(new File(FileUtil.addPath(dir, "crash.0")), partial);
+        byte[] head = new byte[IFile.FILE_HEAD_LEN];
+        System.arraycopy(IFile.MAGIC, 0, head, 0, IFile.MAGIC.length);
+        head[IFile.MAGIC.length] = (byte)IFile.VER;
+        IFile.encodeInt(head, 1, IFile.MAGIC.length + 1);
+        append(new File(FileUtil.addPath(dir, "crash.1")), head);
+
+        FileQueue.Builder builder = new FileQueue.Builder(dir, "crash");
+        FileQueue fq = FQTool.create(builder);
+        CountDownLatch over = new CountDownLatch(MSG_NUM + EMPTY_NUM + 1);
+        AtomicInteger invalid = new AtomicInteger(0);
+        fq.addConsumer("crash_consumer", true, InitPosition.HEAD, true, (msg, reader) -> {
+            if(over.getCount() == 1 ? msg.len() != 1 : !msg.isCorrect()) {
+                invalid.incrementAndGet();
+            }
+            over.countDown();
+            return true;
+        });
+        fq.push(new byte[1], true); //after the recovered files
+        if(!over.await(10, TimeUnit.SECONDS) || invalid.get() > 0) {
+            LOG.error("lost manifest: {} messages not received, {} invalid", over.getCount(), invalid.get());
+            errNum++;
+        }
+        long size = new File(FileUtil.addPath(dir, "crash.0")).length();
+        if(size != len) {
+            LOG.error("lost manifest: torn file not recovered, size {}, expected {}", size, len);
+            errNum++;
+        } else {
+            LOG.info("lost manifest: size {}", size);
+        }
+        FQTool.remove(builder.queueName());
+    }
+
+    private static void check(String name, File f, boolean mapped, long size, int msgNum) {
+        Manifest.Segment s = new Manifest.Segment(0, 0); //no checkpoint, check from the head
+        TailRecovery.recover(f, s, mapped);
+        if(s.size != size || s.msgNum != msgNum || f.length() != size) {
+            LOG.error("{}: size {}/{}, msgNum {}, expected {}/{}",
+                    name, s.size, f.length(), s.msgNum, size, msgNum);
+            errNum++;
+        } else {
+            LOG.info("{}: size {}, msgNum {}", name, s.size, s.msgNum);
+        }
+    }
+
+    private static void copy(File src, File dst) throws IOException {
+        Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void append(File f, byte[] data) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(raf.length());
+            raf.write(data);
+        }
+    }
+}
@@ -72,4 +72,21 @@ public class TestBase {
         LOG.info("{},time:{}", name, end - start);
         return end - start;        
     }
+    
+    /**
+     * Remove files left by former runs, then create the dir
+     * @param dir queue dir, sub dirs are not removed
+     */
+    public static void clearDir(String dir) {
+        File d = new File(dir);
+        File[] files = d.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                if(f.isFile()) {
+                    f.delete();
+                }
+            }
+        }
+        d.mkdirs();
+    }
 }